@@ -0,0 +1,405 @@
+package net.noinspiration.idreader.activities;
+
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.otaliastudios.cameraview.CameraView;
+
+import net.noinspiration.idreader.R;
+import net.noinspiration.idreader.camera.TextProcessor;
+import net.noinspiration.idreader.helper.AppProperties;
+import net.noinspiration.idreader.helper.CertificateReader;
+import net.noinspiration.idreader.helper.NfcReader;
+import net.noinspiration.idreader.helper.Person;
+import net.noinspiration.idreader.helper.PhotoLoader;
+import net.noinspiration.idreader.helper.ReadMetricsLog;
+import net.noinspiration.idreader.helper.ReadProfile;
+import net.noinspiration.idreader.interfaces.CertificateInterface;
+import net.noinspiration.idreader.interfaces.NfcInterface;
+import net.noinspiration.idreader.interfaces.VisionInterface;
+
+import org.jmrtd.BACKey;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Continuous scanning of passports and ID cards, for kiosks processing documents back to back.
+ * The MRZ is scanned and the chip read in the same activity, which stays in the foreground:
+ * the NFC tag is received through reader mode instead of foreground dispatch, every reading
+ * runs on the same long-lived thread, and trust anchors and crypto providers are loaded once
+ * before the first document.
+ */
+public class KioskActivity extends AppCompatActivity implements NfcInterface, VisionInterface, CertificateInterface {
+
+    private static final String TAG = "KioskActivity";
+
+    // Reader mode: documents only, no NDEF probing and no platform sound
+    private static final int READER_FLAGS = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B
+            | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK | NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS;
+    // Time between presence checks of the platform, a reading exchanges APDUs constantly anyway
+    private static final int PRESENCE_CHECK_DELAY = 1000;
+    // Time a lost document has to come back before its reading is abandoned, in ms
+    private static final int ABANDON_DELAY = 15000;
+    // What the kiosk shows: the holder (DG1), the photo (DG2) and whether the document is genuine
+    private static final ReadProfile READ_PROFILE = ReadProfile.custom(true, 2);
+
+    // Kiosk states
+    private static final int STATE_SCANNING = 0;
+    private static final int STATE_WAITING_TAG = 1;
+    private static final int STATE_READING = 2;
+
+    private final TextProcessor processor = new TextProcessor(this);
+
+    // Every reading runs on this thread, kept for the lifetime of the kiosk
+    private ExecutorService readerExecutor;
+    // Abandons a reading whose document did not come back, see @onTagLost
+    private final Handler handler = new Handler();
+
+    private NfcAdapter nfcAdapter;
+    private CameraView cameraView;
+    private TextView statusText;
+    private TextView resultText;
+    private ImageView photoView;
+
+    // Guarded by this
+    private int state = STATE_SCANNING;
+    private BACKey bacKey;
+    // MRZ of the document to read, and of the last document read which may still be under the camera
+    private String mrz;
+    private String lastMRZ;
+    private NfcReader reader;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_kiosk);
+
+        AppProperties.activityName = this.getClass().getSimpleName();
+
+        cameraView = findViewById(R.id.cameraView);
+        statusText = findViewById(R.id.statusText);
+        resultText = findViewById(R.id.resultText);
+        photoView = findViewById(R.id.photoView);
+
+        nfcAdapter = NfcAdapter.getDefaultAdapter(this);
+        if (nfcAdapter == null) {
+            Toast.makeText(this, R.string.no_nfc, Toast.LENGTH_LONG).show();
+        }
+
+        readerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Kiosk");
+            }
+        });
+        // Runs before the first reading, on the reading thread
+        readerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preload();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        cameraView.open();
+        cameraView.setPlaySounds(false);
+        cameraView.addFrameProcessor(processor);
+
+        if (nfcAdapter != null) {
+            Bundle options = new Bundle();
+            options.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, PRESENCE_CHECK_DELAY);
+            nfcAdapter.enableReaderMode(this, new NfcAdapter.ReaderCallback() {
+                @Override
+                public void onTagDiscovered(Tag tag) {
+                    KioskActivity.this.onTagDiscovered(tag);
+                }
+            }, READER_FLAGS, options);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        if (nfcAdapter != null) {
+            nfcAdapter.disableReaderMode(this);
+        }
+        cameraView.clearFrameProcessors();
+        cameraView.close();
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacksAndMessages(null);
+        readerExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
+    /**
+     * Loads what every reading needs once: the security provider, the CSCA certificates and the
+     * crypto primitives of BAC and secure messaging, so the first document is as fast as the next
+     */
+    private void preload() {
+        long start = System.nanoTime();
+
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        }
+
+        // Country signing certificates, from the file saved by @CertificateReader
+        if (AppProperties.certificates == null) {
+            try (ObjectInputStream ois = new ObjectInputStream(
+                    new FileInputStream(getFilesDir() + "/" + AppProperties.CERTIFICATE_FILE_NAME))) {
+                //noinspection unchecked
+                AppProperties.certificates = (Map<String, Set<X509Certificate>>) ois.readObject();
+            } catch (Exception e) {
+                Log.d(TAG, "Certificates not saved yet, reading master list");
+                new CertificateReader(getApplicationContext(), this).run();
+            }
+        }
+
+        // Provider lookups and first initialisations are slow, do them before the first document
+        try {
+            byte[] key = new byte[24];
+            Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DESede"), new IvParameterSpec(new byte[8]));
+            cipher.doFinal(new byte[8]);
+            Cipher mac = Cipher.getInstance("DES/ECB/NoPadding");
+            mac.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"));
+            mac.doFinal(new byte[8]);
+            for (String algorithm : new String[]{"SHA-1", "SHA-256"}) {
+                MessageDigest.getInstance(algorithm).digest(key);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error preloading crypto: " + e.toString());
+        }
+        Log.d(TAG, "Preloaded in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Called by reader mode on a binder thread when a document is put on the phone
+     *
+     * @param tag the NFC tag
+     */
+    private void onTagDiscovered(Tag tag) {
+        if (!Arrays.asList(tag.getTechList()).contains(AppProperties.NFC_TECH)) {
+            return;
+        }
+        IsoDep isoDep = IsoDep.get(tag);
+        isoDep.setTimeout(5000);
+
+        synchronized (this) {
+            // Same document put back during its reading
+            if (reader != null && reader.resume(isoDep, readerExecutor)) {
+                Log.i(TAG, "Resuming reading");
+                handler.removeCallbacksAndMessages(null);
+                return;
+            }
+            if (state != STATE_WAITING_TAG || bacKey == null) {
+                Log.d(TAG, "Document ignored, MRZ not scanned");
+                return;
+            }
+            state = STATE_READING;
+            reader = new NfcReader(isoDep, bacKey, this, getApplicationContext(), AppProperties.ACTIVITY_PASSPORT_SCAN);
+            reader.setReadProfile(READ_PROFILE);
+            readerExecutor.execute(reader);
+        }
+        setStatus(R.string.kiosk_reading);
+    }
+
+    /* ------------------------ VISION CALLBACKS --------------------- */
+
+    @Override
+    public void onSuccessfulVision(String result) {
+        String[] info = result.split("/");
+        if (info.length < 3) {
+            return;
+        }
+        synchronized (this) {
+            // The next traveller's MRZ can be scanned while the result is shown, not during a reading
+            if (state == STATE_READING || result.equals(mrz) || result.equals(lastMRZ)) {
+                return;
+            }
+            mrz = result;
+            bacKey = new BACKey(info[0], info[1], info[2]);
+            state = STATE_WAITING_TAG;
+        }
+        setStatus(R.string.scan_nfc_chip);
+    }
+
+    @Override
+    public void onFailureVision(String exception) {
+        Log.e(TAG, "onFailureVision: " + exception);
+    }
+
+    /* ------------------------ NFC CALLBACKS --------------------- */
+
+    @Override
+    public void onNfcResult(final Person person) {
+        synchronized (this) {
+            state = STATE_SCANNING;
+            lastMRZ = mrz;
+            mrz = null;
+            bacKey = null;
+            reader = null;
+        }
+        if (person.getReadMetrics() != null) {
+            ReadMetricsLog.append(this, person.getReadMetrics());
+        }
+
+        final String photo = person.getPhoto();
+        final boolean legitimate = "true".equals(person.getIdentityDocument().getLegitimate());
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                statusText.setText(legitimate ? R.string.kiosk_legitimate : R.string.kiosk_not_legitimate);
+                statusText.setTextColor(getColor(legitimate ? R.color.colorPrimaryDark : R.color.colorError));
+                resultText.setText(person.getFirstName() + " " + person.getLastName() + "\n"
+                        + person.getIdentityDocument().getNumber() + "\n"
+                        + person.getNationality() + "\n"
+                        + person.getIdentityDocument().getDateOfExpiry());
+                resultText.setVisibility(View.VISIBLE);
+                // Decoded at the size it is shown, away from the reading thread
+                photoView.setImageBitmap(null);
+                if (photo != null) {
+                    PhotoLoader.load(photo, photoView);
+                    photoView.setVisibility(View.VISIBLE);
+                } else {
+                    photoView.setTag(null);
+                    photoView.setVisibility(View.INVISIBLE);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onNfcError() {
+        synchronized (this) {
+            // Same traveller, the document can be put on the phone again
+            state = STATE_WAITING_TAG;
+            reader = null;
+        }
+        setStatus(R.string.nfc_read_error);
+    }
+
+    @Override
+    public void onTagLost() {
+        final NfcReader lost;
+        synchronized (this) {
+            lost = reader;
+        }
+        // The traveller may have left with the document, scan the next one after a while
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                abandon(lost);
+            }
+        }, ABANDON_DELAY);
+        setStatus(R.string.document_lost);
+    }
+
+    /**
+     * Gives up a reading whose document was lost and did not come back
+     *
+     * @param lost the reader of the lost document
+     */
+    private void abandon(NfcReader lost) {
+        synchronized (this) {
+            if (lost == null || reader != lost || !lost.isSuspended()) {
+                return;
+            }
+            Log.i(TAG, "Document did not come back, reading abandoned");
+            state = STATE_SCANNING;
+            mrz = null;
+            bacKey = null;
+            reader = null;
+        }
+        setStatus(R.string.scan_passport_mrz);
+    }
+
+    @Override
+    public void onFalsifiedDocument() {
+
+    }
+
+    @Override
+    public void updateUI(int stage) {
+
+    }
+
+    @Override
+    public void updatePhotoProgress(int percentage) {
+
+    }
+
+    @Override
+    public void updateInformationProgress(int percentage) {
+
+    }
+
+    @Override
+    public void updateCertificateProgress(int percentage) {
+
+    }
+
+    @Override
+    public void updateOverallProgress(final int percentage) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                statusText.setText(getString(R.string.kiosk_reading_progress, percentage));
+            }
+        });
+    }
+
+    @Override
+    public void notifyRead() {
+        Log.d(TAG, "Certificates read from master list");
+    }
+
+    /* ------------------------ UI FUNCTIONS ------------------------- */
+
+    /**
+     * Shows a status and hides the previous result
+     *
+     * @param text the status to show
+     */
+    private void setStatus(final int text) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                statusText.setText(text);
+                statusText.setTextColor(getColor(R.color.colorPrimaryDark));
+                resultText.setVisibility(View.INVISIBLE);
+                photoView.setVisibility(View.INVISIBLE);
+            }
+        });
+    }
+}
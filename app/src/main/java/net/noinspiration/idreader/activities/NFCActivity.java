@@ -10,6 +10,7 @@ import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
@@ -18,14 +19,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import net.noinspiration.idreader.R;
+import net.noinspiration.idreader.cardservice.APDURecord;
+import net.noinspiration.idreader.cardservice.APDUStatistics;
 import net.noinspiration.idreader.helper.AppProperties;
 import net.noinspiration.idreader.helper.BACKeyHelper;
 import net.noinspiration.idreader.helper.NfcReader;
+import net.noinspiration.idreader.helper.ReadMetricsLog;
 import net.noinspiration.idreader.helper.Person;
+import net.noinspiration.idreader.interfaces.InstrumentationListener;
 import net.noinspiration.idreader.interfaces.NfcInterface;
 
 import org.jmrtd.BACKey;
 
+import java.io.File;
 import java.util.Arrays;
 
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_1;
@@ -33,7 +39,7 @@ import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_2;
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_3;
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_4;
 
-public class NFCActivity extends AppCompatActivity implements NfcInterface {
+public class NFCActivity extends AppCompatActivity implements NfcInterface, InstrumentationListener {
 
     private static final String TAG = "NFCActivity";
     private int callingActivity;
@@ -57,6 +63,13 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
 
     private String docType;
 
+    // The current reader, kept to resume reading when the document is lost
+    private NfcReader reader;
+
+    // APDU measurements, shown when the caller asks for debugging
+    private TextView debugOverlay;
+    private long lastOverlayUpdate;
+    private final static long OVERLAY_UPDATE_INTERVAL = 200;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -86,6 +99,10 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
         infoBar = findViewById(R.id.infoBar);
         photoBar = findViewById(R.id.photoBar);
         certificateBar = findViewById(R.id.certificateBar);
+        debugOverlay = findViewById(R.id.debugOverlay);
+        if (getIntent().getBooleanExtra("debug", false)) {
+            debugOverlay.setVisibility(View.VISIBLE);
+        }
 
         resetUI();
 
@@ -112,6 +129,10 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
 
     @Override
     public void onNfcResult(Person person) {
+        // Keep the timings of the session to follow read times across devices and documents
+        if (person.getReadMetrics() != null) {
+            ReadMetricsLog.append(this, person.getReadMetrics());
+        }
         Intent intent = new Intent(this, PersonActivity.class);
         intent.putExtra("activity", callingActivity);
         intent.putExtra("person", person);
@@ -139,11 +160,41 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
         });
     }
 
+    @Override
+    public void onTagLost() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                documentText.setText(R.string.document_lost);
+            }
+        });
+    }
+
     @Override
     public void onFalsifiedDocument() {
 
     }
 
+    /**
+     * Shows the APDU measurements of the session, at most every @OVERLAY_UPDATE_INTERVAL ms
+     * Failed exchanges and status words other than 9000 are always shown
+     */
+    @Override
+    public void onAPDU(APDURecord record, APDUStatistics statistics) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastOverlayUpdate < OVERLAY_UPDATE_INTERVAL && record.getSW() == 0x9000) {
+            return;
+        }
+        lastOverlayUpdate = now;
+        final String summary = statistics.getSummary();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                debugOverlay.setText(summary);
+            }
+        });
+    }
+
     /* ------------------------ UI FUNCTIONS ------------------------- */
 
     /**
@@ -207,6 +258,11 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
         });
     }
 
+    @Override
+    public void updateOverallProgress(int percentage) {
+        // Every stage has its own progress bar
+    }
+
     /**
      * Resets the UI to defaults
      */
@@ -307,8 +363,6 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
         // If the intent is a NFC related intent
         if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(intent.getAction())) {
 
-            resetUI();
-
             // Get NFC chip possibilities
             Tag tag = intent.getExtras().getParcelable(NfcAdapter.EXTRA_TAG);
             Log.i(TAG, "Scanning tag");
@@ -316,10 +370,19 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
             // Check if the NFC chip is capable of reading passport chips
             if (Arrays.asList(tag.getTechList()).contains(AppProperties.NFC_TECH)) {
 
-                // Start reading in a separate thread
                 IsoDep isoDep = IsoDep.get(tag);
                 isoDep.setTimeout(5000);
-                NfcReader reader = null;
+
+                // The document is back, continue where the reading stopped
+                if (reader != null && reader.resume(isoDep)) {
+                    Log.i(TAG, "Resuming reading");
+                    return;
+                }
+
+                resetUI();
+
+                // Start reading in a separate thread
+                reader = null;
 
                 if (callingActivity == AppProperties.ACTIVITY_PASSPORT_SCAN) {
                     reader = new NfcReader(isoDep, bacKey, this, this, callingActivity);
@@ -328,6 +391,14 @@ public class NFCActivity extends AppCompatActivity implements NfcInterface {
                     reader = new NfcReader(isoDep, cutMRZ, this, this, callingActivity);
                 }
 
+                // Record the session to reproduce reading issues
+                if (getIntent().getBooleanExtra("record", false)) {
+                    reader.setTraceFile(new File(getFilesDir(), "trace-" + System.currentTimeMillis() + ".apdu"));
+                }
+                // Measure every APDU to tell slow chips from slow code
+                if (getIntent().getBooleanExtra("debug", false)) {
+                    reader.setInstrumentationListener(this);
+                }
                 Thread nfcThread = new Thread(reader);
                 nfcThread.start();
             } else {
@@ -0,0 +1,108 @@
+package net.noinspiration.idreader.cardservice;
+
+import java.util.Locale;
+
+/**
+ * Measurements of a single APDU exchanged with a document, see @APDUStatistics
+ */
+public class APDURecord {
+
+    private final String commandClass;
+    private final int plainCommandLength;
+    private final int wireCommandLength;
+    private final int wireResponseLength;
+    private final long chipMicros;
+    private final int sw;
+
+    // Known once the response is unwrapped, for secure messaging
+    private int plainResponseLength;
+    private long secureMessagingMicros;
+
+    APDURecord(String commandClass, int plainCommandLength, int wireCommandLength, int wireResponseLength,
+               long chipMicros, int sw, long wrapMicros) {
+        this.commandClass = commandClass;
+        this.plainCommandLength = plainCommandLength;
+        this.wireCommandLength = wireCommandLength;
+        this.wireResponseLength = wireResponseLength;
+        this.plainResponseLength = wireResponseLength;
+        this.chipMicros = chipMicros;
+        this.sw = sw;
+        this.secureMessagingMicros = wrapMicros;
+    }
+
+    void setUnwrapped(int plainResponseLength, long unwrapMicros) {
+        this.plainResponseLength = plainResponseLength;
+        this.secureMessagingMicros += unwrapMicros;
+    }
+
+    /**
+     * Names the instruction of a command
+     *
+     * @param ins the instruction byte
+     * @return the command class (SELECT, READ BINARY...)
+     */
+    static String classify(int ins) {
+        switch (ins & 0xFF) {
+            case 0xA4:
+                return "SELECT";
+            case 0xB0:
+            case 0xB1:
+                return "READ BINARY";
+            case 0x84:
+                return "GET CHALLENGE";
+            case 0x82:
+                return "EXTERNAL AUTHENTICATE";
+            case 0x88:
+                return "INTERNAL AUTHENTICATE";
+            case 0x22:
+                return "MSE";
+            case 0x86:
+                return "GENERAL AUTHENTICATE";
+            case 0x2A:
+                return "PSO";
+            default:
+                return String.format(Locale.ROOT, "INS %02X", ins & 0xFF);
+        }
+    }
+
+    public String getCommandClass() {
+        return commandClass;
+    }
+
+    public int getPlainCommandLength() {
+        return plainCommandLength;
+    }
+
+    public int getWireCommandLength() {
+        return wireCommandLength;
+    }
+
+    public int getPlainResponseLength() {
+        return plainResponseLength;
+    }
+
+    public int getWireResponseLength() {
+        return wireResponseLength;
+    }
+
+    /**
+     * @return the time between sending the command and receiving the response
+     */
+    public long getChipMicros() {
+        return chipMicros;
+    }
+
+    /**
+     * @return the time spent wrapping the command and unwrapping the response
+     */
+    public long getSecureMessagingMicros() {
+        return secureMessagingMicros;
+    }
+
+    /**
+     * @return the status word on the wire, -1 if the exchange failed
+     */
+    public int getSW() {
+        return sw;
+    }
+}
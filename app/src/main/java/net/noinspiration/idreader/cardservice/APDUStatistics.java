@@ -0,0 +1,258 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.noinspiration.idreader.interfaces.InstrumentationListener;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the @APDURecord of a session and aggregates them per command class.
+ * Fed by @InstrumentedCardService (what goes over the air) and @InstrumentedAPDUWrapper
+ * (secure messaging), it tells apart the time spent in the chip, in secure messaging and in
+ * the rest of the reader.
+ */
+public class APDUStatistics {
+
+    // Upper bounds of the latency histogram buckets, in microseconds (last bucket is unbounded)
+    private final static long[] BUCKETS = {1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000};
+
+    private final InstrumentationListener listener;
+
+    private final List<APDURecord> records = new ArrayList<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    // Command being wrapped, until it is transmitted
+    private int pendingPlainLength = -1;
+    private long pendingWrapMicros;
+    // Exchange waiting for its response to be unwrapped
+    private APDURecord pendingUnwrap;
+
+    private long firstNanos;
+    private long lastNanos;
+
+    /**
+     * Constructor
+     *
+     * @param listener notified after every APDU, can be null
+     */
+    public APDUStatistics(InstrumentationListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * A command was wrapped by secure messaging
+     */
+    synchronized void onWrap(int plainLength, long micros) {
+        pendingPlainLength = plainLength;
+        pendingWrapMicros = micros;
+    }
+
+    /**
+     * A command was transmitted to the chip
+     *
+     * @param ins                the instruction of the command
+     * @param wireCommandLength  the length of the command on the wire
+     * @param wireResponseLength the length of the response on the wire, -1 if it failed
+     * @param sw                 the status word, -1 if it failed
+     * @param startNanos         when the command was sent
+     * @param micros             the time the exchange took
+     */
+    void onTransmit(int ins, int wireCommandLength, int wireResponseLength, int sw, long startNanos, long micros) {
+        APDURecord record;
+        synchronized (this) {
+            if (firstNanos == 0) {
+                firstNanos = startNanos;
+            }
+            lastNanos = startNanos + micros * 1000;
+
+            boolean wrapped = pendingPlainLength >= 0;
+            record = new APDURecord(APDURecord.classify(ins), wrapped ? pendingPlainLength : wireCommandLength,
+                    wireCommandLength, wireResponseLength, micros, sw, wrapped ? pendingWrapMicros : 0);
+            pendingPlainLength = -1;
+            pendingWrapMicros = 0;
+
+            if (wrapped && wireResponseLength >= 0) {
+                // Completed once unwrapped
+                pendingUnwrap = record;
+                return;
+            }
+            add(record);
+        }
+        notifyListener(record);
+    }
+
+    /**
+     * A response was unwrapped by secure messaging
+     */
+    void onUnwrap(int plainLength, long micros) {
+        APDURecord record;
+        synchronized (this) {
+            record = pendingUnwrap;
+            if (record == null) {
+                return;
+            }
+            pendingUnwrap = null;
+            record.setUnwrapped(plainLength, micros);
+            lastNanos = System.nanoTime();
+            add(record);
+        }
+        notifyListener(record);
+    }
+
+    private void add(APDURecord record) {
+        records.add(record);
+        Histogram histogram = histograms.get(record.getCommandClass());
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(record.getCommandClass(), histogram);
+        }
+        histogram.add(record);
+    }
+
+    private void notifyListener(APDURecord record) {
+        if (listener != null) {
+            listener.onAPDU(record, this);
+        }
+    }
+
+    /* ------------------------ GETTERS --------------------- */
+
+    public synchronized List<APDURecord> getRecords() {
+        return new ArrayList<>(records);
+    }
+
+    public synchronized Map<String, Histogram> getHistograms() {
+        return new LinkedHashMap<>(histograms);
+    }
+
+    public synchronized int getCount() {
+        return records.size();
+    }
+
+    /**
+     * @return the time spent waiting for the chip
+     */
+    public synchronized long getChipMicros() {
+        long total = 0;
+        for (Histogram histogram : histograms.values()) {
+            total += histogram.chipMicros;
+        }
+        return total;
+    }
+
+    /**
+     * @return the time spent in secure messaging
+     */
+    public synchronized long getSecureMessagingMicros() {
+        long total = 0;
+        for (Histogram histogram : histograms.values()) {
+            total += histogram.secureMessagingMicros;
+        }
+        return total;
+    }
+
+    /**
+     * @return the time between the first and the last APDU
+     */
+    public synchronized long getSessionMicros() {
+        return firstNanos == 0 ? 0 : (lastNanos - firstNanos) / 1000;
+    }
+
+    /**
+     * @return a human readable summary of the session
+     */
+    public synchronized String getSummary() {
+        long session = getSessionMicros();
+        long chip = getChipMicros();
+        long sm = getSecureMessagingMicros();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "%d APDUs, %.0f ms: chip %.0f ms, SM %.0f ms, reader %.0f ms\n",
+                records.size(), session / 1000.0, chip / 1000.0, sm / 1000.0,
+                Math.max(0, session - chip - sm) / 1000.0));
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Aggregated measurements of a command class
+     */
+    public static class Histogram {
+        private int count;
+        private long plainBytes;
+        private long wireBytes;
+        private long chipMicros;
+        private long secureMessagingMicros;
+        private final int[] latencyBuckets = new int[BUCKETS.length + 1];
+        private final Map<Integer, Integer> statusWords = new LinkedHashMap<>();
+
+        private void add(APDURecord record) {
+            count++;
+            plainBytes += record.getPlainCommandLength() + Math.max(record.getPlainResponseLength(), 0);
+            wireBytes += record.getWireCommandLength() + Math.max(record.getWireResponseLength(), 0);
+            chipMicros += record.getChipMicros();
+            secureMessagingMicros += record.getSecureMessagingMicros();
+
+            int bucket = 0;
+            while (bucket < BUCKETS.length && record.getChipMicros() >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            latencyBuckets[bucket]++;
+
+            Integer sw = record.getSW();
+            statusWords.put(sw, statusWords.containsKey(sw) ? statusWords.get(sw) + 1 : 1);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getPlainBytes() {
+            return plainBytes;
+        }
+
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        public long getChipMicros() {
+            return chipMicros;
+        }
+
+        public long getSecureMessagingMicros() {
+            return secureMessagingMicros;
+        }
+
+        /**
+         * @return the number of exchanges per latency bucket, see @getBucketBounds
+         */
+        public int[] getLatencyBuckets() {
+            return latencyBuckets.clone();
+        }
+
+        /**
+         * @return the upper bounds of the latency buckets in microseconds, the last bucket is unbounded
+         */
+        public static long[] getBucketBounds() {
+            return BUCKETS.clone();
+        }
+
+        public Map<Integer, Integer> getStatusWords() {
+            return new LinkedHashMap<>(statusWords);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sws = new StringBuilder();
+            for (Map.Entry<Integer, Integer> entry : statusWords.entrySet()) {
+                sws.append(String.format(Locale.ROOT, " %04X×%d", entry.getKey() & 0xFFFF, entry.getValue()));
+            }
+            return String.format(Locale.ROOT, "%d, %d/%d B, chip %.1f ms, SM %.1f ms,%s",
+                    count, plainBytes, wireBytes, chipMicros / 1000.0, secureMessagingMicros / 1000.0, sws);
+        }
+    }
+}
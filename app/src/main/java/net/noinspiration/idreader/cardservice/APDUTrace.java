@@ -0,0 +1,151 @@
+package net.noinspiration.idreader.cardservice;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded session with a document: every command/response APDU pair exchanged through a
+ * @CardService, with the time the exchange took.
+ * Stored as a compact binary file:
+ * magic "APDT", version, ATR, then for every exchange: latency (microseconds), command, response.
+ * A failed exchange (lost tag, timeout) is stored without a response so that it can be replayed.
+ */
+public class APDUTrace {
+
+    // File header
+    private final static int MAGIC = 0x41504454;
+    private final static int VERSION = 1;
+
+    // Length written instead of a response for a failed exchange
+    private final static int NO_RESPONSE = -1;
+
+    private final List<Exchange> exchanges = new ArrayList<>();
+    private byte[] atr;
+
+    /**
+     * Records an exchange
+     *
+     * @param command       the command APDU
+     * @param response      the response APDU, null if the exchange failed
+     * @param latencyMicros the time the exchange took
+     */
+    public synchronized void add(byte[] command, byte[] response, long latencyMicros) {
+        exchanges.add(new Exchange(command, response, latencyMicros));
+    }
+
+    public synchronized List<Exchange> getExchanges() {
+        return Collections.unmodifiableList(new ArrayList<>(exchanges));
+    }
+
+    public synchronized byte[] getATR() {
+        return atr;
+    }
+
+    public synchronized void setATR(byte[] atr) {
+        this.atr = atr;
+    }
+
+    /**
+     * Writes the trace
+     *
+     * @param out the stream to write to, not closed
+     * @throws IOException When writing fails
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        writeBytes(data, atr);
+        data.writeInt(exchanges.size());
+        for (Exchange exchange : exchanges) {
+            data.writeInt((int) Math.min(exchange.latencyMicros, Integer.MAX_VALUE));
+            writeBytes(data, exchange.command);
+            writeBytes(data, exchange.response);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a trace
+     *
+     * @param in the stream to read from, not closed
+     * @return the trace
+     * @throws IOException When the stream is not a trace or reading fails
+     */
+    public static APDUTrace read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not an APDU trace");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported APDU trace version " + version);
+        }
+
+        APDUTrace trace = new APDUTrace();
+        trace.atr = readBytes(data);
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            long latencyMicros = data.readInt() & 0xFFFFFFFFL;
+            byte[] command = readBytes(data);
+            byte[] response = readBytes(data);
+            trace.exchanges.add(new Exchange(command, response, latencyMicros));
+        }
+        return trace;
+    }
+
+    private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            data.writeInt(NO_RESPONSE);
+        } else {
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length == NO_RESPONSE) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * A command/response pair
+     */
+    public static class Exchange {
+        private final byte[] command;
+        private final byte[] response;
+        private final long latencyMicros;
+
+        Exchange(byte[] command, byte[] response, long latencyMicros) {
+            this.command = command;
+            this.response = response;
+            this.latencyMicros = latencyMicros;
+        }
+
+        public byte[] getCommand() {
+            return command;
+        }
+
+        /**
+         * @return the response, null if the exchange failed
+         */
+        public byte[] getResponse() {
+            return response;
+        }
+
+        public long getLatencyMicros() {
+            return latencyMicros;
+        }
+    }
+}
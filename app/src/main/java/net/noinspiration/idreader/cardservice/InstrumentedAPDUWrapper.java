@@ -0,0 +1,51 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.APDUWrapper;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Secure messaging wrapper measuring the plain length of every APDU and the time spent
+ * wrapping and unwrapping it into @APDUStatistics. Used with an @InstrumentedCardService
+ * sharing the same statistics.
+ */
+public class InstrumentedAPDUWrapper implements APDUWrapper {
+
+    private final APDUWrapper wrapper;
+    private final APDUStatistics statistics;
+
+    /**
+     * Constructor
+     *
+     * @param wrapper    the secure messaging wrapper of the session
+     * @param statistics the statistics of the session
+     */
+    public InstrumentedAPDUWrapper(APDUWrapper wrapper, APDUStatistics statistics) {
+        this.wrapper = wrapper;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public CommandAPDU wrap(CommandAPDU command) {
+        long start = System.nanoTime();
+        CommandAPDU wrapped = wrapper.wrap(command);
+        statistics.onWrap(command.getBytes().length, (System.nanoTime() - start) / 1000);
+        return wrapped;
+    }
+
+    @Override
+    public ResponseAPDU unwrap(ResponseAPDU response) {
+        long start = System.nanoTime();
+        ResponseAPDU unwrapped = wrapper.unwrap(response);
+        statistics.onUnwrap(unwrapped.getBytes().length, (System.nanoTime() - start) / 1000);
+        return unwrapped;
+    }
+
+    public String getType() {
+        return wrapper.getType();
+    }
+
+    public APDUWrapper getWrapper() {
+        return wrapper;
+    }
+}
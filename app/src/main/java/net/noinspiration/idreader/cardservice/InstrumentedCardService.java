@@ -0,0 +1,77 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Card service measuring every APDU exchanged with the document into @APDUStatistics.
+ * APDUs are measured as they go over the air, the plain lengths and the cost of secure
+ * messaging are added by @InstrumentedAPDUWrapper.
+ */
+public class InstrumentedCardService extends CardService {
+
+    private final CardService service;
+    private final APDUStatistics statistics;
+
+    /**
+     * Constructor
+     *
+     * @param service    the card service talking to the document
+     * @param statistics the statistics of the session
+     */
+    public InstrumentedCardService(CardService service, APDUStatistics statistics) {
+        this.service = service;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void open() throws CardServiceException {
+        service.open();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return service.isOpen();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardServiceException {
+        long start = System.nanoTime();
+        try {
+            ResponseAPDU response = service.transmit(command);
+            statistics.onTransmit(command.getINS(), command.getBytes().length, response.getBytes().length,
+                    response.getSW(), start, (System.nanoTime() - start) / 1000);
+            return response;
+        } catch (CardServiceException e) {
+            statistics.onTransmit(command.getINS(), command.getBytes().length, -1, -1,
+                    start, (System.nanoTime() - start) / 1000);
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] getATR() throws CardServiceException {
+        return service.getATR();
+    }
+
+    @Override
+    public void close() {
+        service.close();
+    }
+
+    @Override
+    public boolean isExtendedAPDULengthSupported() {
+        return service.isExtendedAPDULengthSupported();
+    }
+
+    @Override
+    public boolean isConnectionLost(Exception e) {
+        return service.isConnectionLost(e);
+    }
+
+    public APDUStatistics getStatistics() {
+        return statistics;
+    }
+}
@@ -0,0 +1,77 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Card service recording every APDU exchanged with the document into an @APDUTrace.
+ * APDUs are recorded as they go over the air, after secure messaging is applied.
+ * The same trace can be shared by several services to record a session that was resumed.
+ */
+public class RecordingCardService extends CardService {
+
+    private final CardService service;
+    private final APDUTrace trace;
+
+    /**
+     * Constructor
+     *
+     * @param service the card service talking to the document
+     * @param trace   the trace to record into
+     */
+    public RecordingCardService(CardService service, APDUTrace trace) {
+        this.service = service;
+        this.trace = trace;
+    }
+
+    @Override
+    public void open() throws CardServiceException {
+        service.open();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return service.isOpen();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardServiceException {
+        long start = System.nanoTime();
+        try {
+            ResponseAPDU response = service.transmit(command);
+            trace.add(command.getBytes(), response.getBytes(), (System.nanoTime() - start) / 1000);
+            return response;
+        } catch (CardServiceException e) {
+            trace.add(command.getBytes(), null, (System.nanoTime() - start) / 1000);
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] getATR() throws CardServiceException {
+        byte[] atr = service.getATR();
+        trace.setATR(atr);
+        return atr;
+    }
+
+    @Override
+    public void close() {
+        service.close();
+    }
+
+    @Override
+    public boolean isExtendedAPDULengthSupported() {
+        return service.isExtendedAPDULengthSupported();
+    }
+
+    @Override
+    public boolean isConnectionLost(Exception e) {
+        return service.isConnectionLost(e);
+    }
+
+    public APDUTrace getTrace() {
+        return trace;
+    }
+}
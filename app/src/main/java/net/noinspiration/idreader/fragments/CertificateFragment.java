@@ -134,24 +134,29 @@ public class CertificateFragment extends Fragment {
         // CSCA section
         X509Certificate cscaCertificate = document.getCscaCertificate();
 
-        cscaSN.setText(cscaCertificate.getSerialNumber().toString());
-        cscaAlgorithm.setText(cscaCertificate.getSigAlgName());
-        cscaThumbprint.setText(fromBytes(cscaCertificate.getSignature()));
-        cscaIssuer.setText(cscaCertificate.getIssuerDN().toString());
-        cscaSubject.setText(cscaCertificate.getSubjectDN().toString());
-        cscaValidFrom.setText(cscaCertificate.getNotBefore().toString());
-        cscaValidTo.setText(cscaCertificate.getNotAfter().toString());
+        // Certificates are absent when the document was not verified
+        if (cscaCertificate != null) {
+            cscaSN.setText(cscaCertificate.getSerialNumber().toString());
+            cscaAlgorithm.setText(cscaCertificate.getSigAlgName());
+            cscaThumbprint.setText(fromBytes(cscaCertificate.getSignature()));
+            cscaIssuer.setText(cscaCertificate.getIssuerDN().toString());
+            cscaSubject.setText(cscaCertificate.getSubjectDN().toString());
+            cscaValidFrom.setText(cscaCertificate.getNotBefore().toString());
+            cscaValidTo.setText(cscaCertificate.getNotAfter().toString());
+        }
 
         // DSC section
         X509Certificate dscCertificate = document.getDscCertificate();
 
-        dscSN.setText(dscCertificate.getSerialNumber().toString());
-        dscAlgorithm.setText(dscCertificate.getSigAlgName());
-        dscThumbprint.setText(fromBytes(dscCertificate.getSignature()));
-        dscIssuer.setText(dscCertificate.getIssuerDN().toString());
-        dscSubject.setText(dscCertificate.getSubjectDN().toString());
-        dscValidFrom.setText(dscCertificate.getNotBefore().toString());
-        dscValidTo.setText(dscCertificate.getNotAfter().toString());
+        if (dscCertificate != null) {
+            dscSN.setText(dscCertificate.getSerialNumber().toString());
+            dscAlgorithm.setText(dscCertificate.getSigAlgName());
+            dscThumbprint.setText(fromBytes(dscCertificate.getSignature()));
+            dscIssuer.setText(dscCertificate.getIssuerDN().toString());
+            dscSubject.setText(dscCertificate.getSubjectDN().toString());
+            dscValidFrom.setText(dscCertificate.getNotBefore().toString());
+            dscValidTo.setText(dscCertificate.getNotAfter().toString());
+        }
 
 
         // Data groups
@@ -174,7 +179,11 @@ public class CertificateFragment extends Fragment {
             hash.setText(hexHash);
             control.setText(hexControl);
 
-            if(!hexHash.equals("-")) {
+            if (hexHash.equals(AppProperties.DG_NOT_VERIFIED)) {
+                // Not read with the read profile of the session
+                hash.setText(getString(R.string.not_read));
+                status.setText(getString(R.string.not_verified));
+            } else if(!hexHash.equals("-")) {
                 if(hexControl.equals(hexHash)) {
                     status.setText(getString(R.string.match));
                 } else {
@@ -1,7 +1,5 @@
 package net.noinspiration.idreader.fragments;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -13,6 +11,7 @@ import android.widget.TextView;
 import net.noinspiration.idreader.R;
 import net.noinspiration.idreader.activities.PersonActivity;
 import net.noinspiration.idreader.helper.Person;
+import net.noinspiration.idreader.helper.PhotoLoader;
 
 import java.text.ParseException;
 
@@ -58,8 +57,20 @@ public class IdentityFragment extends Fragment {
         signature = getView().findViewById(R.id.signaturePhoto);
 
         if (person.getPhoto() != null) {
-            Bitmap bmp = BitmapFactory.decodeFile(person.getPhoto());
-            photo.setImageBitmap(bmp);
+            PhotoLoader.load(person.getPhoto(), photo);
+            // Only a preview was decoded while reading, decode the full photo when it is enlarged
+            if (person.getPhotoSource() != null) {
+                final String source = person.getPhotoSource();
+                final String mimeType = person.getPhotoMimeType();
+                photo.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        photo.setOnClickListener(null);
+                        // Replaces the preview, at the size the photo is shown
+                        PhotoLoader.loadSource(source, mimeType, photo);
+                    }
+                });
+            }
         } else {
             Group group = getView().findViewById(R.id.photoGroup);
             group.setVisibility(View.GONE);
@@ -118,8 +129,7 @@ public class IdentityFragment extends Fragment {
         }
 
         if (person.getSignature() != null) {
-            Bitmap bmp = BitmapFactory.decodeFile(person.getSignature());
-            signature.setImageBitmap(bmp);
+            PhotoLoader.load(person.getSignature(), signature);
         } else {
             Group group = getView().findViewById(R.id.signatureGroup);
             group.setVisibility(View.GONE);
@@ -38,7 +38,11 @@ public class AppProperties {
     public final static int NFC_STAGE_3 = 2;
     public final static int NFC_STAGE_4 = 3;
 
+    // Data group hash of a data group that was not read (see ReadProfile)
+    public final static String DG_NOT_VERIFIED = "not verified";
+
     // Image types
+    public final static String IMAGE_JPEG = "image/jpeg";
     public final static String IMAGE_JP2 = "image/jp2";
     public final static String IMAGE_JPEG2000 = "image/jpeg2000";
     public final static String IMAGE_WSQ = "image/x-wsq";
@@ -0,0 +1,190 @@
+package net.noinspiration.idreader.helper;
+
+import android.util.Log;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+/**
+ * Adapts the READ BINARY block size during a session.
+ * Starts from a size every chip handles and grows while the measured throughput improves,
+ * up to the size negotiated with @ChipCapabilities. When the chip rejects a length
+ * (6700, 6Cxx) or a transceive times out, the size falls back to the last one that worked
+ * and is never grown past the failing size again.
+ */
+public class BlockSizeController {
+
+    // Debug tag
+    private final static String TAG = "BlockSizeController";
+
+    // Smallest block size the controller will fall back to
+    public final static int MIN_BLOCK_SIZE = 0x40;
+
+    // Number of successful reads at a given size before trying a bigger one
+    private final static int READS_BEFORE_GROWING = 2;
+    // A bigger block must be at least this much faster to be kept
+    private final static double MIN_GAIN = 1.05;
+    // Maximum number of retries of a single block after a failure
+    public final static int MAX_RETRIES = 3;
+
+    // Status words
+    private final static int SW_WRONG_LENGTH = 0x6700;
+    private final static int SW_CORRECT_LENGTH_PREFIX = 0x6C00;
+
+    // Current block size and limits
+    private int blockSize;
+    private int ceiling;
+    private final int maxBlockSize;
+    // Responses are wrapped in secure messaging, lengths given by the chip include its overhead
+    private final boolean secureMessaging;
+
+    // Last size that was read successfully and its throughput (bytes per millisecond)
+    private int lastGoodSize;
+    private double lastGoodThroughput;
+
+    // Measurements at the current size
+    private int successes;
+    private double throughput;
+
+    /**
+     * Constructor for reads under secure messaging, as every read after BAC
+     *
+     * @param maxBlockSize the largest block size the phone and chip agreed on
+     */
+    public BlockSizeController(int maxBlockSize) {
+        this(maxBlockSize, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxBlockSize    the largest block size the phone and chip agreed on
+     * @param secureMessaging true if the responses are wrapped in secure messaging
+     */
+    public BlockSizeController(int maxBlockSize, boolean secureMessaging) {
+        this.secureMessaging = secureMessaging;
+        this.maxBlockSize = Math.max(maxBlockSize, MIN_BLOCK_SIZE);
+        this.ceiling = this.maxBlockSize;
+        this.blockSize = Math.min(this.maxBlockSize, ChipCapabilities.NORMAL_MAX_BLOCK_SIZE);
+        this.lastGoodSize = MIN_BLOCK_SIZE;
+    }
+
+    /**
+     * Starts from the block size that worked with this chip in a previous session, see @ChipProfile
+     * The size keeps growing up to the ceiling if it pays off, and falls back as usual on failure
+     *
+     * @param workingSize the block size that worked
+     * @param ceiling     the block size that must not be exceeded
+     */
+    public synchronized void startFrom(int workingSize, int ceiling) {
+        this.ceiling = Math.max(Math.min(ceiling, maxBlockSize), MIN_BLOCK_SIZE);
+        int size = Math.max(Math.min(workingSize, this.ceiling), MIN_BLOCK_SIZE);
+        lastGoodSize = size;
+        lastGoodThroughput = 0;
+        setBlockSize(size);
+        Log.d(TAG, "Starting from known block size " + size + ", ceiling " + this.ceiling);
+    }
+
+    /**
+     * @return the largest block size confirmed during this session, -1 if none was
+     */
+    public synchronized int getWorkingBlockSize() {
+        return lastGoodThroughput > 0 ? lastGoodSize : -1;
+    }
+
+    /**
+     * @return the block size that must not be exceeded
+     */
+    public synchronized int getCeiling() {
+        return ceiling;
+    }
+
+    /**
+     * @return the block size to use for the next READ BINARY
+     */
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the largest block size that may ever be returned
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * Records a successful READ BINARY and grows the block size when it pays off
+     *
+     * @param requested the number of bytes requested
+     * @param received  the number of bytes received
+     * @param nanos     the time the exchange took
+     */
+    public synchronized void onSuccess(int requested, int received, long nanos) {
+        // Short reads at the end of a file say nothing about the chip
+        if (received < requested || requested != blockSize) {
+            return;
+        }
+
+        double measured = received / Math.max(nanos / 1000000.0, 0.001);
+        throughput = successes == 0 ? measured : (throughput * successes + measured) / (successes + 1);
+        successes++;
+
+        if (successes < READS_BEFORE_GROWING) {
+            return;
+        }
+
+        if (blockSize > lastGoodSize && lastGoodThroughput > 0 && throughput < lastGoodThroughput * MIN_GAIN) {
+            // Bigger blocks do not help this chip, go back and stop growing
+            Log.d(TAG, "No gain at " + blockSize + " bytes, keeping " + lastGoodSize);
+            ceiling = lastGoodSize;
+            setBlockSize(lastGoodSize);
+            return;
+        }
+
+        lastGoodSize = blockSize;
+        lastGoodThroughput = throughput;
+
+        if (blockSize < ceiling) {
+            setBlockSize(Math.min(blockSize * 2, ceiling));
+            Log.d(TAG, "Growing block size to " + blockSize);
+        }
+    }
+
+    /**
+     * Records a failed READ BINARY and shrinks the block size
+     *
+     * @param requested the number of bytes requested
+     * @param e         the exception thrown by the exchange
+     * @return true if the read should be retried with the new block size
+     */
+    public synchronized boolean onFailure(int requested, CardServiceException e) {
+        int sw = e.getSW();
+
+        if ((sw & 0xFF00) == SW_CORRECT_LENGTH_PREFIX && (sw & 0xFF) > 0) {
+            // The chip tells us the length it can return, secure messaging included
+            int length = (sw & 0xFF) - (secureMessaging ? ChipCapabilities.SECURE_MESSAGING_OVERHEAD : 0);
+            ceiling = Math.max(Math.min(ceiling, length), MIN_BLOCK_SIZE);
+            setBlockSize(ceiling);
+        } else if (sw == SW_WRONG_LENGTH || sw == -1 || sw == 0) {
+            // Wrong length or timeout, never go this high again
+            ceiling = Math.max(Math.min(ceiling, requested - 1), MIN_BLOCK_SIZE);
+            int fallback = lastGoodSize < requested ? lastGoodSize : requested / 2;
+            setBlockSize(Math.max(Math.min(fallback, ceiling), MIN_BLOCK_SIZE));
+        } else {
+            // Any other status word is not related to the length
+            return false;
+        }
+
+        Log.d(TAG, "Read of " + requested + " bytes failed (SW " + Integer.toHexString(sw)
+                + "), falling back to " + blockSize);
+        return blockSize < requested;
+    }
+
+    private void setBlockSize(int size) {
+        if (size != blockSize) {
+            blockSize = size;
+            successes = 0;
+            throughput = 0;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package net.noinspiration.idreader.helper;
+
+import android.nfc.tech.IsoDep;
+import android.util.Log;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ISO7816;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Determines the largest READ BINARY block size that can be used with a document.
+ * Combines what the phone supports (IsoDep) with what the chip announces in EF.ATR/INFO
+ * (ISO 7816-4 extended length information, see ICAO 9303 part 10)
+ */
+public class ChipCapabilities {
+
+    // Debug tag
+    private final static String TAG = "ChipCapabilities";
+
+    // Maximum length of a short APDU response (Le = 00)
+    public final static int NORMAL_MAX_TRANSCEIVE_LENGTH = 256;
+    // Maximum length of an extended APDU response (Le = 0000)
+    public final static int EXTENDED_MAX_TRANSCEIVE_LENGTH = 65536;
+
+    // Secure messaging overhead on a response (DO87 header and padding, DO99, DO8E, status word)
+    final static int SECURE_MESSAGING_OVERHEAD = 33;
+
+    // Largest block size fitting in a short APDU response once secure messaging is applied
+    public final static int NORMAL_MAX_BLOCK_SIZE = NORMAL_MAX_TRANSCEIVE_LENGTH - SECURE_MESSAGING_OVERHEAD;
+
+    // Largest block size ever requested, some chips announce more than they can handle in one go
+    public final static int MAX_EXTENDED_BLOCK_SIZE = 0x0F00;
+
+    // EF.ATR/INFO is read with its short file identifier (READ BINARY, P1 = 0x80 | SFI)
+    private final static byte SFI_ATR_INFO = 0x01;
+    // Extended length information data object in EF.ATR/INFO
+    private final static int TAG_EXTENDED_LENGTH_INFO = 0x7F66;
+
+    private final boolean extendedLengthSupported;
+    private final int maxTransceiveLength;
+    private final int maxBlockSize;
+    // Maximum response length announced by the chip: 0 if not read, -1 if not announced
+    private int chipMaxResponseLength;
+
+    private ChipCapabilities(boolean extendedLengthSupported, int maxTransceiveLength, int maxBlockSize) {
+        this.extendedLengthSupported = extendedLengthSupported;
+        this.maxTransceiveLength = maxTransceiveLength;
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Negotiates the block size for a document. Must be called before the applet is selected
+     * since EF.ATR/INFO lives in the master file
+     *
+     * @param isoDep      The connected NFC tag
+     * @param cardService The card service built on top of the tag
+     * @return The capabilities of the phone and document combination
+     */
+    public static ChipCapabilities negotiate(IsoDep isoDep, CardService cardService) {
+        return negotiate(cardService, isoDep.isExtendedLengthApduSupported(), isoDep.getMaxTransceiveLength());
+    }
+
+    /**
+     * Negotiates the block size for a document reached through any card service
+     * (recorded sessions, emulated documents)
+     *
+     * @param cardService        The card service
+     * @param phoneExtended      Whether the reader side supports extended length APDUs
+     * @param phoneMaxTransceive The maximum transceive length of the reader side
+     * @return The capabilities of the reader and document combination
+     */
+    public static ChipCapabilities negotiate(CardService cardService, boolean phoneExtended, int phoneMaxTransceive) {
+        Log.d(TAG, "Phone max transceive length " + phoneMaxTransceive + ", extended length " + phoneExtended);
+
+        // The phone cannot send extended APDUs, stick to short ones
+        if (!phoneExtended) {
+            return shortLength(phoneMaxTransceive);
+        }
+
+        return negotiate(phoneExtended, phoneMaxTransceive, readMaxResponseLength(cardService));
+    }
+
+    /**
+     * Negotiates the block size for a document whose maximum response length is already known,
+     * without reading EF.ATR/INFO, see @ChipProfile
+     *
+     * @param phoneExtended      Whether the reader side supports extended length APDUs
+     * @param phoneMaxTransceive The maximum transceive length of the reader side
+     * @param chipMaxResponse    The maximum response length of the chip, -1 if not announced
+     * @return The capabilities of the reader and document combination
+     */
+    public static ChipCapabilities negotiate(boolean phoneExtended, int phoneMaxTransceive, int chipMaxResponse) {
+        if (!phoneExtended) {
+            return shortLength(phoneMaxTransceive);
+        }
+
+        ChipCapabilities capabilities = fromChipMaxResponse(phoneMaxTransceive, chipMaxResponse);
+        capabilities.chipMaxResponseLength = chipMaxResponse;
+        return capabilities;
+    }
+
+    /**
+     * Capabilities of a phone supporting extended length with a chip announcing a maximum response length
+     */
+    private static ChipCapabilities fromChipMaxResponse(int phoneMaxTransceive, int chipMaxResponse) {
+        if (chipMaxResponse <= NORMAL_MAX_TRANSCEIVE_LENGTH) {
+            // The chip does not announce extended length support
+            Log.d(TAG, "Extended length not announced by the chip");
+            return shortLength(phoneMaxTransceive);
+        }
+
+        int maxResponse = Math.min(chipMaxResponse, phoneMaxTransceive);
+        int blockSize = Math.min(maxResponse - SECURE_MESSAGING_OVERHEAD, MAX_EXTENDED_BLOCK_SIZE);
+        if (blockSize <= NORMAL_MAX_BLOCK_SIZE) {
+            return shortLength(phoneMaxTransceive);
+        }
+
+        Log.d(TAG, "Using extended length, max response " + maxResponse + ", block size " + blockSize);
+        return new ChipCapabilities(true, maxResponse, blockSize);
+    }
+
+    /**
+     * Capabilities when only short APDUs can be used
+     *
+     * @param phoneMaxTransceive the maximum transceive length of the phone
+     * @return Capabilities using short APDUs
+     */
+    private static ChipCapabilities shortLength(int phoneMaxTransceive) {
+        int maxResponse = Math.min(phoneMaxTransceive, NORMAL_MAX_TRANSCEIVE_LENGTH);
+        // Never more than the phone can receive, the controller needs a block to start from
+        int blockSize = Math.max(maxResponse - SECURE_MESSAGING_OVERHEAD, BlockSizeController.MIN_BLOCK_SIZE);
+        return new ChipCapabilities(false, maxResponse, blockSize);
+    }
+
+    /**
+     * Reads EF.ATR/INFO and extracts the maximum response length announced by the chip
+     *
+     * @param cardService The card service
+     * @return The maximum response length, or -1 when the file or the information is absent
+     */
+    private static int readMaxResponseLength(CardService cardService) {
+        try {
+            CommandAPDU command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_READ_BINARY,
+                    0x80 | SFI_ATR_INFO, 0x00, NORMAL_MAX_TRANSCEIVE_LENGTH);
+            ResponseAPDU response = cardService.transmit(command);
+            if (response.getSW() != (ISO7816.SW_NO_ERROR & 0xFFFF)) {
+                Log.d(TAG, "EF.ATR/INFO not present (SW " + Integer.toHexString(response.getSW()) + ")");
+                return -1;
+            }
+            return parseMaxResponseLength(response.getData());
+        } catch (Exception e) {
+            Log.d(TAG, "Error reading EF.ATR/INFO: " + e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * Looks for the extended length information (tag 7F66) in the content of EF.ATR/INFO
+     * It contains two integers: the maximum command length and the maximum response length
+     *
+     * @param data The content of EF.ATR/INFO
+     * @return The maximum response length, or -1 when not present
+     */
+    static int parseMaxResponseLength(byte[] data) {
+        int index = 0;
+        while (index < data.length) {
+            // Tag (one or two bytes)
+            int tag = data[index++] & 0xFF;
+            if ((tag & 0x1F) == 0x1F && index < data.length) {
+                tag = (tag << 8) | (data[index++] & 0xFF);
+            }
+            if (index >= data.length) {
+                return -1;
+            }
+
+            // Length
+            int length = data[index++] & 0xFF;
+            if (length == 0x81 && index < data.length) {
+                length = data[index++] & 0xFF;
+            } else if (length == 0x82 && index + 1 < data.length) {
+                length = ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+                index += 2;
+            }
+
+            if (tag == TAG_EXTENDED_LENGTH_INFO) {
+                // Maximum command length followed by the maximum response length
+                int offset = index;
+                int end = Math.min(index + length, data.length);
+                int[] values = new int[2];
+                for (int i = 0; i < 2 && offset + 2 <= end; i++) {
+                    int valueLength = data[offset + 1] & 0xFF;
+                    int value = 0;
+                    for (int j = 0; j < valueLength && offset + 2 + j < end; j++) {
+                        value = (value << 8) | (data[offset + 2 + j] & 0xFF);
+                    }
+                    values[i] = value;
+                    offset += 2 + valueLength;
+                }
+                return values[1] > 0 ? values[1] : -1;
+            }
+            index += length;
+        }
+        return -1;
+    }
+
+    /* ------------------------ GETTERS --------------------- */
+
+    public boolean isExtendedLengthSupported() {
+        return extendedLengthSupported;
+    }
+
+    public int getMaxTransceiveLength() {
+        return maxTransceiveLength;
+    }
+
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * @return the maximum response length announced by the chip, 0 if not read, -1 if not announced
+     */
+    public int getChipMaxResponseLength() {
+        return chipMaxResponseLength;
+    }
+}
@@ -0,0 +1,146 @@
+package net.noinspiration.idreader.helper;
+
+import android.util.SparseIntArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What was learnt about a chip during previous sessions, see @ChipProfileCache:
+ * the maximum response length announced in EF.ATR/INFO, the READ BINARY block size that worked,
+ * the data groups present and the size of every file.
+ * Everything is a hint: a wrong value only costs the probing it was meant to save.
+ */
+public class ChipProfile {
+
+    // Maximum response length of the chip: 0 if never read, -1 if not announced
+    private int maxResponseLength;
+    // Block size that worked and the size that must not be exceeded, 0 if unknown
+    private int blockSize;
+    private int blockSizeCeiling;
+    // Data groups present on the chip (from the SOD), null if unknown
+    private Set<Integer> dataGroups;
+    // File sizes by file identifier
+    private final SparseIntArray fileSizes = new SparseIntArray();
+    // Last time the chip was read, in ms since epoch
+    private long lastSeen;
+
+    public int getMaxResponseLength() {
+        return maxResponseLength;
+    }
+
+    public void setMaxResponseLength(int maxResponseLength) {
+        this.maxResponseLength = maxResponseLength;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockSizeCeiling() {
+        return blockSizeCeiling;
+    }
+
+    /**
+     * @param blockSize the block size that worked
+     * @param ceiling   the block size that must not be exceeded
+     */
+    public void setBlockSize(int blockSize, int ceiling) {
+        this.blockSize = blockSize;
+        this.blockSizeCeiling = ceiling;
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return false only if the data group is known to be absent
+     */
+    public synchronized boolean hasDataGroup(int dataGroup) {
+        return dataGroups == null || dataGroups.contains(dataGroup);
+    }
+
+    /**
+     * @return the data groups present on the chip, null if unknown
+     */
+    public synchronized Set<Integer> getDataGroups() {
+        return dataGroups == null ? null : new TreeSet<>(dataGroups);
+    }
+
+    public synchronized void setDataGroups(Set<Integer> dataGroups) {
+        this.dataGroups = new TreeSet<>(dataGroups);
+    }
+
+    /**
+     * @param file the file identifier
+     * @return the size of the file, 0 if unknown
+     */
+    public synchronized int getFileSize(short file) {
+        return fileSizes.get(file & 0xFFFF);
+    }
+
+    public synchronized void setFileSize(short file, int size) {
+        fileSizes.put(file & 0xFFFF, size);
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /* ------------------------ SERIALIZATION --------------------- */
+
+    /**
+     * @return the profile as JSON, to be stored by @ChipProfileCache
+     * @throws JSONException When serializing fails
+     */
+    synchronized String toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("maxResponseLength", maxResponseLength);
+        json.put("blockSize", blockSize);
+        json.put("blockSizeCeiling", blockSizeCeiling);
+        json.put("lastSeen", lastSeen);
+        if (dataGroups != null) {
+            json.put("dataGroups", new JSONArray(dataGroups));
+        }
+        JSONObject files = new JSONObject();
+        for (int i = 0; i < fileSizes.size(); i++) {
+            files.put(Integer.toString(fileSizes.keyAt(i)), fileSizes.valueAt(i));
+        }
+        json.put("fileSizes", files);
+        return json.toString();
+    }
+
+    /**
+     * @param string a profile serialized with @toJSON
+     * @return the profile
+     * @throws JSONException When the string is not a valid profile
+     */
+    static ChipProfile fromJSON(String string) throws JSONException {
+        JSONObject json = new JSONObject(string);
+        ChipProfile profile = new ChipProfile();
+        profile.maxResponseLength = json.getInt("maxResponseLength");
+        profile.blockSize = json.getInt("blockSize");
+        profile.blockSizeCeiling = json.getInt("blockSizeCeiling");
+        profile.lastSeen = json.getLong("lastSeen");
+        JSONArray dataGroups = json.optJSONArray("dataGroups");
+        if (dataGroups != null) {
+            profile.dataGroups = new TreeSet<>();
+            for (int i = 0; i < dataGroups.length(); i++) {
+                profile.dataGroups.add(dataGroups.getInt(i));
+            }
+        }
+        JSONObject files = json.getJSONObject("fileSizes");
+        JSONArray names = files.names();
+        for (int i = 0; names != null && i < names.length(); i++) {
+            String name = names.getString(i);
+            profile.fileSizes.put(Integer.parseInt(name), files.getInt(name));
+        }
+        return profile;
+    }
+}
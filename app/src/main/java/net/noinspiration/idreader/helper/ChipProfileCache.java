@@ -0,0 +1,131 @@
+package net.noinspiration.idreader.helper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+
+import static net.noinspiration.idreader.identitydocument.HelperFunctions.fromBytes;
+
+/**
+ * Persistent cache of @ChipProfile, so that documents read again (staff badges, repeat
+ * travellers) skip the probing of previous sessions.
+ * Chips are identified by a salted SHA-256 of what is known before reading (document number and
+ * expiry date), the salt is random and never leaves the application: the cache does not reveal
+ * which documents were read.
+ */
+public class ChipProfileCache {
+
+    // Debug tag
+    private final static String TAG = "ChipProfileCache";
+
+    private final static String PREFERENCES = "chip_profiles";
+    private final static String KEY_SALT = "salt";
+    private final static String PREFIX_PROFILE = "profile_";
+
+    // Oldest profiles are removed above this number
+    private final static int MAX_PROFILES = 256;
+
+    private final SharedPreferences preferences;
+    private final byte[] salt;
+
+    /**
+     * Constructor
+     *
+     * @param context the application context
+     */
+    public ChipProfileCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String storedSalt = preferences.getString(KEY_SALT, null);
+        if (storedSalt == null) {
+            byte[] newSalt = new byte[16];
+            new SecureRandom().nextBytes(newSalt);
+            storedSalt = Base64.encodeToString(newSalt, Base64.NO_WRAP);
+            preferences.edit().putString(KEY_SALT, storedSalt).apply();
+        }
+        salt = Base64.decode(storedSalt, Base64.NO_WRAP);
+    }
+
+    /**
+     * @param chip the identity of the chip (document number and expiry date)
+     * @return the profile of the chip, null if it was never read
+     */
+    public ChipProfile get(String chip) {
+        String json = preferences.getString(PREFIX_PROFILE + hash(chip), null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return ChipProfile.fromJSON(json);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid chip profile: " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Saves the profile of a chip, removing the oldest profile if the cache is full
+     *
+     * @param chip    the identity of the chip (document number and expiry date)
+     * @param profile the profile
+     */
+    public void put(String chip, ChipProfile profile) {
+        profile.setLastSeen(System.currentTimeMillis());
+        String key = PREFIX_PROFILE + hash(chip);
+        SharedPreferences.Editor editor = preferences.edit();
+        try {
+            editor.putString(key, profile.toJSON());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error saving chip profile: " + e.toString());
+            return;
+        }
+
+        // Evict the least recently read chip
+        Map<String, ?> entries = preferences.getAll();
+        if (!entries.containsKey(key) && entries.size() - 1 >= MAX_PROFILES) {
+            String oldestKey = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                if (!entry.getKey().startsWith(PREFIX_PROFILE)) {
+                    continue;
+                }
+                try {
+                    long lastSeen = ChipProfile.fromJSON((String) entry.getValue()).getLastSeen();
+                    if (lastSeen < oldest) {
+                        oldest = lastSeen;
+                        oldestKey = entry.getKey();
+                    }
+                } catch (JSONException e) {
+                    oldestKey = entry.getKey();
+                    break;
+                }
+            }
+            if (oldestKey != null) {
+                editor.remove(oldestKey);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * @param chip the identity of the chip
+     * @return the salted hash of the identity
+     */
+    private String hash(String chip) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return fromBytes(digest.digest(chip.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.noinspiration.idreader.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes and stores the images of a document (photo, signature) away from the thread talking
+ * to the chip: an image is handed over as soon as its data group is read, and the chip keeps
+ * sending the remaining data groups while it is decoded. The results are joined before the
+ * document is delivered.
+ */
+public class DecodePool {
+
+    // The photo and the signature of a document
+    private final static int THREADS = 2;
+    // Tasks waiting for a thread, the submitting thread runs the task itself beyond that
+    private final static int QUEUE_SIZE = 8;
+    // Idle threads are stopped after this delay, in seconds
+    private final static int KEEP_ALIVE = 30;
+
+    private final static ThreadPoolExecutor executor;
+
+    static {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Decode-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private DecodePool() {
+    }
+
+    /**
+     * Submits a decoding task
+     *
+     * @param task The task to run
+     * @param <T>  The result type of the task
+     * @return a future holding the result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Waits for a decoding task
+     *
+     * @param task The task submitted with @submit
+     * @param <T>  The result type of the task
+     * @return the result of the task
+     * @throws IOException When the task failed or the thread was interrupted
+     */
+    public static <T> T join(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding an image");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
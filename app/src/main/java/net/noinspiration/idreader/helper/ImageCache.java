@@ -0,0 +1,185 @@
+package net.noinspiration.idreader.helper;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Stores the images of the documents read (photos, signatures) in the cache directory, under a
+ * name derived from the hash of the data group they come from: the same document read again
+ * finds its images already stored and converted, and sessions running side by side never write
+ * to the same file. A file is never rewritten once stored: it is written under a temporary
+ * name and renamed.
+ * The images are kept within a byte budget, the least recently used are deleted first.
+ */
+public class ImageCache {
+
+    // Debug tag
+    private final static String TAG = "ImageCache";
+
+    private final static String DIRECTORY = "images";
+    // Bytes the images can use on disk
+    private final static long BUDGET = 16 * 1024 * 1024;
+
+    private ImageCache() {
+    }
+
+    /**
+     * Finds a stored image
+     *
+     * @param context   Application context
+     * @param key       the key of the image, see @getKey
+     * @param extension the extension the image was stored with
+     * @return the path of the image, null if it is not stored
+     */
+    public static synchronized String get(Context context, String key, String extension) {
+        File file = new File(getDirectory(context), key + extension);
+        return file.exists() ? touch(file) : null;
+    }
+
+    /**
+     * Stores an image, if it is not stored yet
+     *
+     * @param context   Application context
+     * @param key       the key of the image, see @getKey
+     * @param extension the extension of the file
+     * @param image     the array holding the image
+     * @param offset    the offset of the image in the array
+     * @param length    the length of the image
+     * @return the path of the image
+     * @throws IOException When the image cannot be written
+     */
+    public static String put(Context context, String key, String extension, byte[] image, int offset, int length) throws IOException {
+        File directory = getDirectory(context);
+        File target = new File(directory, key + extension);
+        synchronized (ImageCache.class) {
+            if (target.exists()) {
+                return touch(target);
+            }
+        }
+
+        // Written outside of the lock, renamed once complete
+        File temporary = File.createTempFile(key, ".tmp", directory);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temporary)) {
+                out.write(image, offset, length);
+                out.getFD().sync();
+            }
+            synchronized (ImageCache.class) {
+                // Another session stored the same image meanwhile
+                if (!target.exists() && !temporary.renameTo(target)) {
+                    throw new IOException("Could not store " + target);
+                }
+                evict(target);
+                return target.getPath();
+            }
+        } finally {
+            if (temporary.exists() && !temporary.delete()) {
+                Log.d(TAG, "Could not delete " + temporary);
+            }
+        }
+    }
+
+    /**
+     * Checks that a stored image is still there, and marks it as used
+     *
+     * @param path the path of the image, can be null
+     * @return the path, null if the image was deleted
+     */
+    public static synchronized String resolve(String path) {
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        return file.exists() ? touch(file) : null;
+    }
+
+    /**
+     * Deletes every stored image, so that the next readings store and convert their images
+     * again (e.g. benchmarks)
+     *
+     * @param context Application context
+     */
+    public static synchronized void clear(Context context) {
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            // Temporary files are being written by another session
+            if (!file.getName().endsWith(".tmp") && !file.delete()) {
+                Log.d(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @param dataGroupHash the hash of the data group holding the image, hexadecimal
+     * @param variant       which image of the data group, or which conversion of it
+     * @return the key of the image
+     */
+    public static String getKey(String dataGroupHash, String variant) {
+        return dataGroupHash.toLowerCase() + "-" + variant;
+    }
+
+    private static File getDirectory(Context context) {
+        File directory = new File(context.getCacheDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Marks a file as used, the modification date orders the files for eviction
+     */
+    private static String touch(File file) {
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            Log.d(TAG, "Could not touch " + file);
+        }
+        return file.getPath();
+    }
+
+    /**
+     * Deletes the least recently used images until the images fit in the budget
+     *
+     * @param keep the image just stored, never deleted
+     */
+    private static void evict(File keep) {
+        File[] files = keep.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= BUDGET) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (total <= BUDGET) {
+                break;
+            }
+            // Temporary files are being written by another session
+            if (file.equals(keep) || file.getName().endsWith(".tmp")) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
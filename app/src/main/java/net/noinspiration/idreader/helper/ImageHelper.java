@@ -7,19 +7,27 @@ import android.graphics.BitmapFactory;
 import android.util.Log;
 
 import org.jnbis.WsqDecoder;
-import org.openJpeg.OpenJPEGJavaDecoder;
+import org.openJpeg.DecodeParameters;
+import org.openJpeg.OpenJPEGDecoderPool;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 public class ImageHelper {
 
-    private static OpenJPEGJavaDecoder decoder = new OpenJPEGJavaDecoder();
     private static String TAG = "ImageHelper";
 
+    // Decoders of JPEG2000 images: the native decoding is serialised, a second decoder only
+    // prepares or converts an image while another one is decoded, see @OpenJPEGDecoderPool
+    private final static int DECODERS = 2;
+    private static OpenJPEGDecoderPool decoders;
+
+    // Resolution levels of a JPEG2000 photo skipped for its preview: half the width and height
+    public final static int PREVIEW_REDUCE = 1;
+
     /**
      * Creates a bitmap from a DG2 passport information
      *
@@ -30,42 +38,12 @@ public class ImageHelper {
      * @throws IOException When decoding the file doesn't work
      */
     public static Bitmap decodeImage(Context context, String mimeType, InputStream inputStream) throws IOException {
-        String inputFile = context.getCacheDir().toString() + "/temp.jp2";
-        String outputFile = context.getCacheDir().toString() + "/decoded.bmp";
         // Check MIME type
         mimeType = mimeType.toLowerCase();
         // JPEG2000 or JP2 (they're the same)
         if (mimeType.equals(AppProperties.IMAGE_JPEG2000) || mimeType.equals(AppProperties.IMAGE_JP2)) {
             Log.i(TAG, "Decoding JPEG2000");
-
-            // Create file from input stream
-            Log.i(TAG, "Creating JP2 file");
-            OutputStream output = new FileOutputStream(new File(context.getCacheDir(), "temp.jp2"));
-            byte[] buffer = new byte[1024];
-            int read;
-            while ((read = inputStream.read(buffer)) != -1) {
-                output.write(buffer, 0, read);
-                Log.i(TAG, "creating image");
-            }
-            output.close();
-
-            // Decode JP2
-            Log.i(TAG, "Decoding JP2 file");
-            String[] parameters = new String[4];
-            parameters[0] = "-i";
-            parameters[1] = inputFile;
-            parameters[2] = "-o";
-            parameters[3] = outputFile;
-
-            decoder.decodeJ2KtoImage(parameters);
-            Log.i(TAG, "Successfully decoded JPEG2000");
-
-            // Create bitmap
-            Log.i(TAG, "Creating bitmap");
-            Bitmap bitmap = BitmapFactory.decodeFile(outputFile);
-            File file = new File(outputFile);
-            file.delete();
-            return bitmap;
+            return decodeJPEG2000(context, readFully(inputStream), null);
         }
         // WSQ
         else if (mimeType.equals(AppProperties.IMAGE_WSQ)) {
@@ -95,4 +73,123 @@ public class ImageHelper {
             }
         }
     }
+
+    /**
+     * Creates a preview of a photo, fast enough to be shown as soon as the photo is read:
+     * JPEG2000 photos are decoded at a lower resolution (@PREVIEW_REDUCE), JPEG photos are
+     * subsampled, other formats are decoded at full size
+     *
+     * @param context  Application context
+     * @param mimeType MIME type of the photo
+     * @param image    the encoded photo
+     * @return a bitmap containing the preview, null if the photo cannot be decoded
+     * @throws IOException When decoding the photo doesn't work
+     */
+    public static Bitmap decodePreview(Context context, String mimeType, byte[] image) throws IOException {
+        mimeType = mimeType.toLowerCase();
+        if (mimeType.equals(AppProperties.IMAGE_JPEG2000) || mimeType.equals(AppProperties.IMAGE_JP2)) {
+            return decodeJPEG2000(context, image, new DecodeParameters().setReduce(PREVIEW_REDUCE));
+        } else if (mimeType.equals(AppProperties.IMAGE_WSQ)) {
+            return decodeImage(context, mimeType, new ByteArrayInputStream(image));
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << PREVIEW_REDUCE;
+        return BitmapFactory.decodeByteArray(image, 0, image.length, options);
+    }
+
+    /**
+     * Decodes a stored photo for a view of the given width: JPEG2000 photos are decoded at the
+     * lowest resolution level still as wide as the view (down to the preview level), other
+     * formats as @decodeImage does
+     *
+     * @param context  Application context
+     * @param mimeType MIME type of the photo
+     * @param path     the file holding the photo as encoded on the document
+     * @param width    the width of the view
+     * @return a bitmap containing the photo, null if the photo cannot be decoded
+     * @throws IOException When decoding the photo doesn't work
+     */
+    public static Bitmap decodeForWidth(Context context, String mimeType, String path, int width) throws IOException {
+        byte[] image;
+        try (InputStream in = new FileInputStream(path)) {
+            image = readFully(in);
+        }
+        String type = mimeType.toLowerCase();
+        if (type.equals(AppProperties.IMAGE_JPEG2000) || type.equals(AppProperties.IMAGE_JP2)) {
+            int reduce = getReduce(getJPEG2000Width(image), width);
+            return decodeJPEG2000(context, image, new DecodeParameters().setReduce(reduce));
+        }
+        return decodeImage(context, mimeType, new ByteArrayInputStream(image));
+    }
+
+    /**
+     * @return the number of resolution levels to skip, the image staying at least as wide as the view
+     */
+    private static int getReduce(int imageWidth, int width) {
+        int reduce = 0;
+        while (reduce < PREVIEW_REDUCE && imageWidth >> (reduce + 1) >= width) {
+            reduce++;
+        }
+        return reduce;
+    }
+
+    /**
+     * @return the width given by the header of a JPEG2000 image (SIZ marker of a codestream,
+     * image header box of a JP2 file), 0 if it is not found
+     */
+    private static int getJPEG2000Width(byte[] image) {
+        // Codestream: SOC, SIZ, Lsiz, Rsiz, then the width (Xsiz)
+        if (image.length >= 12 && (image[0] & 0xFF) == 0xFF && image[1] == 0x4F
+                && (image[2] & 0xFF) == 0xFF && image[3] == 0x51) {
+            return readInt(image, 8);
+        }
+        // JP2 file: "ihdr", the height, then the width
+        for (int i = 0; i + 12 <= image.length; i++) {
+            if (image[i] == 'i' && image[i + 1] == 'h' && image[i + 2] == 'd' && image[i + 3] == 'r') {
+                return readInt(image, i + 8);
+            }
+        }
+        return 0;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Decodes a JPEG2000 image in memory, see @OpenJPEGJavaDecoder.decodeToBitmap
+     *
+     * @param context    Application context
+     * @param image      the JP2 file or J2K codestream
+     * @param parameters the resolution and quality levels to decode, null for the full image
+     * @return a bitmap containing the image
+     * @throws IOException When decoding the image doesn't work
+     */
+    public static Bitmap decodeJPEG2000(Context context, byte[] image, DecodeParameters parameters) throws IOException {
+        Bitmap bitmap = getDecoders(context).decodeToBitmap(image, 0, image.length, parameters);
+        Log.i(TAG, "Successfully decoded JPEG2000");
+        return bitmap;
+    }
+
+    /**
+     * @return the pool of JPEG2000 decoders, created on first use
+     */
+    private static synchronized OpenJPEGDecoderPool getDecoders(Context context) {
+        if (decoders == null) {
+            // The native library hands the image over through private files of the cache directory
+            decoders = new OpenJPEGDecoderPool(context.getApplicationContext().getCacheDir(), DECODERS);
+        }
+        return decoders;
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(inputStream.available(), 1024));
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
 }
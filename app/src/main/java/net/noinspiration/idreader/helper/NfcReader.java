@@ -1,13 +1,17 @@
 package net.noinspiration.idreader.helper;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.nfc.tech.IsoDep;
 import android.util.Log;
 
+import net.noinspiration.idreader.cardservice.APDUStatistics;
+import net.noinspiration.idreader.cardservice.APDUTrace;
+import net.noinspiration.idreader.cardservice.InstrumentedCardService;
+import net.noinspiration.idreader.cardservice.RecordingCardService;
 import net.noinspiration.idreader.identitydocument.DrivingLicenceHelper;
 import net.noinspiration.idreader.identitydocument.PassportHelper;
 import net.noinspiration.idreader.interfaces.InputStreamListener;
+import net.noinspiration.idreader.interfaces.InstrumentationListener;
 import net.noinspiration.idreader.interfaces.NfcInterface;
 import net.sf.scuba.smartcards.CardService;
 
@@ -19,26 +23,36 @@ import org.jmrtd.lds.iso19794.FaceInfo;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_1;
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_2;
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_3;
 import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_4;
+import static net.noinspiration.idreader.identitydocument.HelperFunctions.isTagLost;
 
 /**
  * Class allowing the reading of an NFC chip
  * The two constructors are there for either ID card/Passport or Driving Licence
+ * What is read is decided by a @ReadProfile (everything by default).
+ * When the document leaves the field during reading, what has been read is kept and the reading
+ * continues from there once the document is found again (@resume).
  */
 public class NfcReader implements Runnable, InputStreamListener {
 
     // Debug tag
     private final static String TAG = "NfcReader";
 
+    // Number of times a session can be resumed after losing the document
+    private final static int MAX_RESUMES = 3;
+
     // Needed variables
     private IsoDep isoDep;
     private BACKey bacKey;
@@ -46,6 +60,40 @@ public class NfcReader implements Runnable, InputStreamListener {
     private Context appContext;
     private String mrz;
 
+    // Data groups to read and whether to verify them
+    private ReadProfile readProfile = ReadProfile.full();
+
+    // Authenticated helpers, kept to resume the session
+    private PassportHelper passHelper;
+    private DrivingLicenceHelper dlHelper;
+
+    // Negotiated once, the document does not change when the session is resumed
+    private ChipCapabilities capabilities;
+    private BlockSizeController blockSizeController;
+
+    // What is known about the chip from previous sessions, see @ChipProfileCache
+    private boolean chipProfilesEnabled = true;
+    private ChipProfile chipProfile;
+
+    // Card service to use instead of the NFC tag (recorded or emulated documents)
+    private CardService cardService;
+    // Records every APDU into @traceFile when set
+    private APDUTrace trace;
+    private File traceFile;
+    // Measures every APDU, notifying @instrumentationListener when set
+    private APDUStatistics statistics;
+    private InstrumentationListener instrumentationListener;
+    // Timings of the session, given with the result
+    private ReadMetrics readMetrics;
+
+    // The document was lost during reading, waiting for it to come back. Guarded by this
+    private boolean suspended;
+    private int resumes = 0;
+
+    // Images stored on the @DecodePool while the chip is read, joined by @collectImages
+    private Future<String> photoTask;
+    private Future<String> signatureTask;
+
     // Person info
     private Person person;
     private IdentityDocument identityDocument;
@@ -56,6 +104,14 @@ public class NfcReader implements Runnable, InputStreamListener {
     // Current reading stage
     private int stage = 0;
 
+    // Progress of the whole reading, from the @ReadPlan of the helpers
+    private final InputStreamListener overallProgress = new InputStreamListener() {
+        @Override
+        public void process(int percent) {
+            callingActivity.updateOverallProgress(percent);
+        }
+    };
+
     /**
      * Constructor for Passport/ID card
      *
@@ -90,6 +146,125 @@ public class NfcReader implements Runnable, InputStreamListener {
         this.docType = docType;
     }
 
+    /**
+     * Sets what is read from the document, must be called before the reading starts
+     *
+     * @param readProfile the read profile
+     */
+    public void setReadProfile(ReadProfile readProfile) {
+        this.readProfile = readProfile;
+    }
+
+    /**
+     * Reads through a card service instead of the NFC tag, e.g. a recorded or emulated document in tests
+     * The tag given to the constructor can be null
+     *
+     * @param cardService the card service
+     */
+    public void setCardService(CardService cardService) {
+        this.cardService = cardService;
+    }
+
+    /**
+     * Records every APDU exchanged with the document, see @APDUTrace
+     * The trace is saved when the reading ends, successfully or not
+     *
+     * @param traceFile the file to save the trace to
+     */
+    public void setTraceFile(File traceFile) {
+        this.traceFile = traceFile;
+        this.trace = new APDUTrace();
+    }
+
+    /**
+     * Uses and updates the profiles of chips read before (block size, data groups, file sizes)
+     * Enabled by default, must be called before the reading starts
+     *
+     * @param enabled false to probe the chip as if it was never read
+     */
+    public void setChipProfilesEnabled(boolean enabled) {
+        this.chipProfilesEnabled = enabled;
+    }
+
+    /**
+     * Notifies a listener after every APDU exchanged with the document, see @APDUStatistics
+     * Must be called before the reading starts
+     *
+     * @param listener notified after every APDU, on the reading thread
+     */
+    public void setInstrumentationListener(InstrumentationListener listener) {
+        this.instrumentationListener = listener;
+    }
+
+    /**
+     * @return the APDU measurements of the session, null before the reading starts
+     */
+    public APDUStatistics getAPDUStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return the timings of the session, null before the reading starts
+     */
+    public ReadMetrics getReadMetrics() {
+        return readMetrics;
+    }
+
+    /**
+     * Continues an interrupted reading with the document found again
+     * Authenticates again and reads from the last block received
+     *
+     * @param isoDep The NFC tag, found again
+     * @return false if the reading is not suspended (e.g. already resumed), nothing is done
+     */
+    public boolean resume(IsoDep isoDep) {
+        return resume(isoDep, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                new Thread(runnable).start();
+            }
+        });
+    }
+
+    /**
+     * Continues an interrupted reading with the document found again, on the given executor
+     * (e.g. the thread running every reading of a kiosk)
+     *
+     * @param isoDep   The NFC tag, found again
+     * @param executor Runs the rest of the reading
+     * @return false if the reading is not suspended (e.g. already resumed), nothing is done
+     */
+    public synchronized boolean resume(IsoDep isoDep, Executor executor) {
+        // The tag can be discovered again while a resumed reading runs
+        if (!suspended) {
+            return false;
+        }
+        this.isoDep = isoDep;
+        suspended = false;
+        resumes++;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconnect();
+                    readDocument();
+                    onReadDone();
+                } catch (Exception e) {
+                    onReadError(e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return true if the reading was interrupted and can be resumed with @resume
+     */
+    public synchronized boolean isSuspended() {
+        return suspended;
+    }
+
     /**
      * Callbak for InputStream reading progress
      *
@@ -117,140 +292,395 @@ public class NfcReader implements Runnable, InputStreamListener {
     @Override
     public void run() {
         try {
-            // Connect to the NFC tag and obtain a PassportService to interact with it
-            isoDep.connect();
-            CardService cs = CardService.getInstance(isoDep);
-            PassportService ps = new PassportService(cs, 256, 200, true, true);
+            authenticate();
+            readDocument();
 
-            // PASSPORT/ID CARD
-            if (docType == AppProperties.ACTIVITY_PASSPORT_SCAN) {
+            /* ------------------- CALLBACK ---------------------------------------- */
+            // Successfully read passport/ID
+            onReadDone();
+
+        } catch (Exception e) {
+            onReadError(e);
+        }
+    }
+
+    /**
+     * Delivers the document read, with the timings of the session
+     */
+    private void onReadDone() {
+        saveTrace();
+        saveChipProfile();
+        readMetrics.endStage();
+        readMetrics.setAPDUCount(statistics.getCount());
+        person.setReadMetrics(readMetrics);
+        person.resolveImages();
+        Log.d(TAG, "Read metrics: " + readMetrics);
+        callingActivity.onNfcResult(person);
+    }
+
+    /**
+     * Changes the reading stage, measured by @ReadMetrics, and updates the UI
+     *
+     * @param stage the new stage
+     */
+    private void startStage(int stage) {
+        this.stage = stage;
+        readMetrics.startStage(stage);
+        callingActivity.updateUI(stage);
+    }
+
+    /**
+     * Saves the APDU trace if recording
+     */
+    private void saveTrace() {
+        if (trace == null) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(traceFile)) {
+            trace.write(out);
+            Log.d(TAG, "APDU trace saved to " + traceFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving APDU trace: " + e.toString());
+        }
+    }
 
-                /* ---------------- AUTHENTICATION ------------------- */
+    /**
+     * Handles an error during reading
+     * A lost document suspends the session if it was authenticated, anything else is fatal
+     *
+     * @param e The error
+     */
+    private void onReadError(Exception e) {
+        Log.e(TAG, e.toString());
+        saveTrace();
+        if (readMetrics != null) {
+            readMetrics.endStage();
+        }
+        boolean authenticated = passHelper != null || dlHelper != null;
+        boolean suspend;
+        synchronized (this) {
+            suspend = authenticated && resumes < MAX_RESUMES && isTagLost(e);
+            suspended = suspend;
+        }
+        if (suspend) {
+            Log.i(TAG, "Document lost, waiting for it to resume reading");
+            callingActivity.onTagLost();
+        } else {
+            callingActivity.onNfcError();
+        }
+    }
 
-                stage = NFC_STAGE_1;
-                callingActivity.updateUI(NFC_STAGE_1);
+    /**
+     * Connects to the document and authenticates
+     *
+     * @throws Exception When connecting or authenticating fails
+     */
+    private void authenticate() throws Exception {
+        statistics = new APDUStatistics(instrumentationListener);
+        readMetrics = new ReadMetrics(docType);
+        // Connecting and negotiating are part of the authentication stage
+        readMetrics.startStage(NFC_STAGE_1);
+
+        // Connect to the NFC tag and obtain a PassportService to interact with it
+        CardService cs = connect();
+
+        // Chips read before skip the probing of previous sessions
+        ChipProfileCache chipProfileCache = chipProfilesEnabled ? new ChipProfileCache(appContext) : null;
+        chipProfile = chipProfileCache == null ? null : chipProfileCache.get(getChipIdentity());
+        boolean knownChip = chipProfile != null;
+        if (!knownChip) {
+            chipProfile = new ChipProfile();
+        }
 
-                // Authentication
-                PassportHelper passHelper = new PassportHelper(ps, bacKey, appContext, this);
+        // Use block sizes up to the largest one supported by both the phone and the chip
+        boolean phoneExtended;
+        int phoneMaxTransceive;
+        if (isoDep != null) {
+            phoneExtended = isoDep.isExtendedLengthApduSupported();
+            phoneMaxTransceive = isoDep.getMaxTransceiveLength();
+        } else {
+            phoneExtended = cs.isExtendedAPDULengthSupported();
+            phoneMaxTransceive = phoneExtended ?
+                    ChipCapabilities.EXTENDED_MAX_TRANSCEIVE_LENGTH : ChipCapabilities.NORMAL_MAX_TRANSCEIVE_LENGTH;
+        }
+        if (knownChip && chipProfile.getMaxResponseLength() != 0) {
+            capabilities = ChipCapabilities.negotiate(phoneExtended, phoneMaxTransceive, chipProfile.getMaxResponseLength());
+        } else {
+            capabilities = ChipCapabilities.negotiate(cs, phoneExtended, phoneMaxTransceive);
+            if (capabilities.getChipMaxResponseLength() != 0) {
+                chipProfile.setMaxResponseLength(capabilities.getChipMaxResponseLength());
+            }
+        }
+        blockSizeController = new BlockSizeController(capabilities.getMaxBlockSize());
+        if (knownChip && chipProfile.getBlockSize() > 0) {
+            blockSizeController.startFrom(chipProfile.getBlockSize(), chipProfile.getBlockSizeCeiling());
+        }
+        PassportService ps = new PassportService(cs, capabilities.getMaxTransceiveLength(),
+                capabilities.getMaxBlockSize(), true, true);
 
-                /* ----------------- PERSON DATA ----------------------- */
+        /* ---------------- AUTHENTICATION ------------------- */
 
-                stage = NFC_STAGE_2;
-                callingActivity.updateUI(NFC_STAGE_2);
+        startStage(NFC_STAGE_1);
 
-                passHelper.readDG1();
-                // Create person and identity document objects
-                identityDocument = new IdentityDocument(passHelper.getDocumentType(),
-                        null, passHelper.getIssueDate(), passHelper.getExpDate(),
-                        passHelper.getDocNumber(), null, passHelper.getIssuingState());
+        if (docType == AppProperties.ACTIVITY_PASSPORT_SCAN) {
+            passHelper = new PassportHelper(ps, bacKey, blockSizeController, appContext, this);
+        } else if (docType == AppProperties.ACTIVITY_DL_SCAN) {
+            // Driving licence helper, does authentication
+            dlHelper = new DrivingLicenceHelper(mrz, ps, blockSizeController, appContext, this);
+        }
 
-                person = new Person(passHelper.getFirstName(), passHelper.getLastName(),
-                        passHelper.getDob(), passHelper.getPlaceOfBirth(),
-                        passHelper.getPhoto(), passHelper.getGender(),
-                        passHelper.getNationality(), null, identityDocument);
+        // Authentication itself is plain, secure messaging is measured from here
+        if (passHelper != null) {
+            passHelper.setAPDUStatistics(statistics);
+            passHelper.setReadMetrics(readMetrics);
+            passHelper.setChipProfile(chipProfile);
+        } else if (dlHelper != null) {
+            dlHelper.setAPDUStatistics(statistics);
+            dlHelper.setReadMetrics(readMetrics);
+            dlHelper.setChipProfile(chipProfile);
+        }
+    }
 
+    /**
+     * @return what identifies the chip before reading it: the document number and expiry date
+     * (the issuing state is only known once DG1 is read)
+     */
+    private String getChipIdentity() {
+        if (docType == AppProperties.ACTIVITY_PASSPORT_SCAN) {
+            return docType + "/" + bacKey.getDocumentNumber() + "/" + bacKey.getDateOfExpiry();
+        }
+        return docType + "/" + mrz;
+    }
 
+    /**
+     * Saves what was learnt about the chip during the session for the next one
+     */
+    private void saveChipProfile() {
+        if (!chipProfilesEnabled || chipProfile == null) {
+            return;
+        }
+        int workingBlockSize = blockSizeController.getWorkingBlockSize();
+        if (workingBlockSize > 0) {
+            chipProfile.setBlockSize(workingBlockSize, blockSizeController.getCeiling());
+        }
+        new ChipProfileCache(appContext).put(getChipIdentity(), chipProfile);
+    }
 
-                /* ----------------- PHOTO ----------------------------- */
+    /**
+     * Takes the result of a recent session of the same document, see @SessionCache
+     *
+     * @param fingerprint the fingerprint of the SOD read when planning, can be null
+     * @return true if the person was taken from a recent session
+     */
+    private boolean reuseSession(String fingerprint) {
+        Person cached = SessionCache.get(fingerprint, readProfile);
+        if (cached == null) {
+            return false;
+        }
+        // Another chip could present the same SOD, the holder information must match it too
+        boolean matches = docType == AppProperties.ACTIVITY_PASSPORT_SCAN ?
+                passHelper.matchesSOD(1) : dlHelper.matchesSOD(1);
+        if (!matches) {
+            SessionCache.invalidate(fingerprint);
+            return false;
+        }
+        Log.i(TAG, "Document read recently, reusing its verified session");
+        person = cached;
+        identityDocument = cached.getIdentityDocument();
+        return true;
+    }
 
-                stage = NFC_STAGE_3;
-                callingActivity.updateUI(NFC_STAGE_3);
+    /**
+     * Waits for the images stored on the @DecodePool and gives them to the person
+     *
+     * @throws IOException When an image cannot be stored
+     */
+    private void collectImages() throws IOException {
+        if (photoTask != null) {
+            Future<String> task = photoTask;
+            photoTask = null;
+            person.setPhoto(DecodePool.join(task));
+            if (docType == AppProperties.ACTIVITY_PASSPORT_SCAN) {
+                person.setPhotoSource(passHelper.getPhotoSource(), passHelper.getPhotoMimeType());
+            }
+        }
+        if (signatureTask != null) {
+            Future<String> task = signatureTask;
+            signatureTask = null;
+            person.setSignature(DecodePool.join(task));
+        }
+    }
 
-                passHelper.readDG2();
-                person.setPhoto(passHelper.getPhoto());
+    /**
+     * Keeps the result of a verified session for the document to be put back on the phone
+     *
+     * @param fingerprint the fingerprint of the SOD read when planning, can be null
+     */
+    private void keepSession(String fingerprint) {
+        if (readProfile.isVerify() && "true".equals(identityDocument.getLegitimate())) {
+            SessionCache.put(fingerprint, readProfile, person);
+        }
+    }
 
-                /* ----------------- CERTIFICATE VALIDATION ------------ */
+    /**
+     * Connects to the document, through the NFC tag or the card service set with @setCardService
+     *
+     * @return the card service to talk to the document, measuring and recording if asked to
+     * @throws Exception When connecting fails
+     */
+    private CardService connect() throws Exception {
+        CardService cs;
+        if (cardService != null) {
+            cs = cardService;
+            cs.open();
+        } else {
+            isoDep.connect();
+            cs = CardService.getInstance(isoDep);
+        }
+        if (trace != null) {
+            cs = new RecordingCardService(cs, trace);
+        }
+        cs = new InstrumentedCardService(cs, statistics);
+        return cs;
+    }
 
-                stage = NFC_STAGE_4;
-                callingActivity.updateUI(NFC_STAGE_4);
+    /**
+     * Connects to the document found again and authenticates, keeping what has been read
+     *
+     * @throws Exception When connecting or authenticating fails
+     */
+    private void reconnect() throws Exception {
+        CardService cs = connect();
+        PassportService ps = new PassportService(cs, capabilities.getMaxTransceiveLength(),
+                capabilities.getMaxBlockSize(), true, true);
 
-                passHelper.checkLegitimacy();
-                identityDocument.setLegitimate(passHelper.getCertified());
-                identityDocument.setValidityBooleans(passHelper.isAuthenticationSuccess(),
-                        passHelper.isDatagroupHashesSuccess(), passHelper.isDocumentSignerSuccess(),
-                        passHelper.isCountrySignerSuccess());
+        startStage(NFC_STAGE_1);
+
+        if (docType == AppProperties.ACTIVITY_PASSPORT_SCAN) {
+            passHelper.reauthenticate(ps);
+        } else if (docType == AppProperties.ACTIVITY_DL_SCAN) {
+            dlHelper.reauthenticate(ps);
+        }
+    }
+
+    /**
+     * Reads the document according to the read profile
+     * Called again when the session is resumed, files already read come from the session cache
+     *
+     * @throws Exception When reading fails
+     */
+    private void readDocument() throws Exception {
+        // PASSPORT/ID CARD
+        if (docType == AppProperties.ACTIVITY_PASSPORT_SCAN) {
+            passHelper.setReadProfile(readProfile);
+            // Files present on the document, the SOD is read now when verifying
+            passHelper.planReading(overallProgress);
+            // Same document read a moment ago, its data and verification are reused
+            String fingerprint = passHelper.getSODFingerprint();
+            if (reuseSession(fingerprint)) {
+                return;
+            }
+
+            /* ----------------- PERSON DATA ----------------------- */
+
+            startStage(NFC_STAGE_2);
+
+            passHelper.readDG1();
+            // Create person and identity document objects
+            identityDocument = new IdentityDocument(passHelper.getDocumentType(),
+                    null, passHelper.getIssueDate(), passHelper.getExpDate(),
+                    passHelper.getDocNumber(), null, passHelper.getIssuingState());
+
+            person = new Person(passHelper.getFirstName(), passHelper.getLastName(),
+                    passHelper.getDob(), passHelper.getPlaceOfBirth(),
+                    passHelper.getPhoto(), passHelper.getGender(),
+                    passHelper.getNationality(), null, identityDocument);
 
-                identityDocument.setSecurityFeatures(passHelper.getDscCertificate(),
-                        passHelper.getCscaCertificate(), passHelper.getDatagroupControl(),
-                        passHelper.getDatagroupHashes());
+            /* ----------------- PHOTO ----------------------------- */
 
+            if (readProfile.includes(2)) {
+                startStage(NFC_STAGE_3);
+
+                photoTask = passHelper.readDG2();
             }
 
-            // DRIVING LICENCE
-            else if (docType == AppProperties.ACTIVITY_DL_SCAN) {
+            /* ----------------- CERTIFICATE VALIDATION ------------ */
 
-                /* ----------------- AUTHENTICATION ------------------------------ */
-                stage = NFC_STAGE_1;
-                callingActivity.updateUI(NFC_STAGE_1);
+            if (readProfile.isVerify()) {
+                startStage(NFC_STAGE_4);
 
-                // Driving licence helper, does authentication
-                DrivingLicenceHelper dlHelper = new DrivingLicenceHelper(mrz, ps, appContext, this);
+                passHelper.checkLegitimacy();
+            }
+            identityDocument.setLegitimate(readProfile.isVerify() && passHelper.getCertified());
+            identityDocument.setValidityBooleans(passHelper.isAuthenticationSuccess(),
+                    passHelper.isDatagroupHashesSuccess(), passHelper.isDocumentSignerSuccess(),
+                    passHelper.isCountrySignerSuccess());
 
+            identityDocument.setSecurityFeatures(passHelper.getDscCertificate(),
+                    passHelper.getCscaCertificate(), passHelper.getDatagroupControl(),
+                    passHelper.getDatagroupHashes());
+            collectImages();
+            keepSession(fingerprint);
 
-                /* ----------------- PERSON DATA --------------------------------- */
-                stage = NFC_STAGE_2;
-                callingActivity.updateUI(NFC_STAGE_2);
+        }
 
-                // Read person info (name, etc)
-                dlHelper.readDG1();
+        // DRIVING LICENCE
+        else if (docType == AppProperties.ACTIVITY_DL_SCAN) {
+            dlHelper.setReadProfile(readProfile);
+            // Files present on the document, the SOD is read now when verifying
+            dlHelper.planReading(overallProgress);
+            // Same document read a moment ago, its data and verification are reused
+            String fingerprint = dlHelper.getSODFingerprint();
+            if (reuseSession(fingerprint)) {
+                return;
+            }
 
-                // Create person and identity document objects
-                identityDocument = new IdentityDocument(AppProperties.DOCTYPE_DRIVERS_LICENCE,
-                        dlHelper.getIssuingAuthority(), dlHelper.getIssueDate(),
-                        dlHelper.getExpDate(), dlHelper.getDocNumber(), null, dlHelper.getCountry());
-                identityDocument.setDriverLicenseCategories(dlHelper.getCategories());
+            /* ----------------- PERSON DATA --------------------------------- */
+            startStage(NFC_STAGE_2);
 
-                person = new Person(dlHelper.getOtherName(), dlHelper.getLastName(),
-                        dlHelper.getDob(), dlHelper.getBirthPlace(), null, dlHelper.getGender(),
-                        dlHelper.getNationality(), dlHelper.getBSN(), identityDocument);
+            // Read person info (name, etc)
+            dlHelper.readDG1();
 
+            // Create person and identity document objects
+            identityDocument = new IdentityDocument(AppProperties.DOCTYPE_DRIVERS_LICENCE,
+                    dlHelper.getIssuingAuthority(), dlHelper.getIssueDate(),
+                    dlHelper.getExpDate(), dlHelper.getDocNumber(), null, dlHelper.getCountry());
+            identityDocument.setDriverLicenseCategories(dlHelper.getCategories());
 
-                /* ------------------- PHOTO ------------------------------------- */
+            person = new Person(dlHelper.getOtherName(), dlHelper.getLastName(),
+                    dlHelper.getDob(), dlHelper.getBirthPlace(), null, dlHelper.getGender(),
+                    dlHelper.getNationality(), dlHelper.getBSN(), identityDocument);
 
-                stage = NFC_STAGE_3;
-                callingActivity.updateUI(NFC_STAGE_3);
 
-                // Read photo
-                Bitmap picture = dlHelper.readDG6();
-                if (picture != null) {
-                    // Store image to file
-                    String output = appContext.getCacheDir().toString() + "/passport.jpg";
-                    FileOutputStream out = new FileOutputStream(output);
-                    picture.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                    person.setPhoto(output);
-                }
+            /* ------------------- PHOTO ------------------------------------- */
 
-                /* ----------------- CERTIFICATE VALIDATION AND SIGNATURE ----------- */
+            if (readProfile.includes(6)) {
+                startStage(NFC_STAGE_3);
 
-                stage = NFC_STAGE_4;
-                callingActivity.updateUI(NFC_STAGE_4);
-                dlHelper.checkLegitimacy();
-                identityDocument.setLegitimate(dlHelper.getCertified());
-                identityDocument.setValidityBooleans(dlHelper.isAuthenticationSuccess(),
-                        dlHelper.isDatagroupHashesSuccess(), dlHelper.isDocumentSignerSuccess(),
-                        dlHelper.isCountrySignerSuccess());
-                identityDocument.setSecurityFeatures(dlHelper.getDscCertificate(),
-                        dlHelper.getCscaCertificate(), dlHelper.getDatagroupControl(),
-                        dlHelper.getDatagroupHashes());
-
-                // Read photo
-                Bitmap signature = dlHelper.readDG5();
-                if (signature != null) {
-                    // Store image to file
-                    String output = appContext.getCacheDir().toString() + "/signature.jpg";
-                    FileOutputStream out = new FileOutputStream(output);
-                    signature.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                    person.setSignature(output);
-                }
+                // Read photo, stored as encoded on the chip while the rest is read
+                photoTask = dlHelper.readDG6();
             }
 
-            /* ------------------- CALLBACK ---------------------------------------- */
-            // Successfully read passport/ID
-            callingActivity.onNfcResult(person);
+            /* ----------------- CERTIFICATE VALIDATION AND SIGNATURE ----------- */
 
-        } catch (Exception e) {
-            Log.e(TAG, e.toString());
-            callingActivity.onNfcError();
+            if (readProfile.isVerify()) {
+                startStage(NFC_STAGE_4);
+                dlHelper.checkLegitimacy();
+            }
+            identityDocument.setLegitimate(readProfile.isVerify() && dlHelper.getCertified());
+            identityDocument.setValidityBooleans(dlHelper.isAuthenticationSuccess(),
+                    dlHelper.isDatagroupHashesSuccess(), dlHelper.isDocumentSignerSuccess(),
+                    dlHelper.isCountrySignerSuccess());
+            identityDocument.setSecurityFeatures(dlHelper.getDscCertificate(),
+                    dlHelper.getCscaCertificate(), dlHelper.getDatagroupControl(),
+                    dlHelper.getDatagroupHashes());
+
+            // Read signature
+            if (readProfile.includes(5)) {
+                signatureTask = dlHelper.readDG5();
+            }
+            collectImages();
+            keepSession(fingerprint);
         }
     }
 }
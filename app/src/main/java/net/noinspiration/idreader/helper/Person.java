@@ -26,9 +26,14 @@ public class Person implements Parcelable {
     private IdentityDocument identityDocument;
     private String bsn;
     private String photo;
+    // Photo as encoded on the document and its MIME type, null if the photo is decoded already
+    private String photoSource;
+    private String photoMimeType;
     private String gender;
     private String nationality;
     private String signature;
+    // Timings of the reading session, null if not measured
+    private ReadMetrics readMetrics;
 
     /*
     -------------- GETTERS/SETTERS ------------------
@@ -67,6 +72,9 @@ public class Person implements Parcelable {
         nationality = in.readString();
         signature = in.readString();
         identityDocument = (IdentityDocument) in.readValue(IdentityDocument.class.getClassLoader());
+        readMetrics = in.readParcelable(ReadMetrics.class.getClassLoader());
+        photoSource = in.readString();
+        photoMimeType = in.readString();
     }
 
     public String getFirstName() {
@@ -97,6 +105,10 @@ public class Person implements Parcelable {
         return gender;
     }
 
+    /**
+     * @return the path of the photo in the @ImageCache, null if there is none or it was evicted
+     * before the result was delivered (see @resolveImages)
+     */
     public String getPhoto() {
         return photo;
     }
@@ -105,6 +117,10 @@ public class Person implements Parcelable {
         return nationality;
     }
 
+    /**
+     * @return the path of the signature in the @ImageCache, null if there is none or it was evicted
+     * before the result was delivered (see @resolveImages)
+     */
     public String getSignature() {
         return signature;
     }
@@ -113,10 +129,58 @@ public class Person implements Parcelable {
         this.photo = photo;
     }
 
+    /**
+     * @return the photo as encoded on the document, to decode at full resolution, null if
+     * @getPhoto is the full photo
+     */
+    public String getPhotoSource() {
+        return photoSource;
+    }
+
+    /**
+     * @return true if none of the images read was evicted from the @ImageCache
+     */
+    boolean hasImages() {
+        return (photo == null || ImageCache.resolve(photo) != null)
+                && (signature == null || ImageCache.resolve(signature) != null)
+                && (photoSource == null || ImageCache.resolve(photoSource) != null);
+    }
+
+    /**
+     * Checks the images are still in the @ImageCache and marks them as used, once, when the
+     * result is delivered: the getters do not touch the disk
+     */
+    void resolveImages() {
+        photo = ImageCache.resolve(photo);
+        signature = ImageCache.resolve(signature);
+        photoSource = ImageCache.resolve(photoSource);
+    }
+
+    public String getPhotoMimeType() {
+        return photoMimeType;
+    }
+
+    /**
+     * @param photoSource   the photo as encoded on the document
+     * @param photoMimeType its MIME type
+     */
+    public void setPhotoSource(String photoSource, String photoMimeType) {
+        this.photoSource = photoSource;
+        this.photoMimeType = photoMimeType;
+    }
+
     public void setSignature(String signature) {
         this.signature = signature;
     }
 
+    public ReadMetrics getReadMetrics() {
+        return readMetrics;
+    }
+
+    public void setReadMetrics(ReadMetrics readMetrics) {
+        this.readMetrics = readMetrics;
+    }
+
     /*
     -------------- ANDROID PARCEL -----------------------
      */
@@ -138,5 +202,8 @@ public class Person implements Parcelable {
         dest.writeString(nationality);
         dest.writeString(signature);
         dest.writeValue(identityDocument);
+        dest.writeParcelable(readMetrics, flags);
+        dest.writeString(photoSource);
+        dest.writeString(photoMimeType);
     }
 }
\ No newline at end of file
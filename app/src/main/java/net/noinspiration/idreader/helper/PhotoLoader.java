@@ -0,0 +1,164 @@
+package net.noinspiration.idreader.helper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the images stored by @PhotoStore into image views, away from the UI thread.
+ * Images are decoded at the size of the view they are shown in (a power of two of subsampling,
+ * see @PhotoStore.decode), kept in a memory-bounded LRU cache so that a view created again
+ * (swiping back to a fragment) shows them at once.
+ * Bitmaps evicted from the cache are not decoded into (inBitmap): a view may still show them.
+ */
+public class PhotoLoader {
+
+    // Debug tag
+    private final static String TAG = "PhotoLoader";
+
+    // Share of the application heap the cache can use
+    private final static int CACHE_FRACTION = 8;
+
+    private final static LruCache<String, Bitmap> cache;
+
+    private final static ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PhotoLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final static Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    static {
+        int maxSize = (int) Math.min(Runtime.getRuntime().maxMemory() / CACHE_FRACTION, Integer.MAX_VALUE);
+        cache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    private PhotoLoader() {
+    }
+
+    /**
+     * Shows an image in a view, decoded at the width of the view once it is laid out
+     * Must be called from the UI thread
+     *
+     * @param path the path of the image, see @PhotoStore
+     * @param view the view showing the image
+     */
+    public static void load(String path, ImageView view) {
+        load(path, null, view);
+    }
+
+    /**
+     * Shows a photo as encoded on the document (JPEG2000, WSQ), decoded at the width of the view
+     * once it is laid out, see @ImageHelper.decodeForWidth
+     * Must be called from the UI thread
+     *
+     * @param path     the path of the photo, see @Person.getPhotoSource
+     * @param mimeType its MIME type
+     * @param view     the view showing the photo, replacing any image being loaded into it
+     */
+    public static void loadSource(String path, String mimeType, ImageView view) {
+        load(path, mimeType, view);
+    }
+
+    private static void load(final String path, final String mimeType, final ImageView view) {
+        view.setTag(path);
+        view.post(new Runnable() {
+            @Override
+            public void run() {
+                // The view wraps its content, it can be as wide as its parent
+                int width = view.getWidth();
+                if (view.getParent() instanceof View) {
+                    width = Math.max(width, ((View) view.getParent()).getWidth());
+                }
+                if (width <= 0) {
+                    width = view.getResources().getDisplayMetrics().widthPixels;
+                }
+                load(path, mimeType, view, width);
+            }
+        });
+    }
+
+    private static void load(final String path, final String mimeType, final ImageView view, final int width) {
+        if (!path.equals(view.getTag())) {
+            return;
+        }
+        // Files of the @ImageCache are never rewritten, their path names their content
+        final String key = path + "@" + width;
+        Bitmap cached = cache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        final Context context = view.getContext().getApplicationContext();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = mimeType == null ? decode(path, width) : decodeSource(context, path, mimeType, width);
+                if (bitmap == null) {
+                    return;
+                }
+                cache.put(key, bitmap);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The view was given another image meanwhile
+                        if (path.equals(view.getTag())) {
+                            view.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decodes a photo as encoded on the document
+     *
+     * @return the bitmap, null if the photo cannot be decoded
+     */
+    private static Bitmap decodeSource(Context context, String path, String mimeType, int width) {
+        try {
+            return ImageHelper.decodeForWidth(context, mimeType, path, width);
+        } catch (IOException e) {
+            Log.e(TAG, "Error decoding photo: " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an image, subsampled to the width of its view
+     *
+     * @return the bitmap, null if the file cannot be decoded
+     */
+    private static Bitmap decode(String path, int width) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = PhotoStore.getSampleSize(options.outWidth, options.outHeight, width, 1);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(path, options);
+    }
+}
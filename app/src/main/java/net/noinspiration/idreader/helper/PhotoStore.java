@@ -0,0 +1,133 @@
+package net.noinspiration.idreader.helper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Stores the images read from a document (photo, signature) in the @ImageCache, as they
+ * are encoded on the chip: a JPEG photo is written as is and decoded once, when it is shown,
+ * instead of being decoded, re-encoded and decoded again.
+ * Only the formats Android cannot display (JPEG2000, WSQ) are decoded while reading and
+ * re-encoded as JPEG, once per document: a conversion already in the cache is reused.
+ */
+public class PhotoStore {
+
+    // Formats BitmapFactory decodes
+    private final static String[] DISPLAYABLE = {AppProperties.IMAGE_JPEG, "image/png", "image/gif",
+            "image/bmp", "image/webp"};
+
+    // Quality of the JPEG images re-encoded from other formats
+    private final static int QUALITY = 100;
+    // Extension of the JPEG images re-encoded from other formats
+    private final static String CONVERTED_EXTENSION = ".jpg";
+
+    private PhotoStore() {
+    }
+
+    /**
+     * @param mimeType the MIME type of an image
+     * @return true if Android can display the image without it being converted
+     */
+    public static boolean isDisplayable(String mimeType) {
+        return mimeType != null && Arrays.asList(DISPLAYABLE).contains(mimeType.toLowerCase());
+    }
+
+    /**
+     * Stores an image so that it can be displayed
+     * Displayable images are written as is, others are decoded (as a preview for JPEG2000, see
+     * @ImageHelper.decodePreview) and re-encoded as JPEG
+     *
+     * @param context  Application context
+     * @param key      the key of the image in the @ImageCache
+     * @param mimeType the MIME type of the image
+     * @param image    the array holding the image
+     * @param offset   the offset of the image in the array
+     * @param length   the length of the image
+     * @return the path of a file BitmapFactory can decode, null if the image cannot be decoded
+     * @throws IOException When the file cannot be written or the image decoded
+     */
+    public static String store(Context context, String key, String mimeType, byte[] image, int offset, int length) throws IOException {
+        if (isDisplayable(mimeType)) {
+            return write(context, key, mimeType, image, offset, length);
+        }
+        String cached = ImageCache.get(context, key, CONVERTED_EXTENSION);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] encoded = offset == 0 && length == image.length ? image : Arrays.copyOfRange(image, offset, offset + length);
+        Bitmap bitmap = ImageHelper.decodePreview(context, mimeType, encoded);
+        if (bitmap == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+        return ImageCache.put(context, key, CONVERTED_EXTENSION, out.toByteArray(), 0, out.size());
+    }
+
+    /**
+     * Writes an image as it is encoded
+     *
+     * @param context  Application context
+     * @param key      the key of the image in the @ImageCache
+     * @param mimeType the MIME type of the image, gives the extension of the file
+     * @param image    the array holding the image
+     * @param offset   the offset of the image in the array
+     * @param length   the length of the image
+     * @return the path of the file
+     * @throws IOException When the file cannot be written
+     */
+    public static String write(Context context, String key, String mimeType, byte[] image, int offset, int length) throws IOException {
+        return ImageCache.put(context, key, getExtension(mimeType), image, offset, length);
+    }
+
+    /**
+     * Decodes a stored image for a view of the given size: the image is subsampled by the
+     * largest power of two that keeps it at least as large as the view
+     *
+     * @param path   the path returned by @store
+     * @param width  the width of the view, 0 for the full image
+     * @param height the height of the view, 0 for the full image
+     * @return the bitmap, null if the file cannot be decoded
+     */
+    public static Bitmap decode(String path, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (width > 0 && height > 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, width, height);
+            options.inJustDecodeBounds = false;
+        }
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * @return the largest power of two dividing the image size without going under the view size
+     */
+    static int getSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static String getExtension(String mimeType) {
+        switch (mimeType.toLowerCase()) {
+            case AppProperties.IMAGE_JPEG:
+                return ".jpg";
+            case AppProperties.IMAGE_JP2:
+            case AppProperties.IMAGE_JPEG2000:
+                return ".jp2";
+            case AppProperties.IMAGE_WSQ:
+                return ".wsq";
+            default:
+                int slash = mimeType.indexOf('/');
+                return slash >= 0 ? "." + mimeType.substring(slash + 1).toLowerCase() : ".img";
+        }
+    }
+}
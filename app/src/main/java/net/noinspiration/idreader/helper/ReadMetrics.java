@@ -0,0 +1,261 @@
+package net.noinspiration.idreader.helper;
+
+import android.os.Debug;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_1;
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_2;
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_3;
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_4;
+
+/**
+ * Timings of a reading session, carried with the @Person read:
+ * wall-clock and CPU time of every NFC stage, bytes received per file, number of APDUs,
+ * photo decoding time and time of every verification check.
+ * Sessions are logged by @ReadMetricsLog
+ */
+public class ReadMetrics implements Parcelable {
+
+    @SuppressWarnings("unused")
+    public static final Creator<ReadMetrics> CREATOR = new Creator<ReadMetrics>() {
+        @Override
+        public ReadMetrics createFromParcel(Parcel in) {
+            return new ReadMetrics(in);
+        }
+
+        @Override
+        public ReadMetrics[] newArray(int size) {
+            return new ReadMetrics[size];
+        }
+    };
+
+    // Verification checks
+    public final static String CHECK_CSCA = "CSCA";
+    public final static String CHECK_DSC = "DSC";
+    public final static String CHECK_HASHES = "hashes";
+    // Time the reading thread waited for the certificate verification
+    public final static String CHECK_WAIT = "wait";
+
+    // Number of NFC stages, see @AppProperties
+    private final static int STAGE_COUNT = 4;
+
+    private final int docType;
+    // When the session started, in ms since epoch
+    private final long startTime;
+
+    private final long[] stageWallMicros = new long[STAGE_COUNT];
+    private final long[] stageCpuMicros = new long[STAGE_COUNT];
+    private final Map<String, Integer> fileBytes = new LinkedHashMap<>();
+    private final Map<String, Long> verificationMicros = new LinkedHashMap<>();
+    private int apduCount;
+    private long decodeMicros;
+    private long totalMicros;
+
+    // Stage being measured, -1 if none
+    private int stage = -1;
+    private long stageStartNanos;
+    private long stageStartCpuNanos;
+
+    /**
+     * Constructor
+     *
+     * @param docType the document type (@AppProperties.ACTIVITY_PASSPORT_SCAN or ACTIVITY_DL_SCAN)
+     */
+    public ReadMetrics(int docType) {
+        this.docType = docType;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    protected ReadMetrics(Parcel in) {
+        docType = in.readInt();
+        startTime = in.readLong();
+        in.readLongArray(stageWallMicros);
+        in.readLongArray(stageCpuMicros);
+        int files = in.readInt();
+        for (int i = 0; i < files; i++) {
+            fileBytes.put(in.readString(), in.readInt());
+        }
+        int checks = in.readInt();
+        for (int i = 0; i < checks; i++) {
+            verificationMicros.put(in.readString(), in.readLong());
+        }
+        apduCount = in.readInt();
+        decodeMicros = in.readLong();
+        totalMicros = in.readLong();
+    }
+
+    /* ------------------------ MEASUREMENTS --------------------- */
+
+    /**
+     * Ends the current stage and starts measuring another one, on the reading thread
+     * Time is added to what the stage already took, when the session is resumed
+     *
+     * @param stage the stage (@AppProperties.NFC_STAGE_1 to NFC_STAGE_4)
+     */
+    public void startStage(int stage) {
+        endStage();
+        if (stage < NFC_STAGE_1 || stage > NFC_STAGE_4) {
+            return;
+        }
+        this.stage = stage;
+        stageStartNanos = System.nanoTime();
+        stageStartCpuNanos = Debug.threadCpuTimeNanos();
+    }
+
+    /**
+     * Ends the current stage, on the thread that started it
+     */
+    public void endStage() {
+        if (stage < 0) {
+            return;
+        }
+        long wall = (System.nanoTime() - stageStartNanos) / 1000;
+        long cpu = (Debug.threadCpuTimeNanos() - stageStartCpuNanos) / 1000;
+        synchronized (this) {
+            stageWallMicros[stage] += wall;
+            stageCpuMicros[stage] += cpu;
+            totalMicros += wall;
+        }
+        stage = -1;
+    }
+
+    /**
+     * Adds bytes received from the chip for a file
+     *
+     * @param file  the name of the file (DG1, SOD...)
+     * @param bytes the number of bytes received
+     */
+    public synchronized void addFileBytes(String file, int bytes) {
+        Integer current = fileBytes.get(file);
+        fileBytes.put(file, current == null ? bytes : current + bytes);
+    }
+
+    /**
+     * Adds time spent decoding an image
+     *
+     * @param micros the decoding time
+     */
+    public synchronized void addDecodeTime(long micros) {
+        decodeMicros += micros;
+    }
+
+    /**
+     * Adds time spent on a verification check, can be called from the @VerificationPool
+     *
+     * @param check  the check (@CHECK_CSCA, @CHECK_DSC...)
+     * @param micros the time of the check
+     */
+    public synchronized void addVerificationTime(String check, long micros) {
+        Long current = verificationMicros.get(check);
+        verificationMicros.put(check, current == null ? micros : current + micros);
+    }
+
+    public synchronized void setAPDUCount(int apduCount) {
+        this.apduCount = apduCount;
+    }
+
+    /* ------------------------ GETTERS --------------------- */
+
+    public int getDocType() {
+        return docType;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @param stage the stage (@AppProperties.NFC_STAGE_1 to NFC_STAGE_4)
+     * @return the wall-clock time of the stage in microseconds
+     */
+    public synchronized long getStageWallMicros(int stage) {
+        return stageWallMicros[stage];
+    }
+
+    /**
+     * @param stage the stage (@AppProperties.NFC_STAGE_1 to NFC_STAGE_4)
+     * @return the CPU time of the reading thread during the stage in microseconds
+     */
+    public synchronized long getStageCpuMicros(int stage) {
+        return stageCpuMicros[stage];
+    }
+
+    /**
+     * @return the wall-clock time of all stages in microseconds
+     */
+    public synchronized long getTotalMicros() {
+        return totalMicros;
+    }
+
+    public synchronized Map<String, Integer> getFileBytes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(fileBytes));
+    }
+
+    public synchronized int getTotalBytes() {
+        int total = 0;
+        for (int bytes : fileBytes.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    public synchronized Map<String, Long> getVerificationMicros() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(verificationMicros));
+    }
+
+    /**
+     * @return the number of APDUs exchanged, see @APDUStatistics
+     */
+    public synchronized int getAPDUCount() {
+        return apduCount;
+    }
+
+    public synchronized long getDecodeMicros() {
+        return decodeMicros;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "total %.0f ms (auth %.0f, DG1 %.0f, photo %.0f, verify %.0f), %d APDUs, %d B, decode %.0f ms, checks %s",
+                totalMicros / 1000.0, stageWallMicros[NFC_STAGE_1] / 1000.0, stageWallMicros[NFC_STAGE_2] / 1000.0,
+                stageWallMicros[NFC_STAGE_3] / 1000.0, stageWallMicros[NFC_STAGE_4] / 1000.0,
+                apduCount, getTotalBytes(), decodeMicros / 1000.0, verificationMicros);
+    }
+
+    /*
+    -------------- ANDROID PARCEL -----------------------
+     */
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(docType);
+        dest.writeLong(startTime);
+        dest.writeLongArray(stageWallMicros);
+        dest.writeLongArray(stageCpuMicros);
+        dest.writeInt(fileBytes.size());
+        for (Map.Entry<String, Integer> entry : fileBytes.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeInt(entry.getValue());
+        }
+        dest.writeInt(verificationMicros.size());
+        for (Map.Entry<String, Long> entry : verificationMicros.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeLong(entry.getValue());
+        }
+        dest.writeInt(apduCount);
+        dest.writeLong(decodeMicros);
+        dest.writeLong(totalMicros);
+    }
+}
@@ -0,0 +1,104 @@
+package net.noinspiration.idreader.helper;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_1;
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_2;
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_3;
+import static net.noinspiration.idreader.helper.AppProperties.NFC_STAGE_4;
+
+/**
+ * Keeps the @ReadMetrics of every session in a CSV file of the application, one line per
+ * session, so that read times can be exported and compared across devices and document types.
+ */
+public class ReadMetricsLog {
+
+    // Debug tag
+    private final static String TAG = "ReadMetricsLog";
+
+    private final static String FILE_NAME = "read-metrics.csv";
+    private final static String HEADER = "start,docType,apdus,bytes,total,auth,dg1,photo,verify," +
+            "authCpu,dg1Cpu,photoCpu,verifyCpu,decode,csca,dsc,hashes,wait";
+
+    // Writes the log away from the reader and UI threads, one session after the other
+    private final static ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ReadMetricsLog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ReadMetricsLog() {
+    }
+
+    /**
+     * @param context the application context
+     * @return the CSV file, to be exported
+     */
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Appends a session to the log in the background, times are in microseconds
+     *
+     * @param context the application context
+     * @param metrics the metrics of the session
+     */
+    public static void append(Context context, ReadMetrics metrics) {
+        final Context appContext = context.getApplicationContext();
+        // Formatted now, the metrics can still change once the reading is shown
+        final String line = toCSV(metrics);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(getFile(appContext), line);
+            }
+        });
+    }
+
+    private static void write(File file, String line) {
+        boolean header = !file.exists();
+        try (Writer writer = new FileWriter(file, true)) {
+            if (header) {
+                writer.write(HEADER + "\n");
+            }
+            writer.write(line + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving read metrics: " + e.toString());
+        }
+    }
+
+    private static String toCSV(ReadMetrics metrics) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(metrics.getStartTime())
+                .append(',').append(metrics.getDocType())
+                .append(',').append(metrics.getAPDUCount())
+                .append(',').append(metrics.getTotalBytes())
+                .append(',').append(metrics.getTotalMicros());
+        for (int stage = NFC_STAGE_1; stage <= NFC_STAGE_4; stage++) {
+            builder.append(',').append(metrics.getStageWallMicros(stage));
+        }
+        for (int stage = NFC_STAGE_1; stage <= NFC_STAGE_4; stage++) {
+            builder.append(',').append(metrics.getStageCpuMicros(stage));
+        }
+        builder.append(',').append(metrics.getDecodeMicros());
+        for (String check : new String[]{ReadMetrics.CHECK_CSCA, ReadMetrics.CHECK_DSC,
+                ReadMetrics.CHECK_HASHES, ReadMetrics.CHECK_WAIT}) {
+            Long micros = metrics.getVerificationMicros().get(check);
+            builder.append(',').append(micros == null ? 0 : micros);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package net.noinspiration.idreader.helper;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Describes what is read from a document during a session:
+ * which data groups are read and whether the document is verified (SOD, certificates, hashes).
+ * Data groups that are not read are reported as not verified.
+ * A profile is set before the reading starts, see @NfcReader.setReadProfile
+ */
+public class ReadProfile {
+
+    // Number of data groups defined by ICAO 9303 and EU directive 383/2012
+    private final static int DATA_GROUP_COUNT = 16;
+
+    // Data groups to read
+    private final Set<Integer> dataGroups;
+    // Check the SOD, the certificates and the hashes of the data groups read
+    private final boolean verify;
+
+    /**
+     * Constructor
+     *
+     * @param verify     true to verify the document
+     * @param dataGroups the data groups to read
+     */
+    private ReadProfile(boolean verify, Set<Integer> dataGroups) {
+        this.verify = verify;
+        this.dataGroups = dataGroups;
+        // DG1 is always needed to identify the holder
+        this.dataGroups.add(1);
+    }
+
+    /**
+     * @return a profile reading and verifying every data group present on the document
+     */
+    public static ReadProfile full() {
+        Set<Integer> dataGroups = new TreeSet<>();
+        for (int i = 1; i <= DATA_GROUP_COUNT; i++) {
+            dataGroups.add(i);
+        }
+        return new ReadProfile(true, dataGroups);
+    }
+
+    /**
+     * @param verify     true to verify the document
+     * @param dataGroups the data groups to read (DG1 is always read)
+     * @return a profile reading the given data groups
+     */
+    public static ReadProfile custom(boolean verify, int... dataGroups) {
+        Set<Integer> set = new TreeSet<>();
+        for (int dataGroup : dataGroups) {
+            set.add(dataGroup);
+        }
+        return new ReadProfile(verify, set);
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return true if the data group is read with this profile
+     */
+    public boolean includes(int dataGroup) {
+        return dataGroups.contains(dataGroup);
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public Set<Integer> getDataGroups() {
+        return new TreeSet<>(dataGroups);
+    }
+}
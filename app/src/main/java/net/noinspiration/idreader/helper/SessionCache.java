@@ -0,0 +1,132 @@
+package net.noinspiration.idreader.helper;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the @Person read during the last verified sessions, keyed by the fingerprint of the
+ * document's SOD, so that a document put back on the phone shortly after being read is not read
+ * and verified again: the SOD signs every data group, an identical SOD describes the same data.
+ * Entries live in memory only, are bounded in number and expire after a few minutes.
+ * Images are not copied: they are in the @ImageCache, under names that do not change, and an
+ * entry whose images were evicted from it is not reused.
+ */
+public class SessionCache {
+
+    private final static int MAX_ENTRIES = 8;
+    // Time an entry can be reused, in ms
+    private final static long TTL = 5 * 60 * 1000;
+
+    // Least recently used first
+    private final static Map<String, Entry> entries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+
+    private SessionCache() {
+    }
+
+    /**
+     * Gets the result of a recent session of a document
+     *
+     * @param fingerprint the fingerprint of the SOD read from the document
+     * @param readProfile what has to be read, the cached session must have read and verified as much
+     * @return a copy of the person read, null if no recent session covers the read profile
+     */
+    public static synchronized Person get(String fingerprint, ReadProfile readProfile) {
+        if (fingerprint == null) {
+            return null;
+        }
+        evictExpired();
+        Entry entry = entries.get(fingerprint);
+        if (entry == null || !covers(entry.readProfile, readProfile) || !entry.person.hasImages()) {
+            return null;
+        }
+        return copy(entry.person);
+    }
+
+    /**
+     * Keeps the result of a verified session
+     *
+     * @param fingerprint the fingerprint of the SOD read from the document
+     * @param readProfile what was read and verified
+     * @param person      the person read
+     */
+    public static synchronized void put(String fingerprint, ReadProfile readProfile, Person person) {
+        if (fingerprint == null) {
+            return;
+        }
+        Person cached = copy(person);
+        cached.setReadMetrics(null);
+
+        entries.remove(fingerprint);
+        entries.put(fingerprint, new Entry(cached, readProfile));
+        evictExpired();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Forgets a session, when the document does not match its SOD anymore
+     *
+     * @param fingerprint the fingerprint of the SOD
+     */
+    public static synchronized void invalidate(String fingerprint) {
+        if (fingerprint != null) {
+            entries.remove(fingerprint);
+        }
+    }
+
+    /**
+     * Forgets every session, so that the next readings go to the document (e.g. benchmarks)
+     */
+    public static synchronized void clear() {
+        entries.clear();
+    }
+
+    private static boolean covers(ReadProfile cached, ReadProfile wanted) {
+        return cached.isVerify() && cached.getDataGroups().containsAll(wanted.getDataGroups());
+    }
+
+    private static void evictExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().time > TTL) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return a deep copy of a person, through its parcel
+     */
+    private static Person copy(Person person) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            person.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Person.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * A verified session
+     */
+    private static class Entry {
+        private final Person person;
+        private final ReadProfile readProfile;
+        private final long time = SystemClock.elapsedRealtime();
+
+        Entry(Person person, ReadProfile readProfile) {
+            this.person = person;
+            this.readProfile = readProfile;
+        }
+    }
+}
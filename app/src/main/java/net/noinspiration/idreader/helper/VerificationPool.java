@@ -0,0 +1,57 @@
+package net.noinspiration.idreader.helper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the CPU-bound part of a document verification (certificate dates, CSCA and DSC
+ * signatures, data group digests) away from the thread talking to the chip, so that it overlaps
+ * with the reading of the remaining data groups instead of adding to it.
+ * Tasks of a document are independent and run side by side, on a few threads at most.
+ */
+public class VerificationPool {
+
+    // One thread per core, at least two so signatures and digests overlap, at most four
+    private final static int THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    // Tasks waiting for a thread, the submitting thread runs the task itself beyond that
+    private final static int QUEUE_SIZE = 32;
+    // Idle threads are stopped after this delay, in seconds
+    private final static int KEEP_ALIVE = 30;
+
+    private final static ThreadPoolExecutor executor;
+
+    static {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Verification-" + count.incrementAndGet());
+                // Never keep the application alive for a verification nobody waits for
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private VerificationPool() {
+    }
+
+    /**
+     * Submits a verification task
+     *
+     * @param task The task to run
+     * @param <T>  The result type of the task
+     * @return a future holding the result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+}
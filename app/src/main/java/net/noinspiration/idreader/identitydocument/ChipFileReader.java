@@ -0,0 +1,428 @@
+package net.noinspiration.idreader.identitydocument;
+
+import android.util.Log;
+
+import net.noinspiration.idreader.helper.BlockSizeController;
+import net.noinspiration.idreader.helper.ChipProfile;
+import net.noinspiration.idreader.helper.ProcessInputStream;
+import net.noinspiration.idreader.helper.ReadMetrics;
+import net.noinspiration.idreader.helper.VerificationPool;
+import net.noinspiration.idreader.interfaces.InputStreamListener;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.FileInfo;
+import net.sf.scuba.smartcards.FileSystemStructured;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import static net.noinspiration.idreader.identitydocument.HelperFunctions.isTagLost;
+
+/**
+ * Reads files from the chip of an identity document.
+ * Every READ BINARY uses the block size given by a @BlockSizeController, which is fed back
+ * with the latency and status word of each exchange.
+ * Files are kept in a session-scoped @LDSFileCache: a file is read from the chip at most once,
+ * and hashed on the @VerificationPool as soon as it is read once the digest algorithm of the SOD
+ * is known, while the next files are read.
+ * Blocks of a file are kept as they arrive: when the document is lost in the middle of a file,
+ * reading continues from the last block received once the document is authenticated again.
+ */
+public class ChipFileReader {
+
+    // Debug tag
+    private final static String TAG = "ChipFileReader";
+
+    // The file system of the document (authenticated), replaced when the document is reconnected
+    private FileSystemStructured fileSystem;
+    private final BlockSizeController blockSizeController;
+
+    // Files already read during this session
+    private final LDSFileCache cache = new LDSFileCache();
+    // Blocks received for files whose reading was interrupted
+    private final Map<Short, ByteArrayOutputStream> partialFiles = new HashMap<>();
+    // Digest algorithm of the SOD, null until known
+    private String digestAlgorithm;
+    // Digests with the algorithm of the SOD, computed on the @VerificationPool
+    private final Map<Short, Future<byte[]>> digestTasks = new HashMap<>();
+    // Counts the bytes received per file, can be null
+    private ReadMetrics readMetrics;
+    // File sizes known from previous sessions, updated with the files read, can be null
+    private ChipProfile chipProfile;
+    // Files to read during the session, null until planned
+    private ReadPlan readPlan;
+
+    /**
+     * Constructor
+     *
+     * @param fileSystem          the file system of the document, with secure messaging set up
+     * @param blockSizeController the controller deciding the size of every READ BINARY
+     */
+    public ChipFileReader(FileSystemStructured fileSystem, BlockSizeController blockSizeController) {
+        this.fileSystem = fileSystem;
+        this.blockSizeController = blockSizeController;
+    }
+
+    /**
+     * Selects a file and opens a stream on it that reports its progress
+     *
+     * @param file     The file to read
+     * @param listener The listener that tracks progress
+     * @return a stream on the file
+     * @throws CardServiceException When selecting the file fails
+     * @throws IOException          When the stream cannot be created
+     */
+    public ProcessInputStream getInputStream(short file, InputStreamListener listener) throws CardServiceException, IOException {
+        return getInputStream(file, null, listener);
+    }
+
+    /**
+     * Selects a file and opens a stream on it, starting after the blocks already received
+     *
+     * @param file     The file to read
+     * @param received The blocks already received, every new block is added to it (can be null)
+     * @param listener The listener that tracks progress
+     * @return a stream on the rest of the file
+     * @throws CardServiceException When selecting the file fails
+     * @throws IOException          When the stream cannot be created
+     */
+    private ProcessInputStream getInputStream(short file, ByteArrayOutputStream received, InputStreamListener listener) throws CardServiceException, IOException {
+        final ReadPlan plan = readPlan;
+        ChipFileInputStream is;
+        try {
+            fileSystem.selectFile(file);
+            is = new ChipFileInputStream(fileSystem, blockSizeController, received);
+        } catch (CardServiceException e) {
+            // Absent from the chip, nothing will be received; a lost document is selected again
+            if (plan != null && !isTagLost(e)) {
+                plan.setSize(file, 0);
+            }
+            throw e;
+        }
+        ProcessInputStream pis = new ProcessInputStream(is, is.available());
+        pis.addListener(listener);
+
+        // The length of the file is known from its header, it replaces the typical size
+        if (plan != null) {
+            plan.setSize(file, (received == null ? 0 : received.size()) + is.available());
+        }
+        // The plan follows the blocks received
+        if (plan != null && received != null && plan.contains(file)) {
+            final short planned = file;
+            final ByteArrayOutputStream blocks = received;
+            pis.addListener(new InputStreamListener() {
+                @Override
+                public void process(int percent) {
+                    plan.setReceived(planned, blocks.size());
+                }
+            });
+        }
+        return pis;
+    }
+
+    /**
+     * Plans the files to read during the session, replacing the previous plan
+     * Files already read count as received, other files are sized from a previous session
+     * when possible, until their header is read
+     *
+     * @param files    the files to read, in reading order
+     * @param listener notified with the progress of the whole reading, can be null
+     * @return the plan
+     */
+    public ReadPlan plan(List<Short> files, InputStreamListener listener) {
+        ReadPlan plan = new ReadPlan(files, listener);
+        for (short file : files) {
+            byte[] cached = cache.get(file);
+            int knownSize = chipProfile == null ? 0 : chipProfile.getFileSize(file);
+            if (cached != null) {
+                plan.setSize(file, cached.length);
+                plan.setReceived(file, cached.length);
+            } else if (knownSize > 0) {
+                plan.setSize(file, knownSize);
+            }
+        }
+        readPlan = plan;
+        return plan;
+    }
+
+    /**
+     * Reads a whole file, from the cache if it has already been read during this session
+     *
+     * @param file     The file to read
+     * @param listener The listener that tracks progress
+     * @return a byte array containing the file
+     * @throws CardServiceException When selecting the file fails
+     * @throws IOException          When reading the file fails
+     */
+    public byte[] readFile(short file, InputStreamListener listener) throws CardServiceException, IOException {
+        byte[] cached = cache.get(file);
+        if (cached != null) {
+            Log.d(TAG, "File " + Integer.toHexString(file) + " served from cache");
+            return cached;
+        }
+
+        // Continue an interrupted read where it stopped
+        ByteArrayOutputStream received = partialFiles.get(file);
+        boolean resumed = received != null && received.size() > 0;
+        if (received == null) {
+            // Size the buffer from a previous session, it grows as usual if the size is wrong
+            int knownSize = chipProfile == null ? 0 : chipProfile.getFileSize(file);
+            received = knownSize > 0 ? new ByteArrayOutputStream(knownSize) : new ByteArrayOutputStream();
+            partialFiles.put(file, received);
+        } else if (resumed) {
+            Log.d(TAG, "Resuming file " + Integer.toHexString(file) + " at offset " + received.size());
+        }
+
+        ProcessInputStream pis = getInputStream(file, received, listener);
+
+        // The stream adds every block to received, the file only has to be read through
+        byte[] buffer = new byte[blockSizeController.getMaxBlockSize()];
+        while (pis.read(buffer) != -1) {
+            // Nothing to do with the bytes here
+        }
+        byte[] bytes = received.toByteArray();
+        partialFiles.remove(file);
+        if (readPlan != null) {
+            readPlan.setSize(file, bytes.length);
+            readPlan.setReceived(file, bytes.length);
+        }
+        cache.put(file, bytes, null, null);
+        // Hashed while the next files are read
+        if (digestAlgorithm != null) {
+            submitDigest(file, digestAlgorithm);
+        }
+        if (readMetrics != null) {
+            readMetrics.addFileBytes(getFileName(file), bytes.length);
+        }
+        if (chipProfile != null) {
+            chipProfile.setFileSize(file, bytes.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the digest of a file, reading it only if it has not been read during this session
+     *
+     * @param file      The file to hash
+     * @param algorithm The digest algorithm
+     * @param listener  The listener that tracks progress if the file has to be read
+     * @return the digest of the file
+     * @throws CardServiceException     When selecting the file fails
+     * @throws IOException              When reading the file fails
+     * @throws NoSuchAlgorithmException When the algorithm is not available
+     */
+    public byte[] getDigest(short file, String algorithm, InputStreamListener listener) throws CardServiceException, IOException, NoSuchAlgorithmException {
+        if (!cache.contains(file)) {
+            readFile(file, listener);
+        }
+        return cache.getDigest(file, algorithm);
+    }
+
+    /**
+     * Gets the digest of a file already read during this session, without touching the chip
+     * Can be called from any thread, see @LDSFileCache
+     *
+     * @param file      The file to hash
+     * @param algorithm The digest algorithm
+     * @return the digest of the file, null if it has not been read
+     * @throws NoSuchAlgorithmException When the algorithm is not available
+     */
+    public byte[] getCachedDigest(short file, String algorithm) throws NoSuchAlgorithmException {
+        return cache.getDigest(file, algorithm);
+    }
+
+    /**
+     * Hashes a file read during this session on the @VerificationPool, without touching the chip
+     * Files read once the digest algorithm of the SOD is known are submitted as soon as they are
+     * read, their digest is not computed twice
+     *
+     * @param file      The file to hash
+     * @param algorithm The digest algorithm
+     * @return a future holding the digest, or null if the file has not been read
+     */
+    public synchronized Future<byte[]> submitDigest(final short file, final String algorithm) {
+        boolean sodAlgorithm = algorithm.equals(digestAlgorithm);
+        Future<byte[]> task = sodAlgorithm ? digestTasks.get(file) : null;
+        if (task == null) {
+            task = VerificationPool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws NoSuchAlgorithmException {
+                    return cache.getDigest(file, algorithm);
+                }
+            });
+            if (sodAlgorithm) {
+                digestTasks.put(file, task);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Sets the digest algorithm used by the SOD, files read afterwards are hashed as soon as they are read
+     *
+     * @param digestAlgorithm the digest algorithm
+     */
+    public synchronized void setDigestAlgorithm(String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * Sets the file system to use after the document was reconnected and authenticated again
+     *
+     * @param fileSystem the new file system, with secure messaging set up
+     */
+    public void setFileSystem(FileSystemStructured fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Counts the bytes received from the chip per file, files served from the cache are not counted
+     *
+     * @param readMetrics the metrics of the session
+     */
+    public void setReadMetrics(ReadMetrics readMetrics) {
+        this.readMetrics = readMetrics;
+    }
+
+    /**
+     * Uses and updates the file sizes of a chip read before
+     *
+     * @param chipProfile the profile of the chip
+     */
+    public void setChipProfile(ChipProfile chipProfile) {
+        this.chipProfile = chipProfile;
+    }
+
+    /**
+     * Names a file from its identifier, ICAO FIDs (01xx) and eDL SFIs share the same low byte
+     *
+     * @param file the file identifier
+     * @return the name of the file (DG1, SOD, COM...)
+     */
+    static String getFileName(short file) {
+        int id = file & 0xFF;
+        if (id == 0x1D) {
+            return "SOD";
+        } else if (id == 0x1E) {
+            return "COM";
+        } else if (id >= 1 && id <= 16) {
+            return "DG" + id;
+        }
+        return Integer.toHexString(file & 0xFFFF);
+    }
+
+    public BlockSizeController getBlockSizeController() {
+        return blockSizeController;
+    }
+
+    /**
+     * Stream on the selected file, reading blocks sized by the @BlockSizeController
+     */
+    private static class ChipFileInputStream extends InputStream {
+
+        private final FileSystemStructured fileSystem;
+        private final BlockSizeController controller;
+        private final int length;
+        // Blocks received so far, null if they are not kept
+        private final ByteArrayOutputStream received;
+
+        // Offset of the next block to read from the chip
+        private int offset;
+
+        // Current block
+        private byte[] buffer = new byte[0];
+        private int bufferIndex;
+
+        ChipFileInputStream(FileSystemStructured fileSystem, BlockSizeController controller, ByteArrayOutputStream received) throws CardServiceException {
+            this.fileSystem = fileSystem;
+            this.controller = controller;
+            this.received = received;
+            this.offset = received == null ? 0 : received.size();
+
+            FileInfo[] path = fileSystem.getSelectedPath();
+            if (path == null || path.length == 0) {
+                throw new CardServiceException("No file selected");
+            }
+            this.length = path[path.length - 1].getFileLength();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fillBuffer()) {
+                return -1;
+            }
+            return buffer[bufferIndex++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fillBuffer()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.length - bufferIndex);
+            System.arraycopy(buffer, bufferIndex, b, off, count);
+            bufferIndex += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (buffer.length - bufferIndex) + (length - offset);
+        }
+
+        /**
+         * Reads the next block from the chip if the current one is consumed
+         *
+         * @return false at the end of the file
+         * @throws IOException When reading from the chip fails
+         */
+        private boolean fillBuffer() throws IOException {
+            if (bufferIndex < buffer.length) {
+                return true;
+            }
+            if (offset >= length) {
+                return false;
+            }
+
+            int retries = 0;
+            while (true) {
+                int le = Math.min(controller.getBlockSize(), length - offset);
+                long start = System.nanoTime();
+                try {
+                    byte[] block = fileSystem.readBinary(offset, le);
+                    controller.onSuccess(le, block.length, System.nanoTime() - start);
+                    if (block.length == 0) {
+                        throw new IOException("Empty response at offset " + offset);
+                    }
+                    buffer = block;
+                    bufferIndex = 0;
+                    offset += block.length;
+                    if (received != null) {
+                        received.write(block, 0, block.length);
+                    }
+                    return true;
+                } catch (CardServiceException e) {
+                    // The document left the field, the block size is not to blame
+                    if (isTagLost(e)) {
+                        throw new IOException("Tag lost at offset " + offset, e);
+                    }
+                    // Retry with a smaller block if the controller thinks it helps
+                    if (retries >= BlockSizeController.MAX_RETRIES || !controller.onFailure(le, e)) {
+                        throw new IOException("Error reading at offset " + offset, e);
+                    }
+                    retries++;
+                    Log.d(TAG, "Retrying offset " + offset + " (attempt " + retries + ")");
+                }
+            }
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package net.noinspiration.idreader.identitydocument;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 import android.util.SparseArray;
 
 import net.noinspiration.idreader.R;
-import net.noinspiration.idreader.helper.ProcessInputStream;
+import net.noinspiration.idreader.cardservice.APDUStatistics;
+import net.noinspiration.idreader.cardservice.InstrumentedAPDUWrapper;
+import net.noinspiration.idreader.helper.AppProperties;
+import net.noinspiration.idreader.helper.BlockSizeController;
+import net.noinspiration.idreader.helper.ChipProfile;
+import net.noinspiration.idreader.helper.DecodePool;
+import net.noinspiration.idreader.helper.ImageCache;
+import net.noinspiration.idreader.helper.PhotoStore;
+import net.noinspiration.idreader.helper.ReadMetrics;
+import net.noinspiration.idreader.helper.ReadProfile;
+import net.noinspiration.idreader.helper.VerificationPool;
 import net.noinspiration.idreader.interfaces.InputStreamListener;
 import net.sf.scuba.smartcards.APDUWrapper;
-import net.sf.scuba.smartcards.CardFileInputStream;
 import net.sf.scuba.smartcards.CardServiceException;
 
 import org.jmrtd.DefaultFileSystem;
@@ -19,6 +26,7 @@ import org.jmrtd.lds.SODFile;
 import org.jmrtd.lds.icao.DG11File;
 import org.jmrtd.protocol.ReadBinaryAPDUSender;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
@@ -34,10 +42,15 @@ import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -48,8 +61,7 @@ import androidx.annotation.NonNull;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.capitalize;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.fromBytes;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.fromHexString;
-import static net.noinspiration.idreader.identitydocument.HelperFunctions.getBytesFromInputStream;
-import static net.noinspiration.idreader.identitydocument.HelperFunctions.hexStringToByteArray;
+import static net.noinspiration.idreader.identitydocument.HelperFunctions.isTagLost;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.toSQLDate;
 
 
@@ -62,12 +74,9 @@ import static net.noinspiration.idreader.identitydocument.HelperFunctions.toSQLD
  * <p>
  * The images stored in the driving licence are in FACE format (DG5 and DG6).
  * However this format is not in use anymore.
- * It is possible to get a JPEG image from it by stripping all the
- * bytes off until the marker for JPEG appears. This marker is indicated by
- * the bytes 0xFF 0xD8.
- * Here, the byte array is converted to a dg11 string. Then the beginning of the string
- * is removed (until bytes 0xFF 0xD8 are found). Finally, the dg11 string is
- * converted back into a byte array and BitmapFactory can interpret it as a JPEG.
+ * @FaceImageScanner finds the JPEG or JPEG2000 image inside it from the headers of the
+ * facial record, or from the first image marker (0xFF 0xD8 for JPEG), and the image is
+ * kept as is by @PhotoStore.
  */
 public class DrivingLicenceHelper implements InputStreamListener {
 
@@ -80,8 +89,10 @@ public class DrivingLicenceHelper implements InputStreamListener {
     // Applet ID, see section I.3.2.1 of the EU directive
     private final static byte[] AID = new byte[]{(byte) 0xA0, 0x00, 0x00, 0x04, 0x56, 0x45, 0x44, 0x4C, 0x2D, 0x30, 0x31};
 
-    // Maximum size for BINARY READ
-    private final static int MAX_BLOCK_READ_SIZE = 200;
+    // EF.COM template and its tag list
+    private final static int COM_TAG = 0x60;
+    private final static int TAG_LIST_TAG = 0x5C;
+
     // Data groups present on the NFC chip
     private final static SparseArray<Byte> dataGroups;
 
@@ -108,6 +119,22 @@ public class DrivingLicenceHelper implements InputStreamListener {
     private final InputStreamListener progressListener;
 
     private DefaultFileSystem defaultFileSystem;
+    private ChipFileReader chipFileReader;
+    // Secure messaging of the current session
+    private APDUWrapper wrapper;
+    // Measurements of the APDUs, null when not instrumented
+    private APDUStatistics statistics;
+    // Timings of the session, null when not measured
+    private ReadMetrics readMetrics;
+    // What is known about the chip from previous sessions, updated while reading, can be null
+    private ChipProfile chipProfile;
+
+    // Keys derived from the MRZ, kept to authenticate again after the document was lost
+    private final SecretKey kEnc;
+    private final SecretKey kMac;
+
+    // Data groups to read and whether to verify them
+    private ReadProfile readProfile = ReadProfile.full();
     private Context context;
     private String country;
     private String lastName;
@@ -137,19 +164,36 @@ public class DrivingLicenceHelper implements InputStreamListener {
     private SparseArray<String> datagroupHashes = new SparseArray<>();
     private SparseArray<String> datagroupControl = new SparseArray<>();
 
-    // File storage
-    private byte[] dg1File = null;
-    private byte[] dg5File = null;
-    private byte[] dg6File = null;
-    private byte[] dg11File = null;
-
     // Holds false if the chip has been falsified
     private boolean certified = true;
 
     private boolean isCheckingCertificate = false;
     private boolean readingSOD;
 
-    public DrivingLicenceHelper(String mrz, PassportService passportService, Context context, InputStreamListener progressListener) throws GeneralSecurityException, CardServiceException, NullPointerException {
+    // Data groups present on the document, from the SOD, null if unknown
+    private Set<Integer> presentDataGroups;
+    // Files to read, see @planReading
+    private ReadPlan readPlan;
+
+    // Security object of the document, read before DG1
+    private SODFile sodFile;
+    // Verification of the Document Signer Certificate (dates and CSCA) and of the SOD signature
+    // (DSC), running side by side on the @VerificationPool
+    private Future<Boolean> certificateVerification;
+    private Future<Boolean> signatureVerification;
+
+    /**
+     * Constructor, authenticates with the driving licence
+     *
+     * @param mrz                 the one-line MRZ of the driving licence
+     * @param passportService     the JMRTD object to access the document
+     * @param blockSizeController the controller deciding the size of every BINARY READ
+     * @param context             the application context
+     * @param progressListener    the listener that tracks progress
+     * @throws GeneralSecurityException When generating the keys fails
+     * @throws CardServiceException     When authentication doesn't work
+     */
+    public DrivingLicenceHelper(String mrz, PassportService passportService, BlockSizeController blockSizeController, Context context, InputStreamListener progressListener) throws GeneralSecurityException, CardServiceException, NullPointerException {
 
         this.context = context;
         this.progressListener = progressListener;
@@ -157,9 +201,34 @@ public class DrivingLicenceHelper implements InputStreamListener {
         // Generate necessary keys for authentication from MRZ
         Log.i(TAG, "Generating keys");
         byte[] kSeed = generateKSeed(mrz.getBytes());
-        SecretKey kEnc = deriveKey(kSeed, ENC_MODE);
-        SecretKey kMac = deriveKey(kSeed, MAC_MODE);
+        kEnc = deriveKey(kSeed, ENC_MODE);
+        kMac = deriveKey(kSeed, MAC_MODE);
+
+        authenticate(passportService);
+        chipFileReader = new ChipFileReader(defaultFileSystem, blockSizeController);
+
+        authenticationSuccess = true;
+    }
+
+    /**
+     * Authenticates again after the driving licence was lost and put back on the phone
+     * Files already read, even partially, are kept and reading continues where it stopped
+     *
+     * @param passportService the JMRTD object to access the reconnected document
+     * @throws CardServiceException When authentication doesn't work
+     */
+    public void reauthenticate(PassportService passportService) throws CardServiceException {
+        authenticate(passportService);
+        chipFileReader.setFileSystem(defaultFileSystem);
+    }
 
+    /**
+     * Selects the driving licence application and performs BAP
+     *
+     * @param passportService the JMRTD object to access the document
+     * @throws CardServiceException When authentication doesn't work
+     */
+    private void authenticate(PassportService passportService) throws CardServiceException {
         passportService.open();
 
         // Select applet and get the driving licence filesystem
@@ -171,10 +240,261 @@ public class DrivingLicenceHelper implements InputStreamListener {
         // Authenticate with the keys and set the authentication layer
         Log.i(TAG, "Authenticating");
         passportService.doBAC(kEnc, kMac);
-        APDUWrapper wrapper = passportService.getWrapper();
-        defaultFileSystem.setWrapper(wrapper);
+        wrapper = passportService.getWrapper();
+        defaultFileSystem.setWrapper(instrument(wrapper));
+    }
 
-        authenticationSuccess = true;
+    /**
+     * Measures secure messaging of the following APDUs, see @APDUStatistics
+     *
+     * @param statistics the statistics of the session, shared with its @InstrumentedCardService
+     */
+    public void setAPDUStatistics(APDUStatistics statistics) {
+        this.statistics = statistics;
+        defaultFileSystem.setWrapper(instrument(wrapper));
+    }
+
+    private APDUWrapper instrument(APDUWrapper wrapper) {
+        return statistics == null ? wrapper : new InstrumentedAPDUWrapper(wrapper, statistics);
+    }
+
+    /**
+     * Measures the session into @ReadMetrics: bytes per file, decoding and verification times
+     *
+     * @param readMetrics the metrics of the session
+     */
+    public void setReadMetrics(ReadMetrics readMetrics) {
+        this.readMetrics = readMetrics;
+        chipFileReader.setReadMetrics(readMetrics);
+    }
+
+    /**
+     * Skips data groups known to be absent and records what is learnt about the chip
+     *
+     * @param chipProfile the profile of the chip, see @ChipProfileCache
+     */
+    public void setChipProfile(ChipProfile chipProfile) {
+        this.chipProfile = chipProfile;
+        chipFileReader.setChipProfile(chipProfile);
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return false if the data group is known to be absent from the chip
+     */
+    private boolean mayBePresent(int dataGroup) {
+        if (presentDataGroups != null) {
+            return presentDataGroups.contains(dataGroup);
+        }
+        return chipProfile == null || chipProfile.hasDataGroup(dataGroup);
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return true if the data group is read with the current profile and present on the chip
+     */
+    private boolean isPlanned(int dataGroup) {
+        return readProfile.includes(dataGroup) && mayBePresent(dataGroup);
+    }
+
+    /**
+     * Plans the files to read from the data groups listed by the SOD when verifying, by a
+     * previous session or by EF.COM otherwise, as @PassportHelper.planReading does.
+     * When verifying the certificate verification starts right away, before DG1 is read.
+     * Called before reading, and again when the session is resumed
+     *
+     * @param listener notified with the progress of the whole reading, can be null
+     * @return the plan
+     * @throws CardServiceException When the document is lost while reading the SOD or EF.COM
+     * @throws IOException          When the document is lost while reading the SOD or EF.COM
+     */
+    public ReadPlan planReading(InputStreamListener listener) throws CardServiceException, IOException {
+        if (readProfile.isVerify()) {
+            startVerification();
+            if (sodFile != null) {
+                presentDataGroups = new TreeSet<>(sodFile.getDataGroupHashes().keySet());
+            }
+        }
+        if (presentDataGroups == null && chipProfile != null) {
+            presentDataGroups = chipProfile.getDataGroups();
+        }
+        if (presentDataGroups == null) {
+            presentDataGroups = readCOM();
+        }
+
+        // Same order as @NfcReader: holder information, SOD, photo, what is only verified, signature
+        List<Short> files = new ArrayList<>();
+        files.add(PassportService.SFI_DG1);
+        if (isPlanned(11)) {
+            files.add(PassportService.SFI_DG11);
+        }
+        if (readProfile.isVerify()) {
+            files.add(PassportService.SFI_SOD);
+        }
+        if (isPlanned(6)) {
+            files.add(PassportService.SFI_DG6);
+        }
+        if (readProfile.isVerify()) {
+            for (int dataGroup : readProfile.getDataGroups()) {
+                if (dataGroup != 1 && dataGroup != 5 && dataGroup != 6 && dataGroup != 11 && isPlanned(dataGroup)) {
+                    files.add(dataGroups.get(dataGroup));
+                }
+            }
+        }
+        if (isPlanned(5)) {
+            files.add(PassportService.SFI_DG5);
+        }
+        readPlan = chipFileReader.plan(files, listener);
+        Log.d(TAG, "Read plan: " + files.size() + " files, " + readPlan.getTotalSize() + " bytes");
+        return readPlan;
+    }
+
+    /**
+     * Reads the data groups listed in EF.COM
+     *
+     * @return the data groups present, null if EF.COM cannot be read or lists an unknown tag
+     * @throws CardServiceException When the document is lost
+     * @throws IOException          When the document is lost
+     */
+    private Set<Integer> readCOM() throws CardServiceException, IOException {
+        try {
+            Set<Integer> present = parseCOM(readFile(PassportService.SFI_COM));
+            if (present != null && chipProfile != null) {
+                chipProfile.setDataGroups(present);
+            }
+            return present;
+        } catch (CardServiceException | IOException e) {
+            // The reading is suspended and resumes from here, see @NfcReader
+            if (isTagLost(e)) {
+                throw e;
+            }
+            Log.e(TAG, "Error reading EF.COM " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the data groups listed by the tag list (5C) of an EF.COM (60)
+     * The tags of the data groups follow ISO 18013-2 and not ICAO 9303, see @getDataGroupNumber
+     *
+     * @param com the content of EF.COM
+     * @return the data groups, null if EF.COM is malformed or lists an unknown tag
+     */
+    static Set<Integer> parseCOM(byte[] com) {
+        if (com.length < 2 || (com[0] & 0xFF) != COM_TAG) {
+            return null;
+        }
+        int[] position = {1};
+        int length = readLength(com, position);
+        int end = position[0] + length;
+        if (length < 0 || end > com.length) {
+            return null;
+        }
+        while (position[0] < end) {
+            int tag = com[position[0]++] & 0xFF;
+            // Two-byte tags (5F01, 5F36)
+            if ((tag & 0x1F) == 0x1F && position[0] < end) {
+                tag = (tag << 8) | (com[position[0]++] & 0xFF);
+            }
+            length = readLength(com, position);
+            if (length < 0 || position[0] + length > end) {
+                return null;
+            }
+            if (tag == TAG_LIST_TAG) {
+                Set<Integer> present = new TreeSet<>();
+                for (int i = position[0]; i < position[0] + length; i++) {
+                    int dataGroup = getDataGroupNumber(com[i] & 0xFF);
+                    if (dataGroup < 0) {
+                        return null;
+                    }
+                    present.add(dataGroup);
+                }
+                return present;
+            }
+            position[0] += length;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a BER length
+     *
+     * @param data     the data
+     * @param position the offset of the length, moved after it
+     * @return the length, -1 if it is malformed
+     */
+    private static int readLength(byte[] data, int[] position) {
+        if (position[0] >= data.length) {
+            return -1;
+        }
+        int length = data[position[0]++] & 0xFF;
+        if (length < 0x80) {
+            return length;
+        }
+        int count = length & 0x7F;
+        if (count == 0 || count > 3 || position[0] + count > data.length) {
+            return -1;
+        }
+        length = 0;
+        for (int i = 0; i < count; i++) {
+            length = (length << 8) | (data[position[0]++] & 0xFF);
+        }
+        return length;
+    }
+
+    /**
+     * @param tag the tag of a data group of a driving licence, ISO 18013-2
+     * @return the number of the data group, -1 if the tag is unknown
+     */
+    private static int getDataGroupNumber(int tag) {
+        switch (tag) {
+            case 0x61:
+                return 1;
+            case 0x6B:
+                return 2;
+            case 0x6C:
+                return 3;
+            case 0x65:
+                return 4;
+            case 0x67:
+                return 5;
+            case 0x75:
+                return 6;
+            case 0x63:
+                return 7;
+            case 0x76:
+                return 8;
+            case 0x70:
+                return 9;
+            case 0x6D:
+                return 11;
+            case 0x6F:
+                return 13;
+            case 0x6E:
+                return 14;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Adds the time elapsed since start to a verification check, if measured
+     */
+    private void addVerificationTime(String check, long start) {
+        if (readMetrics != null) {
+            readMetrics.addVerificationTime(check, (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Computes the encryption key used to authenticate, needed to replay a recorded session
+     *
+     * @param mrz the one-line MRZ of the driving licence, as given to the constructor
+     * @return the encryption key
+     * @throws GeneralSecurityException When generating the key fails
+     */
+    public static SecretKey deriveEncryptionKey(String mrz) throws GeneralSecurityException {
+        return deriveKey(generateKSeed(mrz.getBytes()), ENC_MODE);
     }
 
     /**
@@ -206,7 +526,10 @@ public class DrivingLicenceHelper implements InputStreamListener {
     @Override
     public void process(int percentage) {
         if (!isCheckingCertificate) {
-            progressListener.process(percentage);
+            // The SOD read early is not part of the current stage
+            if (!readingSOD) {
+                progressListener.process(percentage);
+            }
         } else {
             if (readingSOD) {
                 // Map the reading of the SOD to 30% of the progress bar
@@ -215,86 +538,215 @@ public class DrivingLicenceHelper implements InputStreamListener {
         }
     }
 
+    /**
+     * Reads the SOD and starts verifying the Document Signer Certificate on the
+     * @VerificationPool, so that the signatures are checked while the remaining data groups are
+     * read. Called by @planReading, the result is collected by @checkLegitimacy
+     *
+     * @throws CardServiceException When the document is lost while reading the SOD
+     * @throws IOException          When the document is lost while reading the SOD
+     */
+    public void startVerification() throws CardServiceException, IOException {
+        // Already started
+        if (certificateVerification != null || !readSOD()) {
+            return;
+        }
+
+        final X509Certificate certificate = sodFile.getDocSigningCertificate();
+        if (certificate == null) {
+            return;
+        }
+        dscCertificate = certificate;
+
+        certificateVerification = VerificationPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws CertificateException {
+                return verifyCertificate(certificate);
+            }
+        });
+        signatureVerification = VerificationPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long start = System.nanoTime();
+                boolean dscValid = checkDSC(sodFile, certificate);
+                addVerificationTime(ReadMetrics.CHECK_DSC, start);
+                return dscValid;
+            }
+        });
+    }
+
+    /**
+     * Reads the SOD, once per session
+     *
+     * @return false if the SOD cannot be read
+     * @throws CardServiceException When the document is lost
+     * @throws IOException          When the document is lost
+     */
+    private boolean readSOD() throws CardServiceException, IOException {
+        if (sodFile != null) {
+            return true;
+        }
+
+        // Retrieve SOD
+        readingSOD = true;
+        try {
+            Log.d(TAG, "Reading SOD");
+            sodFile = new SODFile(new ByteArrayInputStream(readFile(PassportService.SFI_SOD)));
+            // Files read from now on are hashed on the @VerificationPool as soon as they are read
+            chipFileReader.setDigestAlgorithm(sodFile.getDigestAlgorithm());
+            if (chipProfile != null) {
+                chipProfile.setDataGroups(sodFile.getDataGroupHashes().keySet());
+            }
+            return true;
+        } catch (CardServiceException | IOException e) {
+            // The reading is suspended and resumes from here, see @NfcReader
+            if (isTagLost(e)) {
+                throw e;
+            }
+            // Absent or malformed SOD, the document is not verified
+            Log.e(TAG, "Error reading SOD " + e.toString());
+            sodFile = null;
+            return false;
+        } finally {
+            readingSOD = false;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the SOD read when planning, identifies the document and its data,
+     * null if the SOD was not read
+     */
+    public String getSODFingerprint() {
+        if (sodFile == null) {
+            return null;
+        }
+        try {
+            return fromBytes(chipFileReader.getCachedDigest(PassportService.SFI_SOD, "SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a data group and checks it against the SOD, ties a document to a SOD seen before
+     *
+     * @param dataGroup the data group number
+     * @return true if the data group matches its hash in the SOD
+     */
+    public boolean matchesSOD(int dataGroup) {
+        if (sodFile == null) {
+            return false;
+        }
+        try {
+            short file = dataGroups.get(dataGroup);
+            readFile(file);
+            // Submitted when the file was read, not hashed twice
+            byte[] hash = chipFileReader.submitDigest(file, sodFile.getDigestAlgorithm()).get();
+            return Arrays.equals(hash, sodFile.getDataGroupHashes().get(dataGroup));
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking DG" + dataGroup + ": " + e.toString());
+            return false;
+        }
+    }
+
     /**
      * Checks the driver licence for legitimacy by:
      * 1. Validating the country root certificate (CSCA)
      * 2. Validating the Document Signer Certificate (DSC)
      * 3. Validating the Data Group hashes
+     * Everything runs on the @VerificationPool: 1, 2, and every hash side by side
      */
     public void checkLegitimacy() throws CardServiceException, CertificateException, NoSuchAlgorithmException, IOException {
         isCheckingCertificate = true;
-        readingSOD = true;
-        SODFile sodFile = null;
-        // Retrieve SOD
-        // Select and read the file
-        defaultFileSystem.selectFile(PassportService.SFI_SOD);
-        CardFileInputStream is = new CardFileInputStream(MAX_BLOCK_READ_SIZE, defaultFileSystem);
-        ProcessInputStream pis = new ProcessInputStream(is, is.getLength());
-        pis.addListener(this);
 
-        try {
-            Log.d(TAG, "Reading SOD");
-            sodFile = new SODFile(pis);
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading SOD");
+        // The SOD is normally read when planning already
+        startVerification();
+        if (sodFile == null) {
             certified = false;
+            isCheckingCertificate = false;
             return;
         }
-
-        X509Certificate certificate = sodFile.getDocSigningCertificate();
-        if (certificate == null) {
+        if (certificateVerification == null) {
             certified = false;
+            isCheckingCertificate = false;
             throw new CertificateException("Certificate not present");
         }
-        dscCertificate = certificate;
 
-        readingSOD = false;
+        progressListener.process(50);
+
+        // Check data group hashes, reading the data groups that are still missing
+        long start = System.nanoTime();
+        boolean hashesValid = checkDatagroupHashes(sodFile);
+        addVerificationTime(ReadMetrics.CHECK_HASHES, start);
+
+        // Wait for the certificate verification
+        boolean certificateValid;
+        boolean signatureValid;
+        start = System.nanoTime();
+        try {
+            certificateValid = certificateVerification.get();
+            signatureValid = signatureVerification.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Certificate check failed: " + e.toString());
+            certificateValid = false;
+            signatureValid = false;
+        }
 
+        addVerificationTime(ReadMetrics.CHECK_WAIT, start);
+
+        // The signature only counts if the certificate itself is trusted
+        documentSignerSuccess = certificateValid && signatureValid;
+        certified = documentSignerSuccess && hashesValid;
+        if (certified)
+            datagroupHashesSuccess = true;
+
+        isCheckingCertificate = false;
+    }
+
+    /**
+     * Verifies the dates of the Document Signer Certificate and its signature by the CSCA
+     * Runs on the @VerificationPool, the signature of the SOD is checked by another task
+     *
+     * @param certificate The certificate present on the chip
+     * @return true if the certificate is valid
+     * @throws CertificateException When reading countries certificates fails.
+     */
+    private boolean verifyCertificate(@NonNull X509Certificate certificate) throws CertificateException {
         // Get certificate present on driver licence and check the dates
         try {
             certificate.checkValidity();
         } catch (CertificateNotYetValidException | CertificateExpiredException e) {
             // Invalid dates
             Log.e(TAG, "Certificate check failed: " + e.toString());
-            certified = false;
-            return;
+            return false;
         }
 
-        progressListener.process(32);
-
-        checkCSCA(certificate);
-        if (!certified) {
-            isCheckingCertificate = false;
-            return;
+        long start = System.nanoTime();
+        boolean cscaValid = checkCSCA(certificate);
+        addVerificationTime(ReadMetrics.CHECK_CSCA, start);
+        if (!cscaValid) {
+            return false;
         }
         countrySignerSuccess = true;
 
-        checkDSC(sodFile, certificate);
-        if (!certified) {
-            isCheckingCertificate = false;
-            return;
-        }
-        documentSignerSuccess = true;
-
-        checkDatagroupHashes(sodFile);
-        if (certified)
-            datagroupHashesSuccess = true;
-
-        isCheckingCertificate = false;
+        return true;
     }
 
     /**
      * Verifies the signature of the certificate against root certificates emitted by countries
      *
      * @param certificate The certificate present on the chip
+     * @return false if the certificate is not signed by the country's root certificates
      * @throws CertificateException When reading countries certificates fails.
      */
-    private void checkCSCA(@NonNull X509Certificate certificate) throws CertificateException {
+    private boolean checkCSCA(@NonNull X509Certificate certificate) throws CertificateException {
         // Get certificate issuer country
         String country = certificate.getIssuerDN().toString();
         int index = country.indexOf("C=") + 2;
         country = country.substring(index, index + 2).toUpperCase();
 
+        boolean valid = true;
+
         // We only have dutch certificates
         if (country.equals("NL")) {
             // Load certificates
@@ -306,43 +758,35 @@ public class DrivingLicenceHelper implements InputStreamListener {
             cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
             certificates.add(cert);
 
-            progressListener.process(34);
-
             is = context.getResources().openRawResource(R.raw.cscaedl_v1_specimen);
             cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
             certificates.add(cert);
 
-            progressListener.process(36);
-
             is = context.getResources().openRawResource(R.raw.cscaedl_v2_prod);
             cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
             certificates.add(cert);
-            progressListener.process(38);
-
 
             is = context.getResources().openRawResource(R.raw.cscaedl_v2_specimen);
             cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
             certificates.add(cert);
 
-            progressListener.process(40);
-
             // Check against certificates emitted by the country
             for (X509Certificate c : certificates) {
                 try {
                     certificate.verify(c.getPublicKey());
-                    certified = true;
+                    valid = true;
                     cscaCertificate = c;
                     Log.d(TAG, "Root CA valid (Certificate " + country + ": " + c.getSerialNumber() + ")");
                     break;
                 } catch (Exception e) {
                     Log.d(TAG, "Verification failed (Certificate " + country + ": " + c.getSerialNumber() + ")");
-                    certified = false;
+                    valid = false;
                 }
             }
 
         }
 
-        progressListener.process(45);
+        return valid;
     }
 
     /**
@@ -350,8 +794,9 @@ public class DrivingLicenceHelper implements InputStreamListener {
      *
      * @param sodFile     the SOD File of the chip
      * @param certificate the certificate on the chip
+     * @return true if the signature is valid
      */
-    private void checkDSC(@NonNull SODFile sodFile, @NonNull X509Certificate certificate) {
+    private boolean checkDSC(@NonNull SODFile sodFile, @NonNull X509Certificate certificate) {
         // Validate certificate signature
         try {
             Signature signature = Signature.getInstance(certificate.getSigAlgName());
@@ -359,39 +804,75 @@ public class DrivingLicenceHelper implements InputStreamListener {
             signature.update(sodFile.getEContent());
             signature.verify(certificate.getSignature());
             Log.d(TAG, "Validated certificate using " + Security.getProviders()[0].getName());
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Validation failed with " + Security.getProviders()[0].getName() + ": " + e.toString());
-            certified = false;
+            return false;
         }
-
-        progressListener.process(50);
     }
 
     /**
      * Calculates the checksum of every datagroup and compares it to the value stored in SOD
      *
      * @param sodFile the SOD file
+     * @return false if a data group does not match its hash
      */
-    private void checkDatagroupHashes(@NonNull SODFile sodFile) throws NoSuchAlgorithmException, NullPointerException {
+    private boolean checkDatagroupHashes(@NonNull SODFile sodFile) throws NoSuchAlgorithmException, NullPointerException {
         Map<Integer, byte[]> hashes = sodFile.getDataGroupHashes();
-        MessageDigest crypt = MessageDigest.getInstance(sodFile.getDigestAlgorithm());
-        byte[] hash, control;
-        int counter = 0;
+        String digestAlgorithm = sodFile.getDigestAlgorithm();
+        // Fail early if the algorithm is not available
+        MessageDigest.getInstance(digestAlgorithm);
+        // Progress is the share of the bytes to hash, files still to read take the longest
         Set<Integer> keys = hashes.keySet();
+        long total = 0;
+        for (int i : keys) {
+            total += getPlannedSize(i);
+        }
+        long done = 0;
+
+        // Data groups are read one after the other and hashed side by side on the
+        // @VerificationPool as soon as they are read, see @ChipFileReader.submitDigest:
+        // those read before (DG1, photo) are already being hashed
+        Map<Integer, Future<byte[]>> digests = new HashMap<>();
+        for (int i : keys) {
+            done += getPlannedSize(i);
+            // Data groups outside of the read profile are not read
+            if (readProfile.includes(i)) {
+                try {
+                    short file = dataGroups.get(i);
+                    // Files already read come from the session cache, without touching the chip
+                    chipFileReader.readFile(file, this);
+                    digests.put(i, chipFileReader.submitDigest(file, digestAlgorithm));
+                } catch (Exception e) {
+                    Log.e(TAG, "Error reading DG" + i + ": " + e.toString());
+                }
+            }
+            progressListener.process(50 + (int) (50 * done / total));
+        }
+
+        // Compare the digests to the SOD, in the order of the SOD
+        byte[] hash, control;
         for (int i : keys) {
-            counter++;
             try {
                 control = hashes.get(i);
                 datagroupControl.append(i, fromBytes(control));
 
-                byte[] file = readFile(dataGroups.get(i));
-                hash = crypt.digest(file);
+                // Data groups outside of the read profile are not read, hence not verified
+                if (!readProfile.includes(i)) {
+                    datagroupHashes.append(i, AppProperties.DG_NOT_VERIFIED);
+                    continue;
+                }
+
+                Future<byte[]> digest = digests.get(i);
+                if (digest == null) {
+                    throw new IOException("DG" + i + " not read");
+                }
+                hash = digest.get();
                 datagroupHashes.append(i, fromBytes(hash));
 
                 if (!Arrays.equals(hash, control)) {
                     Log.e(TAG, "Wrong hash for DG" + i);
-                    certified = false;
-                    return;
+                    return false;
                 } else
                     Log.d(TAG, "Valid DG" + i + " hash");
 
@@ -399,8 +880,18 @@ public class DrivingLicenceHelper implements InputStreamListener {
                 Log.e(TAG, "Error getting DG" + i + ": " + e.toString());
                 datagroupHashes.append(i, "-");
             }
-            progressListener.process(50 + (50 / keys.size()) * counter);
         }
+        return true;
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return the size of the data group in the read plan, at least 1 so every data group counts
+     */
+    private int getPlannedSize(int dataGroup) {
+        Short file = dataGroups.get(dataGroup);
+        int size = readPlan == null || file == null ? 0 : readPlan.getSize(file);
+        return Math.max(size, 1);
     }
 
     /**
@@ -414,45 +905,87 @@ public class DrivingLicenceHelper implements InputStreamListener {
         Log.i(TAG, "Reading DG1");
         String dg1 = fromBytes(readFile(PassportService.SFI_DG1));
         parseDG1(dg1);
-        String dg11 = fromBytes(readFile(PassportService.SFI_DG11));
-        parseDG11(dg11);
+        if (isPlanned(11)) {
+            String dg11 = fromBytes(readFile(PassportService.SFI_DG11));
+            parseDG11(dg11);
+        }
         Log.i(TAG, "DG1 done");
     }
 
     /**
      * Reads the DG5. This contains the driving license holder's signature
      *
-     * @return A bitmap containing the signature
+     * @return The task storing the signature, giving its path, see @storeImage
      * @throws CardServiceException When communication doesn't work
      * @throws IOException          When there is an error reading
      */
-    public Bitmap readDG5() throws CardServiceException, IOException {
+    public Future<String> readDG5() throws CardServiceException, IOException {
         Log.i(TAG, "Reading DG5");
-        String image = fromBytes(readFile(PassportService.SFI_DG5));
-        image = image.substring(image.indexOf("FFD8"));
-        byte[] photo = hexStringToByteArray(image);
+        FaceImageScanner.Image image = FaceImageScanner.scan(readFile(PassportService.SFI_DG5));
         Log.i(TAG, "DG5 done");
-        return BitmapFactory.decodeByteArray(photo, 0, photo.length);
+        return storeImage(PassportService.SFI_DG5, "signature", image);
     }
 
     /**
      * Reads the DG6. This contains the driving license holder's photo
      *
-     * @return A bitmap containing the photo
+     * @return The task storing the photo, giving its path, see @storeImage
      * @throws CardServiceException When communication doesn't work
      * @throws IOException          When there is an error reading
      */
-    public Bitmap readDG6() throws CardServiceException, IOException {
+    public Future<String> readDG6() throws CardServiceException, IOException {
         Log.i(TAG, "Reading DG6");
-        String image = fromBytes(readFile(PassportService.SFI_DG6));
-        image = image.substring(image.indexOf("FFD8"));
-        byte[] photo = hexStringToByteArray(image);
+        FaceImageScanner.Image image = FaceImageScanner.scan(readFile(PassportService.SFI_DG6));
         Log.i(TAG, "DG6 done");
-        return BitmapFactory.decodeByteArray(photo, 0, photo.length);
+        return storeImage(PassportService.SFI_DG6, "photo", image);
+    }
+
+    /**
+     * Gives the key in the @ImageCache of an image, from the hash of its data group
+     *
+     * @param file    The data group holding the image, already read
+     * @param variant Which image of the data group
+     * @return the key of the image
+     * @throws IOException When the data group cannot be hashed
+     */
+    private String getImageKey(short file, String variant) throws IOException {
+        try {
+            return ImageCache.getKey(fromBytes(chipFileReader.getCachedDigest(file, "SHA-256")), variant);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Stores an image read from the driving licence on the @DecodePool, see @PhotoStore
+     *
+     * @param file    the data group holding the image
+     * @param variant which image it is, part of its key in the @ImageCache
+     * @param image   the image found by @FaceImageScanner, can be null
+     * @return the task storing the image, giving its path, null if there is no image
+     */
+    private Future<String> storeImage(final short file, final String variant, final FaceImageScanner.Image image) {
+        if (image == null) {
+            Log.e(TAG, "No image in " + variant);
+            return null;
+        }
+        return DecodePool.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                long start = System.nanoTime();
+                String path = PhotoStore.store(context, getImageKey(file, variant), image.getMimeType(),
+                        image.getData(), image.getOffset(), image.getLength());
+                if (readMetrics != null) {
+                    readMetrics.addDecodeTime((System.nanoTime() - start) / 1000);
+                }
+                return path;
+            }
+        });
     }
 
     /**
      * Reads a file from the driving licence
+     * Files are read from the chip only once per session, see @ChipFileReader
      *
      * @param file The file to read
      * @return The file as an array of bytes
@@ -460,50 +993,7 @@ public class DrivingLicenceHelper implements InputStreamListener {
      * @throws IOException          When there is an error reading
      */
     private byte[] readFile(short file) throws CardServiceException, IOException {
-        // Select and read the file
-        defaultFileSystem.selectFile(file);
-        CardFileInputStream is = new CardFileInputStream(MAX_BLOCK_READ_SIZE, defaultFileSystem);
-
-        // Transform the input stream into an array of bytes
-        ProcessInputStream pis = new ProcessInputStream(is, is.getLength());
-        pis.addListener(this);
-
-        switch (file) {
-            case PassportService.SFI_DG1:
-                if (dg1File != null)
-                    return dg1File;
-                else {
-                    dg1File = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "readFile: Stored DG1");
-                    return dg1File;
-                }
-            case PassportService.SFI_DG5:
-                if (dg5File != null)
-                    return dg5File;
-                else {
-                    dg5File = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "readFile: Stored DG5");
-                    return dg5File;
-                }
-            case PassportService.SFI_DG6:
-                if (dg6File != null)
-                    return dg6File;
-                else {
-                    dg6File = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "readFile: Stored DG6");
-                    return dg6File;
-                }
-            case PassportService.SFI_DG11:
-                if (dg11File != null)
-                    return dg11File;
-                else {
-                    dg11File = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "readFile: Stored DG11");
-                    return dg11File;
-                }
-            default:
-                return getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-        }
+        return chipFileReader.readFile(file, this);
     }
 
     /**
@@ -513,7 +1003,7 @@ public class DrivingLicenceHelper implements InputStreamListener {
      * @return The kSeed as an array of bytes
      * @throws NoSuchAlgorithmException If SHA-1 algorithm doesn't exist on the system
      */
-    private byte[] generateKSeed(byte[] mrz) throws NoSuchAlgorithmException {
+    private static byte[] generateKSeed(byte[] mrz) throws NoSuchAlgorithmException {
 
         // Encrypt MRZ with SHA-1
         MessageDigest crypt = MessageDigest.getInstance("SHA-1");
@@ -700,6 +1190,15 @@ public class DrivingLicenceHelper implements InputStreamListener {
     }
 
 
+    /**
+     * Sets the data groups to read, can be changed during a session to read more
+     *
+     * @param readProfile the read profile
+     */
+    public void setReadProfile(ReadProfile readProfile) {
+        this.readProfile = readProfile;
+    }
+
     /* --------- GETTERS ------------- */
 
     public String getCountry() {
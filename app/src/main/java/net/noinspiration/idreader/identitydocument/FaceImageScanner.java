@@ -0,0 +1,142 @@
+package net.noinspiration.idreader.identitydocument;
+
+import net.noinspiration.idreader.helper.AppProperties;
+
+/**
+ * Finds the image embedded in a data group of a driving licence (DG5, DG6), without copying it.
+ * <p>
+ * The photo is held by an ISO 19794-5 facial record ("FAC\0"), whose headers give the offset,
+ * length and type (JPEG or JPEG2000) of the image. When there is no such record (signature
+ * images) or its headers are inconsistent, the data group is scanned for the start of a JPEG
+ * image (FF D8 FF) or of a JPEG2000 file or codestream, and the image runs to its end.
+ */
+public class FaceImageScanner {
+
+    private final static byte[] FACE_RECORD = {'F', 'A', 'C', 0};
+    private final static byte[] JPEG_SOI = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private final static byte[] JP2_SIGNATURE = {0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50, 0x20, 0x20};
+    private final static byte[] J2K_SIGNATURE = {(byte) 0xFF, 0x4F, (byte) 0xFF, 0x51};
+
+    // Format identifier, version, record length and number of images
+    private final static int RECORD_HEADER = 14;
+    // Block length, number of feature points, gender, colours, feature mask, expression, pose
+    private final static int FACIAL_INFORMATION = 20;
+    private final static int FEATURE_POINT = 8;
+    // Face image type, image data type, width, height, colour space, source and device type, quality
+    private final static int IMAGE_INFORMATION = 12;
+    // Image data type of JPEG2000 images, 0 is JPEG
+    private final static int IMAGE_DATA_JPEG2000 = 1;
+
+    private FaceImageScanner() {
+    }
+
+    /**
+     * Finds the image of a data group
+     *
+     * @param data the content of the data group
+     * @return the image, null if the data group holds no image
+     */
+    public static Image scan(byte[] data) {
+        int record = indexOf(data, FACE_RECORD, 0);
+        if (record >= 0) {
+            Image image = parseFaceRecord(data, record);
+            if (image != null) {
+                return image;
+            }
+        }
+
+        int jpeg = indexOf(data, JPEG_SOI, 0);
+        int jp2 = indexOf(data, JP2_SIGNATURE, 0);
+        int j2k = indexOf(data, J2K_SIGNATURE, 0);
+        int jpeg2000 = jp2 < 0 ? j2k : j2k < 0 ? jp2 : Math.min(jp2, j2k);
+        if (jpeg >= 0 && (jpeg2000 < 0 || jpeg < jpeg2000)) {
+            return new Image(data, jpeg, data.length - jpeg, AppProperties.IMAGE_JPEG);
+        } else if (jpeg2000 >= 0) {
+            return new Image(data, jpeg2000, data.length - jpeg2000, AppProperties.IMAGE_JP2);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the headers of the first image of an ISO 19794-5 record
+     *
+     * @return the image, null if the headers do not describe an image inside the data
+     */
+    private static Image parseFaceRecord(byte[] data, int record) {
+        int block = record + RECORD_HEADER;
+        if (block + FACIAL_INFORMATION > data.length) {
+            return null;
+        }
+        long blockLength = readUnsigned(data, block, 4);
+        int featurePoints = (int) readUnsigned(data, block + 4, 2);
+        int imageInformation = block + FACIAL_INFORMATION + featurePoints * FEATURE_POINT;
+        int offset = imageInformation + IMAGE_INFORMATION;
+        long length = block + blockLength - offset;
+        if (offset > data.length || length <= 0 || offset + length > data.length) {
+            return null;
+        }
+        String mimeType = (data[imageInformation + 1] & 0xFF) == IMAGE_DATA_JPEG2000
+                ? AppProperties.IMAGE_JP2 : AppProperties.IMAGE_JPEG;
+        return new Image(data, offset, (int) length, mimeType);
+    }
+
+    private static long readUnsigned(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return the index of the first occurrence of pattern in data from start, -1 if there is none
+     */
+    private static int indexOf(byte[] data, byte[] pattern, int start) {
+        search:
+        for (int i = start; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * An image inside the content of a data group
+     */
+    public static class Image {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+        private final String mimeType;
+
+        Image(byte[] data, int offset, int length, String mimeType) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * @return the content of the data group, the image starts at @getOffset
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+}
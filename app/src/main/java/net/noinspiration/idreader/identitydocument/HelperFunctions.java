@@ -2,6 +2,7 @@ package net.noinspiration.idreader.identitydocument;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.nfc.TagLostException;
 
 import net.noinspiration.idreader.helper.ProcessInputStream;
 
@@ -108,4 +109,25 @@ public class HelperFunctions {
 
         return new String(toReturn);
     }
+
+    /**
+     * Checks whether an exception was caused by the document leaving the NFC field
+     * The card service layers either wrap the TagLostException or only keep its message
+     *
+     * @param throwable the exception
+     * @return true if the tag was lost
+     */
+    public static boolean isTagLost(Throwable throwable) {
+        while (throwable != null) {
+            if (throwable instanceof TagLostException) {
+                return true;
+            }
+            String message = throwable.getMessage();
+            if (message != null && (message.contains("TagLostException") || message.contains("Tag was lost"))) {
+                return true;
+            }
+            throwable = throwable.getCause();
+        }
+        return false;
+    }
 }
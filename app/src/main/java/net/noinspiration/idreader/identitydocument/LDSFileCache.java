@@ -0,0 +1,86 @@
+package net.noinspiration.idreader.identitydocument;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the files read from a document during a session, along with their digests.
+ * Digests are either computed while the file is read (when the algorithm is already known)
+ * or lazily from the stored bytes, so a file never has to be read twice to be hashed.
+ */
+public class LDSFileCache {
+
+    private final Map<Short, Entry> entries = new HashMap<>();
+
+    /**
+     * Stores a file
+     *
+     * @param file            The file identifier
+     * @param bytes           The content of the file
+     * @param digestAlgorithm The algorithm used to compute @digest, null if none
+     * @param digest          The digest computed while reading, null if none
+     */
+    public synchronized void put(short file, byte[] bytes, String digestAlgorithm, byte[] digest) {
+        Entry entry = new Entry(bytes);
+        if (digestAlgorithm != null && digest != null) {
+            entry.digests.put(digestAlgorithm, digest);
+        }
+        entries.put(file, entry);
+    }
+
+    /**
+     * @param file The file identifier
+     * @return the content of the file, null if it has not been read
+     */
+    public synchronized byte[] get(short file) {
+        Entry entry = entries.get(file);
+        return entry == null ? null : entry.bytes;
+    }
+
+    public synchronized boolean contains(short file) {
+        return entries.containsKey(file);
+    }
+
+    /**
+     * Gets the digest of a file, computing it from the stored bytes if needed
+     *
+     * @param file      The file identifier
+     * @param algorithm The digest algorithm
+     * @return the digest, null if the file has not been read
+     * @throws NoSuchAlgorithmException When the algorithm is not available
+     */
+    public byte[] getDigest(short file, String algorithm) throws NoSuchAlgorithmException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(file);
+            if (entry == null) {
+                return null;
+            }
+            byte[] digest = entry.digests.get(algorithm);
+            if (digest != null) {
+                return digest;
+            }
+        }
+
+        // Hash outside of the lock, files can be large
+        byte[] digest = MessageDigest.getInstance(algorithm).digest(entry.bytes);
+        synchronized (this) {
+            entry.digests.put(algorithm, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * A file and the digests computed for it
+     */
+    private static class Entry {
+        private final byte[] bytes;
+        private final Map<String, byte[]> digests = new HashMap<>();
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
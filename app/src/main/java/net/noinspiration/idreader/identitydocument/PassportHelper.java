@@ -1,20 +1,30 @@
 package net.noinspiration.idreader.identitydocument;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.util.Log;
 import android.util.SparseArray;
 
+import net.noinspiration.idreader.cardservice.APDUStatistics;
+import net.noinspiration.idreader.cardservice.InstrumentedAPDUWrapper;
 import net.noinspiration.idreader.helper.AppProperties;
-import net.noinspiration.idreader.helper.ImageHelper;
-import net.noinspiration.idreader.helper.ProcessInputStream;
+import net.noinspiration.idreader.helper.BlockSizeController;
+import net.noinspiration.idreader.helper.ChipProfile;
+import net.noinspiration.idreader.helper.DecodePool;
+import net.noinspiration.idreader.helper.ImageCache;
+import net.noinspiration.idreader.helper.PhotoStore;
+import net.noinspiration.idreader.helper.ReadMetrics;
+import net.noinspiration.idreader.helper.ReadProfile;
+import net.noinspiration.idreader.helper.VerificationPool;
 import net.noinspiration.idreader.interfaces.InputStreamListener;
-import net.sf.scuba.smartcards.CardFileInputStream;
+import net.sf.scuba.smartcards.APDUWrapper;
 import net.sf.scuba.smartcards.CardServiceException;
 
 import org.jmrtd.BACKey;
+import org.jmrtd.DefaultFileSystem;
 import org.jmrtd.PassportService;
+import org.jmrtd.lds.LDSFileUtil;
 import org.jmrtd.lds.SODFile;
+import org.jmrtd.lds.icao.COMFile;
 import org.jmrtd.lds.icao.DG11File;
 import org.jmrtd.lds.icao.DG15File;
 import org.jmrtd.lds.icao.DG1File;
@@ -23,12 +33,11 @@ import org.jmrtd.lds.icao.DG7File;
 import org.jmrtd.lds.icao.MRZInfo;
 import org.jmrtd.lds.iso19794.FaceImageInfo;
 import org.jmrtd.lds.iso19794.FaceInfo;
+import org.jmrtd.protocol.ReadBinaryAPDUSender;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
@@ -44,13 +53,17 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 
 import static net.noinspiration.idreader.helper.AppProperties.subtractYears;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.capitalize;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.fromBytes;
-import static net.noinspiration.idreader.identitydocument.HelperFunctions.getBytesFromInputStream;
+import static net.noinspiration.idreader.identitydocument.HelperFunctions.isTagLost;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.toLocaleDate;
 import static net.noinspiration.idreader.identitydocument.HelperFunctions.toSQLDate;
 
@@ -68,8 +81,6 @@ public class PassportHelper implements InputStreamListener {
 
     // Data groups present on the NFC chip
     private final static SparseArray<Short> dataGroups;
-    // Maximum size for BINARY READ
-    private final static int MAX_BLOCK_READ_SIZE = 200;
 
     static {
         dataGroups = new SparseArray<>();
@@ -94,8 +105,21 @@ public class PassportHelper implements InputStreamListener {
     // Listener callback for progress
     private final InputStreamListener progressListener;
 
-    // The object used to access an identity document
-    private final PassportService passportService;
+    // The object used to access an identity document, replaced when the document is reconnected
+    private PassportService passportService;
+    // Key used to authenticate, kept to authenticate again after the document was lost
+    private final BACKey bacKey;
+
+    // Reads files from the document once authenticated
+    private final ChipFileReader chipFileReader;
+    // File system of the current session
+    private DefaultFileSystem fileSystem;
+    // Measurements of the APDUs, null when not instrumented
+    private APDUStatistics statistics;
+    // Timings of the session, null when not measured
+    private ReadMetrics readMetrics;
+    // What is known about the chip from previous sessions, updated while reading, can be null
+    private ChipProfile chipProfile;
 
     // Document holder information
     private String firstName;
@@ -110,6 +134,9 @@ public class PassportHelper implements InputStreamListener {
     private String nationality;
     private String placeOfBirth;
     private String photo;
+    // Photo as encoded on the chip, and its MIME type
+    private String photoSource;
+    private String photoMimeType;
 
     // Document signing
     private boolean authenticationSuccess = false;
@@ -126,11 +153,20 @@ public class PassportHelper implements InputStreamListener {
     // Context of the application for UI updates
     private Context context;
 
-    // Holds files that may be read more than once
-    private byte[] dg1 = null;
-    private byte[] dg2 = null;
-    private byte[] dg11 = null;
+    // Data groups to read and whether to verify them
+    private ReadProfile readProfile = ReadProfile.full();
+
+    // Data groups present on the document, from the SOD or EF.COM, null if unknown
+    private Set<Integer> presentDataGroups;
+    // Files to read, see @planReading
+    private ReadPlan readPlan;
+
+    // Security object of the document, files themselves are cached by @ChipFileReader
     private SODFile sod = null;
+    // Verification of the document's certificate (dates and CSCA) and of the SOD signature (DSC),
+    // running side by side on the @VerificationPool
+    private Future<Boolean> certificateVerification;
+    private Future<Boolean> signatureVerification;
 
     // Is the document legitimate
     private boolean certified;
@@ -142,22 +178,195 @@ public class PassportHelper implements InputStreamListener {
     /**
      * Constructor
      *
-     * @param passportService  the JMRTD object to access an identity document
-     * @param bacKey           the Basic Access Control key to authenticate
-     * @param context          the application context (for UI updates)
-     * @param progressListener the listener that tracks progress
+     * @param passportService     the JMRTD object to access an identity document
+     * @param bacKey              the Basic Access Control key to authenticate
+     * @param blockSizeController the controller deciding the size of every BINARY READ
+     * @param context             the application context (for UI updates)
+     * @param progressListener    the listener that tracks progress
      * @throws CardServiceException When authentication or reading doesn't work
      */
-    public PassportHelper(PassportService passportService, BACKey bacKey, Context context, InputStreamListener progressListener) throws CardServiceException {
+    public PassportHelper(PassportService passportService, BACKey bacKey, BlockSizeController blockSizeController, Context context, InputStreamListener progressListener) throws CardServiceException {
         this.passportService = passportService;
+        this.bacKey = bacKey;
         this.context = context;
         this.progressListener = progressListener;
 
+        chipFileReader = new ChipFileReader(authenticate(), blockSizeController);
+
+        authenticationSuccess = true;
+    }
+
+    /**
+     * Authenticates again after the document was lost and put back on the phone
+     * Files already read, even partially, are kept and reading continues where it stopped
+     *
+     * @param passportService the JMRTD object to access the reconnected document
+     * @throws CardServiceException When authentication doesn't work
+     */
+    public void reauthenticate(PassportService passportService) throws CardServiceException {
+        this.passportService = passportService;
+        chipFileReader.setFileSystem(authenticate());
+    }
+
+    /**
+     * Selects the applet and performs BAC
+     *
+     * @return the file system of the document, reading through secure messaging
+     * @throws CardServiceException When authentication doesn't work
+     */
+    private DefaultFileSystem authenticate() throws CardServiceException {
         // Perform authentication
         passportService.sendSelectApplet(false);
         passportService.doBAC(bacKey);
 
-        authenticationSuccess = true;
+        // Read files through the secure messaging channel set up by BAC
+        ReadBinaryAPDUSender bSender = new ReadBinaryAPDUSender(passportService);
+        fileSystem = new DefaultFileSystem(bSender, false);
+        fileSystem.setWrapper(instrument(passportService.getWrapper()));
+        return fileSystem;
+    }
+
+    /**
+     * Measures secure messaging of the following APDUs, see @APDUStatistics
+     *
+     * @param statistics the statistics of the session, shared with its @InstrumentedCardService
+     */
+    public void setAPDUStatistics(APDUStatistics statistics) {
+        this.statistics = statistics;
+        fileSystem.setWrapper(instrument(passportService.getWrapper()));
+    }
+
+    private APDUWrapper instrument(APDUWrapper wrapper) {
+        return statistics == null ? wrapper : new InstrumentedAPDUWrapper(wrapper, statistics);
+    }
+
+    /**
+     * Measures the session into @ReadMetrics: bytes per file, decoding and verification times
+     *
+     * @param readMetrics the metrics of the session
+     */
+    public void setReadMetrics(ReadMetrics readMetrics) {
+        this.readMetrics = readMetrics;
+        chipFileReader.setReadMetrics(readMetrics);
+    }
+
+    /**
+     * Skips data groups known to be absent and records what is learnt about the chip
+     *
+     * @param chipProfile the profile of the chip, see @ChipProfileCache
+     */
+    public void setChipProfile(ChipProfile chipProfile) {
+        this.chipProfile = chipProfile;
+        chipFileReader.setChipProfile(chipProfile);
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return false if the data group is known to be absent from the chip
+     */
+    private boolean mayBePresent(int dataGroup) {
+        if (presentDataGroups != null) {
+            return presentDataGroups.contains(dataGroup);
+        }
+        return chipProfile == null || chipProfile.hasDataGroup(dataGroup);
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return true if the data group is read with the current profile and present on the chip
+     */
+    private boolean isPlanned(int dataGroup) {
+        return readProfile.includes(dataGroup) && mayBePresent(dataGroup);
+    }
+
+    /**
+     * Plans the files to read from the data groups present on the document. They are listed by
+     * the SOD when verifying, since it is read anyway (the certificate verification then starts
+     * before DG1 is read), by a previous session or by EF.COM otherwise.
+     * Called before reading, and again when the session is resumed
+     *
+     * @param listener notified with the progress of the whole reading, can be null
+     * @return the plan
+     * @throws CardServiceException When the document is lost while reading the SOD or EF.COM
+     * @throws IOException          When the document is lost while reading the SOD or EF.COM
+     */
+    public ReadPlan planReading(InputStreamListener listener) throws CardServiceException, IOException {
+        if (readProfile.isVerify()) {
+            startVerification();
+            if (sod != null) {
+                presentDataGroups = new TreeSet<>(sod.getDataGroupHashes().keySet());
+            }
+        }
+        if (presentDataGroups == null && chipProfile != null) {
+            presentDataGroups = chipProfile.getDataGroups();
+        }
+        if (presentDataGroups == null) {
+            presentDataGroups = readCOM();
+        }
+
+        // Same order as @NfcReader: holder information, SOD, photo, then what is only verified
+        List<Short> files = new ArrayList<>();
+        files.add(PassportService.EF_DG1);
+        if (isPlanned(11)) {
+            files.add(PassportService.EF_DG11);
+        }
+        if (readProfile.isVerify()) {
+            files.add(PassportService.EF_SOD);
+        }
+        if (isPlanned(2)) {
+            files.add(PassportService.EF_DG2);
+        }
+        if (readProfile.isVerify()) {
+            for (int dataGroup : readProfile.getDataGroups()) {
+                if (dataGroup != 1 && dataGroup != 2 && dataGroup != 11 && isPlanned(dataGroup)) {
+                    files.add(dataGroups.get(dataGroup));
+                }
+            }
+        }
+        readPlan = chipFileReader.plan(files, listener);
+        Log.d(TAG, "Read plan: " + files.size() + " files, " + readPlan.getTotalSize() + " bytes");
+        return readPlan;
+    }
+
+    /**
+     * Reads the data groups listed in EF.COM
+     *
+     * @return the data groups present, null if EF.COM cannot be read
+     * @throws CardServiceException When the document is lost
+     * @throws IOException          When the document is lost
+     */
+    private Set<Integer> readCOM() throws CardServiceException, IOException {
+        try {
+            COMFile com = new COMFile(new ByteArrayInputStream(readFile(PassportService.EF_COM)));
+            Set<Integer> present = new TreeSet<>();
+            for (int tag : com.getTagList()) {
+                present.add(LDSFileUtil.lookupDataGroupNumberByTag(tag));
+            }
+            if (chipProfile != null) {
+                chipProfile.setDataGroups(present);
+            }
+            return present;
+        } catch (CardServiceException | IOException e) {
+            // The reading is suspended and resumes from here, see @NfcReader
+            if (isTagLost(e)) {
+                throw e;
+            }
+            Log.e(TAG, "Error reading EF.COM " + e.toString());
+            return null;
+        } catch (NumberFormatException e) {
+            // Tag of an unknown data group
+            Log.e(TAG, "Error reading EF.COM " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Adds the time elapsed since start to a verification check, if measured
+     */
+    private void addVerificationTime(String check, long start) {
+        if (readMetrics != null) {
+            readMetrics.addVerificationTime(check, (System.nanoTime() - start) / 1000);
+        }
     }
 
     /**
@@ -167,9 +376,11 @@ public class PassportHelper implements InputStreamListener {
      */
     @Override
     public void process(int percent) {
-        if (!isCheckingCertificate)
-            progressListener.process(percent);
-        else {
+        if (!isCheckingCertificate) {
+            // The SOD read early is not part of the current stage
+            if (!readingSOD)
+                progressListener.process(percent);
+        } else {
             if (readingSOD) {
                 // Map the reading of the SOD to 30% of the progress bar
                 progressListener.process((int) (percent * 0.3));
@@ -187,9 +398,7 @@ public class PassportHelper implements InputStreamListener {
      */
     public void readDG1() throws CardServiceException, IOException, ParseException, SignatureException {
         // Read DG1
-        readFile(PassportService.EF_DG1);
-
-        DG1File dg1 = new DG1File(new ByteArrayInputStream(this.dg1));
+        DG1File dg1 = new DG1File(new ByteArrayInputStream(readFile(PassportService.EF_DG1)));
         // Extract MRZ info from DG1
         MRZInfo info = dg1.getMRZInfo();
 
@@ -218,12 +427,15 @@ public class PassportHelper implements InputStreamListener {
             documentType = AppProperties.DOCTYPE_PASSPORT;
         }
 
-        // Try to extract DG11 if present (additional holder information)
+        // Extract DG11 if present (additional holder information) and wanted
+        if (!isPlanned(11)) {
+            return;
+        }
         try {
-            readFile(PassportService.EF_DG11);
+            byte[] dg11File = readFile(PassportService.EF_DG11);
             Log.d(TAG, "Extracting DG11 information");
 
-            DG11File dg11 = new DG11File(new ByteArrayInputStream(this.dg11));
+            DG11File dg11 = new DG11File(new ByteArrayInputStream(dg11File));
             // Get the full name from DG11 and format it
             String name = dg11.getNameOfHolder();
             String names[] = name.split("<<");
@@ -237,22 +449,27 @@ public class PassportHelper implements InputStreamListener {
             }
 
         } catch (CardServiceException e) {
+            // The reading is suspended and resumes from here, see @NfcReader
+            if (isTagLost(e)) {
+                throw e;
+            }
             Log.d(TAG, "DG11 not present");
         }
     }
 
     /**
      * Reads DG2 datagroup (holder's photo)
+     * The photo is stored on the @DecodePool, @getPhoto and @getPhotoSource are set once the
+     * returned task is done
      *
+     * @return the task storing the photo, giving its path, null if there is no photo
      * @throws CardServiceException When something goes wrong with chip reading
      * @throws IOException          When extracting the data group fails
      * @throws SignatureException
      */
-    public void readDG2() throws CardServiceException, IOException, SignatureException {
+    public Future<String> readDG2() throws CardServiceException, IOException, SignatureException {
         // Read DG2
-        readFile(PassportService.EF_DG2);
-
-        DG2File dg2 = new DG2File(new ByteArrayInputStream(this.dg2));
+        DG2File dg2 = new DG2File(new ByteArrayInputStream(readFile(PassportService.EF_DG2)));
 
         // Extract face information
         List<FaceImageInfo> faceImageInfos = new ArrayList<>();
@@ -267,101 +484,241 @@ public class PassportHelper implements InputStreamListener {
             FaceImageInfo faceImageInfo = faceImageInfos.iterator().next();
             int imageLength = faceImageInfo.getImageLength();
             DataInputStream dataInputStream = new DataInputStream(faceImageInfo.getImageInputStream());
-            byte[] buffer = new byte[imageLength];
+            final byte[] buffer = new byte[imageLength];
             dataInputStream.readFully(buffer, 0, imageLength);
-            InputStream inputStream = new ByteArrayInputStream(buffer, 0, imageLength);
-            Bitmap picture = ImageHelper.decodeImage(context, faceImageInfo.getMimeType(), inputStream);
-
-            // If the photo is extracted correctly
-            if (picture != null) {
-                // Store image to file
-                String output = context.getCacheDir().toString() + "/passport.jpg";
-                FileOutputStream out = new FileOutputStream(output);
-                picture.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                photo = output;
-            }
+
+            photoMimeType = faceImageInfo.getMimeType();
+            return DecodePool.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    // JPEG photos are kept as they are, others are converted from a preview
+                    long start = System.nanoTime();
+                    photo = PhotoStore.store(context, getImageKey(PassportService.EF_DG2, "photo"),
+                            photoMimeType, buffer, 0, buffer.length);
+                    if (readMetrics != null) {
+                        readMetrics.addDecodeTime((System.nanoTime() - start) / 1000);
+                    }
+
+                    // The photo as encoded on the chip, decoded at full resolution only when enlarged
+                    if (!PhotoStore.isDisplayable(photoMimeType)) {
+                        photoSource = PhotoStore.write(context, getImageKey(PassportService.EF_DG2, "source"),
+                                photoMimeType, buffer, 0, buffer.length);
+                    }
+                    return photo;
+                }
+            });
         }
+        return null;
     }
 
     /**
-     * Checks the document's legitimacy against:
-     * 1. The dates present on the document's embedded certificate
-     * 2. The document's country root CA (CSCA)
-     * 3. The document's certificate signature (DSC)
-     * 4. The hashes of each data group
+     * Gives the key in the @ImageCache of an image, from the hash of its data group
+     *
+     * @param file    The data group holding the image, already read
+     * @param variant Which image of the data group
+     * @return the key of the image
+     * @throws IOException When the data group cannot be hashed
      */
-    public void checkLegitimacy() {
-        isCheckingCertificate = true;
-        readingSOD = true;
+    private String getImageKey(short file, String variant) throws IOException {
+        try {
+            return ImageCache.getKey(fromBytes(chipFileReader.getCachedDigest(file, "SHA-256")), variant);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the SOD and starts verifying the document's certificate on the @VerificationPool,
+     * so that the signatures are checked while the remaining data groups are read.
+     * Called by @planReading, the result is collected by @checkLegitimacy
+     *
+     * @throws CardServiceException When the document is lost while reading the SOD
+     * @throws IOException          When the document is lost while reading the SOD
+     */
+    public void startVerification() throws CardServiceException, IOException {
+        // Already started
+        if (sod != null) {
+            return;
+        }
 
         // Try extracting the SOD
+        readingSOD = true;
         try {
-            readFile(PassportService.EF_SOD);
-        } catch (Exception e) {
-            // In case it fails, return
-            certified = false;
+            sod = new SODFile(new ByteArrayInputStream(readFile(PassportService.EF_SOD)));
+            // Files read from now on are hashed on the @VerificationPool as soon as they are read
+            chipFileReader.setDigestAlgorithm(sod.getDigestAlgorithm());
+            if (chipProfile != null) {
+                chipProfile.setDataGroups(sod.getDataGroupHashes().keySet());
+            }
+        } catch (CardServiceException | IOException e) {
+            // The reading is suspended and resumes from here, see @NfcReader
+            if (isTagLost(e)) {
+                throw e;
+            }
+            // Absent or malformed SOD, the document is not verified
             Log.e(TAG, "Error reading SOD " + e.toString());
             return;
+        } finally {
+            readingSOD = false;
         }
 
         // Extract the embedded document's certificate
-        X509Certificate certificate = sod.getDocSigningCertificate();
+        final X509Certificate certificate = sod.getDocSigningCertificate();
         if (certificate == null) {
             Log.e(TAG, "Certificate non existent");
-            certified = false;
             return;
         }
 
         dscCertificate = certificate;
 
-        readingSOD = false;
+        certificateVerification = VerificationPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return verifyCertificate(certificate);
+            }
+        });
+        signatureVerification = VerificationPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long start = System.nanoTime();
+                boolean dscValid = checkDSC(certificate);
+                addVerificationTime(ReadMetrics.CHECK_DSC, start);
+                return dscValid;
+            }
+        });
+    }
 
-        // Verify validity
+    /**
+     * @return the SHA-256 of the SOD read when planning, identifies the document and its data,
+     * null if the SOD was not read
+     */
+    public String getSODFingerprint() {
+        if (sod == null) {
+            return null;
+        }
         try {
-            certificate.checkValidity();
-        } catch (CertificateExpiredException | CertificateNotYetValidException e) {
-            certified = false;
-            Log.e(TAG, "Certificate dates invalid");
-            isCheckingCertificate = false;
-            return;
+            return fromBytes(chipFileReader.getCachedDigest(PassportService.EF_SOD, "SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
         }
+    }
 
-        progressListener.process(32);
-
-        // Check against country's root CA (CSCA)
-        checkCSCA(certificate);
-        if (!certified) {
-            isCheckingCertificate = false;
-            return;
+    /**
+     * Reads a data group and checks it against the SOD, ties a document to a SOD seen before
+     *
+     * @param dataGroup the data group number
+     * @return true if the data group matches its hash in the SOD
+     */
+    public boolean matchesSOD(int dataGroup) {
+        if (sod == null) {
+            return false;
         }
-        countrySignerSuccess = true;
+        try {
+            short file = dataGroups.get(dataGroup);
+            readFile(file);
+            // Submitted when the file was read, not hashed twice
+            byte[] hash = chipFileReader.submitDigest(file, sod.getDigestAlgorithm()).get();
+            return Arrays.equals(hash, sod.getDataGroupHashes().get(dataGroup));
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking DG" + dataGroup + ": " + e.toString());
+            return false;
+        }
+    }
 
-        // Check certificate signature (DSC)
-        checkDSC(certificate);
-        if (!certified) {
+    /**
+     * Checks the document's legitimacy against:
+     * 1. The dates present on the document's embedded certificate
+     * 2. The document's country root CA (CSCA)
+     * 3. The document's certificate signature (DSC)
+     * 4. The hashes of each data group
+     * Everything runs on the @VerificationPool: 1 and 2, 3, and every hash side by side
+     *
+     * @throws CardServiceException When the document is lost while reading the SOD
+     * @throws IOException          When the document is lost while reading the SOD
+     */
+    public void checkLegitimacy() throws CardServiceException, IOException {
+        isCheckingCertificate = true;
+
+        // The SOD is normally read when planning already
+        startVerification();
+        if (certificateVerification == null) {
+            // In case it fails, return
+            certified = false;
             isCheckingCertificate = false;
             return;
         }
-        documentSignerSuccess = true;
 
-        // Check data group hashes
+        progressListener.process(50);
+
+        // Check data group hashes, reading the data groups that are still missing
+        boolean hashesValid;
+        long start = System.nanoTime();
         try {
-            checkDatagroupHashes();
+            hashesValid = checkDatagroupHashes();
         } catch (Exception e) {
-            certified = false;
+            hashesValid = false;
         }
+        addVerificationTime(ReadMetrics.CHECK_HASHES, start);
+
+        // Wait for the certificate verification
+        boolean certificateValid;
+        boolean signatureValid;
+        start = System.nanoTime();
+        try {
+            certificateValid = certificateVerification.get();
+            signatureValid = signatureVerification.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Certificate verification failed " + e.toString());
+            certificateValid = false;
+            signatureValid = false;
+        }
+
+        addVerificationTime(ReadMetrics.CHECK_WAIT, start);
+
+        // The signature only counts if the certificate itself is trusted
+        documentSignerSuccess = certificateValid && signatureValid;
+        certified = documentSignerSuccess && hashesValid;
         if (certified)
             datagroupHashesSuccess = true;
 
         isCheckingCertificate = false;
     }
 
+    /**
+     * Verifies the dates of the document's certificate and its signature by the CSCA
+     * Runs on the @VerificationPool, the signature of the SOD is checked by another task
+     *
+     * @param certificate The certificate to check
+     * @return true if the certificate is valid
+     */
+    private boolean verifyCertificate(@NonNull X509Certificate certificate) {
+        // Verify validity
+        try {
+            certificate.checkValidity();
+        } catch (CertificateExpiredException | CertificateNotYetValidException e) {
+            Log.e(TAG, "Certificate dates invalid");
+            return false;
+        }
+
+        // Check against country's root CA (CSCA)
+        long start = System.nanoTime();
+        boolean cscaValid = checkCSCA(certificate);
+        addVerificationTime(ReadMetrics.CHECK_CSCA, start);
+        if (!cscaValid) {
+            return false;
+        }
+        countrySignerSuccess = true;
+
+        return true;
+    }
+
     /**
      * Validates a document's certificate against the country's root certificate (public key validation)
      *
      * @param certificate The certificate to check
+     * @return true if the certificate is signed by the country's root certificate
      */
-    private void checkCSCA(@NonNull X509Certificate certificate) {
+    private boolean checkCSCA(@NonNull X509Certificate certificate) {
         // Get certificate issuer country
         String country = certificate.getIssuerDN().toString();
         int index = country.indexOf("C=") + 2;
@@ -376,70 +733,104 @@ public class PassportHelper implements InputStreamListener {
                 try {
                     // If valid
                     certificate.verify(c.getPublicKey());
-                    certified = true;
                     cscaCertificate = c;
                     Log.d(TAG, "Root CA valid (Certificate " + country + ": " + c.getSerialNumber() + ")");
-                    break;
+                    return true;
                 } catch (Exception e) {
                     // If invalid
                     Log.d(TAG, "Verification failed (Certificate " + country + ": " + c.getSerialNumber() + ")");
-                    certified = false;
                 }
             }
-        } else {
-            certified = false;
         }
-
-        progressListener.process(45);
+        return false;
     }
 
     /**
      * Check a certificate's signature
      *
      * @param certificate The certificate to check
+     * @return true if the signature is valid
      */
-    private void checkDSC(@NonNull X509Certificate certificate) {
+    private boolean checkDSC(@NonNull X509Certificate certificate) {
         try {
             Signature signature = Signature.getInstance(certificate.getSigAlgName());
             signature.initVerify(certificate.getPublicKey());
             signature.update(sod.getEContent());
             signature.verify(certificate.getSignature());
             Log.d(TAG, "DSC validation succeeded");
+            return true;
         } catch (Exception e) {
-            certified = false;
             Log.e(TAG, "DSC validation failed");
+            return false;
         }
-
-        progressListener.process(50);
     }
 
     /**
      * Compute data group hashes
      *
+     * @return true if every data group read matches its hash
      * @throws NoSuchAlgorithmException When unable to hash using the algorithm embedded in the certificate
      * @throws NullPointerException     When reading goes wrong
      */
-    private void checkDatagroupHashes() throws NoSuchAlgorithmException, NullPointerException {
+    private boolean checkDatagroupHashes() throws NoSuchAlgorithmException, NullPointerException {
         // Get data groups signatures and a digest for the algorithm used to hash them
         Map<Integer, byte[]> hashes = sod.getDataGroupHashes();
-        MessageDigest crypt = MessageDigest.getInstance(sod.getDigestAlgorithm());
+        String digestAlgorithm = sod.getDigestAlgorithm();
+        // Fail early if the algorithm is not available
+        MessageDigest.getInstance(digestAlgorithm);
 
-        byte[] hash, control;
-        int counter = 0;
+        // Progress is the share of the bytes to hash, files still to read take the longest
         Set<Integer> keys = hashes.keySet();
+        long total = 0;
+        for (int i : keys) {
+            total += getPlannedSize(i);
+        }
+        long done = 0;
+
+        // Data groups are read one after the other and hashed side by side on the
+        // @VerificationPool as soon as they are read, see @ChipFileReader.submitDigest:
+        // those read before (DG1, photo) are already being hashed
+        Map<Integer, Future<byte[]>> digests = new HashMap<>();
+        for (int i : keys) {
+            done += getPlannedSize(i);
+            // Data groups outside of the read profile are not read
+            if (readProfile.includes(i)) {
+                try {
+                    short file = dataGroups.get(i);
+                    // Files already read come from the session cache, without touching the chip
+                    chipFileReader.readFile(file, this);
+                    digests.put(i, chipFileReader.submitDigest(file, digestAlgorithm));
+                } catch (Exception e) {
+                    Log.e(TAG, "Error reading DG" + i + ": " + e.toString());
+                }
+            }
+            progressListener.process(50 + (int) (50 * done / total));
+        }
+
+        // Compare the digests to the SOD, in the order of the SOD
+        boolean valid = true;
+        byte[] hash, control;
         for (int i : keys) {
-            counter++;
             try {
                 control = hashes.get(i);
                 datagroupControl.append(i, fromBytes(control));
 
-                byte[] file = readFile(dataGroups.get(i));
-                hash = crypt.digest(file);
+                // Data groups outside of the read profile are not read, hence not verified
+                if (!readProfile.includes(i)) {
+                    datagroupHashes.append(i, AppProperties.DG_NOT_VERIFIED);
+                    continue;
+                }
+
+                Future<byte[]> digest = digests.get(i);
+                if (digest == null) {
+                    throw new IOException("DG" + i + " not read");
+                }
+                hash = digest.get();
                 datagroupHashes.append(i, fromBytes(hash));
 
                 if (!Arrays.equals(hash, control)) {
                     Log.e(TAG, "Wrong hash for DG" + i);
-                    certified = false;
+                    valid = false;
                 } else
                     Log.d(TAG, "Valid DG" + i + " hash");
 
@@ -447,65 +838,41 @@ public class PassportHelper implements InputStreamListener {
                 Log.e(TAG, "Error getting DG" + i + " hash");
                 datagroupHashes.append(i, "-");
             }
-            progressListener.process(50 + (50 / keys.size()) * counter);
         }
 
+        return valid;
+    }
+
+    /**
+     * @param dataGroup the data group number
+     * @return the size of the data group in the read plan, at least 1 so every data group counts
+     */
+    private int getPlannedSize(int dataGroup) {
+        Short file = dataGroups.get(dataGroup);
+        int size = readPlan == null || file == null ? 0 : readPlan.getSize(file);
+        return Math.max(size, 1);
     }
 
     /**
      * Reads a file present on the document
+     * Files are read from the chip only once per session, see @ChipFileReader
      *
      * @param file The file to read
      * @return a byte array containing the file
      * @throws CardServiceException When accessing the document fails
      * @throws IOException          When reading the file fails
-     * @throws SignatureException
      */
-    private byte[] readFile(short file) throws CardServiceException, IOException, SignatureException {
-
-        byte[] buffer;
-
-        CardFileInputStream cis = passportService.getInputStream(file);
-        ProcessInputStream pis = new ProcessInputStream(cis, cis.getLength());
-        pis.addListener(this);
-
-        // Store files for optimization
-        switch (file) {
-            case PassportService.EF_DG1:
-                if (dg1 != null)
-                    return dg1;
-                else {
-                    dg1 = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "Stored DG1");
-                    return dg1;
-                }
-            case PassportService.EF_DG2:
-                if (dg2 != null)
-                    return dg2;
-                else {
-                    dg2 = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "Stored DG2");
-                    return dg2;
-                }
-            case PassportService.EF_DG11:
-                if (dg11 != null)
-                    return dg11;
-                else {
-                    dg11 = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-                    Log.d(TAG, "Stored DG11");
-                    return dg1;
-                }
-            case PassportService.EF_SOD:
-                if (sod != null)
-                    return sod.getEContent();
-                else {
-                    sod = new SODFile(pis);
-                    return sod.getEContent();
-                }
-            default:
-                buffer = getBytesFromInputStream(pis, MAX_BLOCK_READ_SIZE);
-        }
-        return buffer;
+    private byte[] readFile(short file) throws CardServiceException, IOException {
+        return chipFileReader.readFile(file, this);
+    }
+
+    /**
+     * Sets the data groups to read, can be changed during a session to read more
+     *
+     * @param readProfile the read profile
+     */
+    public void setReadProfile(ReadProfile readProfile) {
+        this.readProfile = readProfile;
     }
 
     /* ------------------------ GETTERS --------------------- */
@@ -554,6 +921,14 @@ public class PassportHelper implements InputStreamListener {
         return photo;
     }
 
+    public String getPhotoSource() {
+        return photoSource;
+    }
+
+    public String getPhotoMimeType() {
+        return photoMimeType;
+    }
+
     public boolean getCertified() {
         return certified;
     }
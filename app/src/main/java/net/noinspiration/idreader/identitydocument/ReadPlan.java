@@ -0,0 +1,142 @@
+package net.noinspiration.idreader.identitydocument;
+
+import net.noinspiration.idreader.interfaces.InputStreamListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files to read from a document during a session, in reading order, built by the helpers
+ * from the data groups listed in EF.COM or in the SOD: files absent from the chip are not part
+ * of the plan and are never selected.
+ * Every file is sized from a typical size until its length is known: read before, known from a
+ * previous session, or announced by its header as soon as it is selected (0 if it cannot be
+ * selected), so that the progress of the whole reading is the share of bytes received.
+ */
+public class ReadPlan {
+
+    // Typical sizes of the data groups (index is the data group number), SOD and EF.COM
+    private final static int[] TYPICAL_SIZES = {0, 100, 16000, 20000, 20000, 5000, 16000, 5000,
+            1000, 1000, 1000, 200, 200, 1000, 500, 300, 500};
+    private final static int TYPICAL_SOD_SIZE = 2000;
+    private final static int TYPICAL_COM_SIZE = 30;
+
+    private final List<Short> files;
+    private final InputStreamListener listener;
+
+    // Bytes per file: expected and received
+    private final Map<Short, Integer> sizes = new HashMap<>();
+    private final Map<Short, Integer> received = new HashMap<>();
+    private int lastProgress = -1;
+
+    /**
+     * Constructor, see @ChipFileReader.plan
+     *
+     * @param files    the files to read, in reading order
+     * @param listener notified with the progress of the whole reading, can be null
+     */
+    ReadPlan(List<Short> files, InputStreamListener listener) {
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        this.listener = listener;
+        for (short file : files) {
+            sizes.put(file, getTypicalSize(file));
+        }
+    }
+
+    /**
+     * @param file the file identifier
+     * @return the usual size of the file on a document
+     */
+    static int getTypicalSize(short file) {
+        int id = file & 0xFF;
+        if (id == 0x1D) {
+            return TYPICAL_SOD_SIZE;
+        } else if (id == 0x1E) {
+            return TYPICAL_COM_SIZE;
+        } else if (id >= 1 && id < TYPICAL_SIZES.length) {
+            return TYPICAL_SIZES[id];
+        }
+        return TYPICAL_COM_SIZE;
+    }
+
+    /**
+     * Sets the length of a file, once known, replacing its typical size
+     */
+    synchronized void setSize(short file, int size) {
+        if (contains(file)) {
+            sizes.put(file, size);
+        }
+    }
+
+    /**
+     * Sets the bytes received for a file and notifies the progress of the whole reading
+     */
+    void setReceived(short file, int bytes) {
+        int progress;
+        synchronized (this) {
+            if (!contains(file)) {
+                return;
+            }
+            received.put(file, bytes);
+            progress = getProgress();
+            if (progress == lastProgress) {
+                return;
+            }
+            lastProgress = progress;
+        }
+        if (listener != null) {
+            listener.process(progress);
+        }
+    }
+
+    /* ------------------------ GETTERS --------------------- */
+
+    /**
+     * @return the files to read, in reading order
+     */
+    public List<Short> getFiles() {
+        return files;
+    }
+
+    public boolean contains(short file) {
+        return files.contains(file);
+    }
+
+    /**
+     * @param file the file identifier
+     * @return the length of the file if known, its typical size otherwise, 0 if not planned
+     */
+    public synchronized int getSize(short file) {
+        Integer size = sizes.get(file);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * @return the expected number of bytes of the whole reading
+     */
+    public synchronized int getTotalSize() {
+        int total = 0;
+        for (int size : sizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * @return the progress of the whole reading, in percent of the bytes to receive
+     */
+    public synchronized int getProgress() {
+        int total = getTotalSize();
+        if (total == 0) {
+            return 100;
+        }
+        long done = 0;
+        for (Map.Entry<Short, Integer> entry : received.entrySet()) {
+            done += Math.min(entry.getValue(), sizes.get(entry.getKey()));
+        }
+        return (int) (done * 100 / total);
+    }
+}
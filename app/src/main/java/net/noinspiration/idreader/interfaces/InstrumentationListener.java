@@ -0,0 +1,15 @@
+package net.noinspiration.idreader.interfaces;
+
+import net.noinspiration.idreader.cardservice.APDURecord;
+import net.noinspiration.idreader.cardservice.APDUStatistics;
+
+public interface InstrumentationListener {
+
+    /**
+     * Called after every APDU exchanged with the document, on the reading thread
+     *
+     * @param record     the measurements of the APDU
+     * @param statistics the aggregated measurements of the session
+     */
+    void onAPDU(APDURecord record, APDUStatistics statistics);
+}
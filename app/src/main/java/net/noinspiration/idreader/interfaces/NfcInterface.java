@@ -18,6 +18,12 @@ public interface NfcInterface {
      */
     void onNfcError();
 
+    /**
+     * Called when the document left the NFC field during reading
+     * The reading continues when the document is found again, see @NfcReader.resume
+     */
+    void onTagLost();
+
     /**
      * Called when the app detects a potentially falsified document
      */
@@ -35,4 +41,11 @@ public interface NfcInterface {
     void updateInformationProgress(int percentage);
 
     void updateCertificateProgress(int percentage);
+
+    /**
+     * Called with the progress of the whole reading, in bytes received from the document
+     *
+     * @param percentage The share of the files to read already received
+     */
+    void updateOverallProgress(int percentage);
 }
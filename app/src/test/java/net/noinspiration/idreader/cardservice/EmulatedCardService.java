@@ -0,0 +1,492 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+import org.jmrtd.BACKey;
+import org.jmrtd.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Software document implementing the @CardService contract, to run the whole reading pipeline
+ * without a phone or a document (benchmarks, load tests).
+ * Serves LDS files from a directory, answers the ICAO eMRTD or the EU eDL application,
+ * performs BAC/BAP and 3DES secure messaging, and models the NFC link with a fixed latency
+ * per APDU and a bit rate.
+ * Files are named after their data group: COM, SOD, DG1 to DG16, optionally prefixed with
+ * "EF_" and with any extension (e.g. "DG2.bin").
+ */
+public class EmulatedCardService extends CardService {
+
+    /**
+     * The application of the emulated document
+     */
+    public enum Application {
+        // Passport/ID card, ICAO 9303
+        ICAO(new byte[]{(byte) 0xA0, 0x00, 0x00, 0x02, 0x47, 0x10, 0x01}, 0x0100),
+        // Driving licence, ISO 18013-3 / EU directive 383/2012
+        EDL(new byte[]{(byte) 0xA0, 0x00, 0x00, 0x04, 0x56, 0x45, 0x44, 0x4C, 0x2D, 0x30, 0x31}, 0x0000);
+
+        private final byte[] aid;
+        // Files are identified by this prefix followed by their short file identifier
+        private final int fidPrefix;
+
+        Application(byte[] aid, int fidPrefix) {
+            this.aid = aid;
+            this.fidPrefix = fidPrefix;
+        }
+    }
+
+    // Instructions
+    private final static int INS_SELECT = 0xA4;
+    private final static int INS_READ_BINARY = 0xB0;
+    private final static int INS_READ_BINARY_ODD = 0xB1;
+    private final static int INS_GET_CHALLENGE = 0x84;
+    private final static int INS_EXTERNAL_AUTHENTICATE = 0x82;
+
+    // Status words
+    private final static int SW_NO_ERROR = 0x9000;
+    private final static int SW_WRONG_LENGTH = 0x6700;
+    private final static int SW_AUTHENTICATION_FAILED = 0x6300;
+    private final static int SW_SECURITY_NOT_SATISFIED = 0x6982;
+    private final static int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private final static int SW_NO_CURRENT_EF = 0x6986;
+    private final static int SW_SM_INCORRECT = 0x6988;
+    private final static int SW_FILE_NOT_FOUND = 0x6A82;
+    private final static int SW_WRONG_OFFSET = 0x6B00;
+    private final static int SW_INS_NOT_SUPPORTED = 0x6D00;
+
+    // Short file identifiers of COM, SOD and EF.ATR/INFO
+    private final static int SFI_COM = 0x1E;
+    private final static int SFI_SOD = 0x1D;
+    private final static int SFI_ATR_INFO = 0x01;
+
+    // Largest response length of a document without extended length support
+    private final static int SHORT_MAX_RESPONSE_LENGTH = 256;
+
+    private final Application application;
+    private final byte[] kEnc;
+    private final byte[] kMac;
+    // Files of the application, by short file identifier
+    private final Map<Integer, byte[]> files;
+    private final SecureRandom random = new SecureRandom();
+
+    // Link model
+    private long latencyMicros;
+    private int bitRate;
+    private int maxResponseLength = SHORT_MAX_RESPONSE_LENGTH;
+
+    // Session state
+    private boolean open;
+    private boolean applicationSelected;
+    private int selectedFile = -1;
+    private byte[] rndICC;
+    private EmulatedSecureMessaging secureMessaging;
+
+    /**
+     * Constructor
+     *
+     * @param application the application of the document
+     * @param keySeed     the key seed computed from the MRZ (see @forPassport, @forDrivingLicence)
+     * @param files       the files of the document, by short file identifier
+     * @throws GeneralSecurityException When deriving the keys fails
+     */
+    public EmulatedCardService(Application application, byte[] keySeed, Map<Integer, byte[]> files) throws GeneralSecurityException {
+        this.application = application;
+        this.kEnc = EmulatedSecureMessaging.deriveKey(keySeed, EmulatedSecureMessaging.ENC_MODE);
+        this.kMac = EmulatedSecureMessaging.deriveKey(keySeed, EmulatedSecureMessaging.MAC_MODE);
+        this.files = files;
+    }
+
+    /**
+     * Emulates a passport/ID card
+     *
+     * @param directory the directory containing the LDS files
+     * @param bacKey    the BAC key of the document
+     * @return the emulated document
+     * @throws GeneralSecurityException When deriving the keys fails
+     * @throws IOException              When reading the files fails
+     */
+    public static EmulatedCardService forPassport(File directory, BACKey bacKey) throws GeneralSecurityException, IOException {
+        byte[] keySeed = Util.computeKeySeed(bacKey.getDocumentNumber(), bacKey.getDateOfBirth(),
+                bacKey.getDateOfExpiry(), "SHA-1", true);
+        return new EmulatedCardService(Application.ICAO, keySeed, loadFiles(directory));
+    }
+
+    /**
+     * Emulates a driving licence
+     *
+     * @param directory the directory containing the LDS files
+     * @param mrz       the one-line MRZ, as given to @DrivingLicenceHelper
+     * @return the emulated document
+     * @throws GeneralSecurityException When deriving the keys fails
+     * @throws IOException              When reading the files fails
+     */
+    public static EmulatedCardService forDrivingLicence(File directory, String mrz) throws GeneralSecurityException, IOException {
+        // The key seed is the first 16 bytes of the SHA-1 of the MRZ
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(mrz.getBytes());
+        return new EmulatedCardService(Application.EDL, Arrays.copyOf(hash, 16), loadFiles(directory));
+    }
+
+    /**
+     * Loads the LDS files of a directory
+     *
+     * @param directory the directory
+     * @return the files by short file identifier
+     * @throws IOException When reading fails
+     */
+    public static Map<Integer, byte[]> loadFiles(File directory) throws IOException {
+        File[] list = directory.listFiles();
+        if (list == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+
+        Map<Integer, byte[]> files = new HashMap<>();
+        for (File file : list) {
+            String name = file.getName().toUpperCase(Locale.ROOT);
+            int dot = name.indexOf('.');
+            if (dot >= 0) {
+                name = name.substring(0, dot);
+            }
+            if (name.startsWith("EF_")) {
+                name = name.substring(3);
+            }
+
+            int sfi;
+            if (name.equals("COM")) {
+                sfi = SFI_COM;
+            } else if (name.equals("SOD")) {
+                sfi = SFI_SOD;
+            } else if (name.matches("DG([1-9]|1[0-6])")) {
+                sfi = Integer.parseInt(name.substring(2));
+            } else {
+                continue;
+            }
+            files.put(sfi, readAll(file));
+        }
+        return files;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int len = in.read(buffer); len != -1; len = in.read(buffer)) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Sets the link model, every APDU takes latency + (command + response bits) / bit rate
+     *
+     * @param latencyMicros the fixed time of an exchange (frame delays, chip processing)
+     * @param bitRate       the bit rate of the link (106000 to 848000 for ISO 14443), 0 for unlimited
+     */
+    public void setLinkModel(long latencyMicros, int bitRate) {
+        this.latencyMicros = latencyMicros;
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * Sets the largest response the document can send, above 256 the document announces
+     * extended length support in EF.ATR/INFO
+     *
+     * @param maxResponseLength the largest response length
+     */
+    public void setMaxResponseLength(int maxResponseLength) {
+        this.maxResponseLength = maxResponseLength;
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized ResponseAPDU transmit(CommandAPDU command) throws CardServiceException {
+        long start = System.nanoTime();
+        byte[] response = process(command);
+        simulateLink(command.getBytes().length + response.length, start);
+        return new ResponseAPDU(response);
+    }
+
+    /**
+     * Processes a command, unwrapping and wrapping secure messaging when used
+     *
+     * @param command the command
+     * @return the response (data followed by the status word)
+     */
+    private byte[] process(CommandAPDU command) {
+        boolean secured = (command.getCLA() & 0x0C) == 0x0C;
+        if (!secured) {
+            // A plain command ends the secure messaging session
+            secureMessaging = null;
+            return handle(command);
+        }
+
+        if (secureMessaging == null) {
+            return status(SW_SECURITY_NOT_SATISFIED);
+        }
+        try {
+            CommandAPDU plain = secureMessaging.unwrap(command);
+            return secureMessaging.wrap(handle(plain));
+        } catch (GeneralSecurityException e) {
+            secureMessaging = null;
+            return status(SW_SM_INCORRECT);
+        }
+    }
+
+    /**
+     * Handles a plain command
+     *
+     * @param command the command
+     * @return the response (data followed by the status word)
+     */
+    private byte[] handle(CommandAPDU command) {
+        // Files of the application are only accessible once authenticated
+        boolean protectedAccess = secureMessaging != null;
+        switch (command.getINS()) {
+            case INS_SELECT:
+                return select(command);
+            case INS_READ_BINARY:
+                if ((command.getP1() & 0x80) != 0) {
+                    int sfi = command.getP1() & 0x1F;
+                    if (!applicationSelected && sfi == SFI_ATR_INFO) {
+                        return readATRInfo(command.getP2(), command.getNe());
+                    }
+                    if (!protectedAccess) {
+                        return status(SW_SECURITY_NOT_SATISFIED);
+                    }
+                    if (!files.containsKey(sfi)) {
+                        return status(SW_FILE_NOT_FOUND);
+                    }
+                    selectedFile = sfi;
+                    return readBinary(command.getP2(), command.getNe(), false);
+                }
+                if (!protectedAccess) {
+                    return status(SW_SECURITY_NOT_SATISFIED);
+                }
+                return readBinary(((command.getP1() & 0x7F) << 8) | command.getP2(), command.getNe(), false);
+            case INS_READ_BINARY_ODD:
+                if (!protectedAccess) {
+                    return status(SW_SECURITY_NOT_SATISFIED);
+                }
+                // Offset in a DO54
+                byte[] data = command.getData();
+                int offset = 0;
+                for (int i = 2; data != null && i < data.length; i++) {
+                    offset = (offset << 8) | (data[i] & 0xFF);
+                }
+                return readBinary(offset, command.getNe(), true);
+            case INS_GET_CHALLENGE:
+                rndICC = new byte[8];
+                random.nextBytes(rndICC);
+                return concat(rndICC, SW_NO_ERROR);
+            case INS_EXTERNAL_AUTHENTICATE:
+                return authenticate(command);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * SELECT by AID (application) or by file identifier
+     */
+    private byte[] select(CommandAPDU command) {
+        byte[] data = command.getData();
+        if (command.getP1() == 0x04) {
+            applicationSelected = Arrays.equals(data, application.aid);
+            selectedFile = -1;
+            return status(applicationSelected ? SW_NO_ERROR : SW_FILE_NOT_FOUND);
+        }
+
+        if (data == null || data.length != 2) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        int fid = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        if ((fid & 0xFF00) != application.fidPrefix || !files.containsKey(fid & 0xFF)) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        if (secureMessaging == null) {
+            return status(SW_SECURITY_NOT_SATISFIED);
+        }
+        selectedFile = fid & 0xFF;
+        return status(SW_NO_ERROR);
+    }
+
+    /**
+     * READ BINARY on the selected file
+     *
+     * @param offset the offset in the file
+     * @param ne     the number of bytes expected
+     * @param odd    true for the odd instruction, data is returned in a DO53
+     */
+    private byte[] readBinary(int offset, int ne, boolean odd) {
+        byte[] file = files.get(selectedFile);
+        if (file == null) {
+            return status(SW_NO_CURRENT_EF);
+        }
+        if (ne > maxResponseLength) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if (offset >= file.length) {
+            return status(SW_WRONG_OFFSET);
+        }
+
+        byte[] block = Arrays.copyOfRange(file, offset, Math.min(file.length, offset + ne));
+        if (odd) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0x53);
+            if (block.length > 0xFF) {
+                out.write(0x82);
+                out.write(block.length >> 8);
+            } else if (block.length > 0x7F) {
+                out.write(0x81);
+            }
+            out.write(block.length);
+            out.write(block, 0, block.length);
+            block = out.toByteArray();
+        }
+        return concat(block, SW_NO_ERROR);
+    }
+
+    /**
+     * Reads EF.ATR/INFO, present only when the document supports extended length
+     */
+    private byte[] readATRInfo(int offset, int ne) {
+        if (maxResponseLength <= SHORT_MAX_RESPONSE_LENGTH) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        // Extended length information: maximum command and response lengths
+        byte[] info = new byte[]{0x7F, 0x66, 0x0A,
+                0x02, 0x03, (byte) (maxResponseLength >> 16), (byte) (maxResponseLength >> 8), (byte) maxResponseLength,
+                0x02, 0x03, (byte) (maxResponseLength >> 16), (byte) (maxResponseLength >> 8), (byte) maxResponseLength};
+        if (offset >= info.length) {
+            return status(SW_WRONG_OFFSET);
+        }
+        return concat(Arrays.copyOfRange(info, offset, Math.min(info.length, offset + ne)), SW_NO_ERROR);
+    }
+
+    /**
+     * Chip side of BAC (ICAO 9303 part 11)
+     */
+    private byte[] authenticate(CommandAPDU command) {
+        byte[] data = command.getData();
+        if (!applicationSelected || rndICC == null || data == null || data.length != 40) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        try {
+            byte[] eIFD = Arrays.copyOf(data, 32);
+            byte[] mIFD = Arrays.copyOfRange(data, 32, 40);
+            if (!Arrays.equals(EmulatedSecureMessaging.mac(kMac, EmulatedSecureMessaging.pad(eIFD)), mIFD)) {
+                return status(SW_AUTHENTICATION_FAILED);
+            }
+
+            // RND.IFD || RND.ICC || K.IFD
+            byte[] s = EmulatedSecureMessaging.crypt(Cipher.DECRYPT_MODE, kEnc, eIFD);
+            byte[] rndIFD = Arrays.copyOf(s, 8);
+            byte[] kIFD = Arrays.copyOfRange(s, 16, 32);
+            if (!Arrays.equals(Arrays.copyOfRange(s, 8, 16), rndICC)) {
+                return status(SW_AUTHENTICATION_FAILED);
+            }
+
+            // RND.ICC || RND.IFD || K.ICC
+            byte[] kICC = new byte[16];
+            random.nextBytes(kICC);
+            byte[] r = new byte[32];
+            System.arraycopy(rndICC, 0, r, 0, 8);
+            System.arraycopy(rndIFD, 0, r, 8, 8);
+            System.arraycopy(kICC, 0, r, 16, 16);
+            byte[] eICC = EmulatedSecureMessaging.crypt(Cipher.ENCRYPT_MODE, kEnc, r);
+            byte[] mICC = EmulatedSecureMessaging.mac(kMac, EmulatedSecureMessaging.pad(eICC));
+
+            secureMessaging = new EmulatedSecureMessaging(kIFD, kICC, rndICC, rndIFD);
+            rndICC = null;
+
+            byte[] response = new byte[40];
+            System.arraycopy(eICC, 0, response, 0, 32);
+            System.arraycopy(mICC, 0, response, 32, 8);
+            return concat(response, SW_NO_ERROR);
+        } catch (GeneralSecurityException e) {
+            return status(SW_AUTHENTICATION_FAILED);
+        }
+    }
+
+    /**
+     * Waits as long as the exchange would take on the modelled link
+     *
+     * @param bytes the number of bytes exchanged
+     * @param start the time the exchange started
+     */
+    private void simulateLink(int bytes, long start) {
+        long nanos = latencyMicros * 1000;
+        if (bitRate > 0) {
+            nanos += bytes * 8L * 1000000000L / bitRate;
+        }
+        nanos -= System.nanoTime() - start;
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] status(int sw) {
+        return new byte[]{(byte) (sw >> 8), (byte) sw};
+    }
+
+    private static byte[] concat(byte[] data, int sw) {
+        byte[] response = Arrays.copyOf(data, data.length + 2);
+        response[data.length] = (byte) (sw >> 8);
+        response[data.length + 1] = (byte) sw;
+        return response;
+    }
+
+    @Override
+    public byte[] getATR() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        applicationSelected = false;
+        secureMessaging = null;
+    }
+
+    @Override
+    public boolean isExtendedAPDULengthSupported() {
+        return maxResponseLength > SHORT_MAX_RESPONSE_LENGTH;
+    }
+
+    @Override
+    public boolean isConnectionLost(Exception e) {
+        return false;
+    }
+}
@@ -0,0 +1,296 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chip side of 3DES secure messaging (ICAO 9303 part 11, BAC session keys), used by
+ * @EmulatedCardService to unwrap commands and wrap responses.
+ */
+class EmulatedSecureMessaging {
+
+    // Key derivation modes, see ICAO 9303
+    final static int ENC_MODE = 1;
+    final static int MAC_MODE = 2;
+
+    // Secure messaging data objects
+    private final static int TAG_DATA_PADDED = 0x87;
+    private final static int TAG_DATA = 0x85;
+    private final static int TAG_LE = 0x97;
+    private final static int TAG_STATUS = 0x99;
+    private final static int TAG_MAC = 0x8E;
+
+    private final byte[] ksEnc;
+    private final byte[] ksMac;
+    private long ssc;
+
+    /**
+     * Derives the session keys and send sequence counter from a completed BAC
+     *
+     * @param kIFD   key material of the reader
+     * @param kICC   key material of the chip
+     * @param rndICC challenge of the chip
+     * @param rndIFD challenge of the reader
+     * @throws GeneralSecurityException When deriving the keys fails
+     */
+    EmulatedSecureMessaging(byte[] kIFD, byte[] kICC, byte[] rndICC, byte[] rndIFD) throws GeneralSecurityException {
+        byte[] keySeed = new byte[16];
+        for (int i = 0; i < keySeed.length; i++) {
+            keySeed[i] = (byte) (kIFD[i] ^ kICC[i]);
+        }
+        ksEnc = deriveKey(keySeed, ENC_MODE);
+        ksMac = deriveKey(keySeed, MAC_MODE);
+
+        // SSC: last 4 bytes of RND.ICC followed by the last 4 bytes of RND.IFD
+        for (int i = 4; i < 8; i++) {
+            ssc = (ssc << 8) | (rndICC[i] & 0xFF);
+        }
+        for (int i = 4; i < 8; i++) {
+            ssc = (ssc << 8) | (rndIFD[i] & 0xFF);
+        }
+    }
+
+    /**
+     * Checks and decrypts a protected command
+     *
+     * @param command the protected command
+     * @return the plain command
+     * @throws GeneralSecurityException When the MAC is wrong or decrypting fails
+     */
+    CommandAPDU unwrap(CommandAPDU command) throws GeneralSecurityException {
+        ssc++;
+
+        byte[] data = command.getData();
+        byte[] dataObject = null;
+        byte[] leObject = null;
+        byte[] mac = null;
+        int index = 0;
+        while (data != null && index < data.length) {
+            int start = index;
+            int tag = data[index++] & 0xFF;
+            int[] length = readLength(data, index);
+            index = length[1];
+            byte[] value = Arrays.copyOfRange(data, index, index + length[0]);
+            index += length[0];
+            byte[] object = Arrays.copyOfRange(data, start, index);
+
+            if (tag == TAG_DATA_PADDED || tag == TAG_DATA) {
+                dataObject = object;
+            } else if (tag == TAG_LE) {
+                leObject = object;
+            } else if (tag == TAG_MAC) {
+                mac = value;
+            }
+        }
+        if (mac == null) {
+            throw new GeneralSecurityException("Missing MAC");
+        }
+
+        // MAC over SSC, padded header and data objects
+        ByteArrayOutputStream macInput = new ByteArrayOutputStream();
+        write(macInput, sscBytes());
+        write(macInput, pad(new byte[]{(byte) command.getCLA(), (byte) command.getINS(),
+                (byte) command.getP1(), (byte) command.getP2()}));
+        if (dataObject != null) {
+            write(macInput, dataObject);
+        }
+        if (leObject != null) {
+            write(macInput, leObject);
+        }
+        if (!Arrays.equals(mac(ksMac, pad(macInput.toByteArray())), mac)) {
+            throw new GeneralSecurityException("Wrong MAC");
+        }
+
+        byte[] plainData = null;
+        if (dataObject != null) {
+            int[] length = readLength(dataObject, 1);
+            int valueStart = length[1];
+            // DO87 starts with the padding indicator
+            if ((dataObject[0] & 0xFF) == TAG_DATA_PADDED) {
+                valueStart++;
+            }
+            byte[] encrypted = Arrays.copyOfRange(dataObject, valueStart, length[1] + length[0]);
+            plainData = unpad(crypt(Cipher.DECRYPT_MODE, encrypted));
+        }
+
+        int ne = 0;
+        if (leObject != null) {
+            int le = 0;
+            for (int i = 2; i < leObject.length; i++) {
+                le = (le << 8) | (leObject[i] & 0xFF);
+            }
+            ne = le != 0 ? le : (leObject.length > 3 ? 65536 : 256);
+        }
+
+        int cla = command.getCLA() & ~0x0C;
+        if (plainData != null && plainData.length > 0) {
+            return ne > 0 ? new CommandAPDU(cla, command.getINS(), command.getP1(), command.getP2(), plainData, ne)
+                    : new CommandAPDU(cla, command.getINS(), command.getP1(), command.getP2(), plainData);
+        }
+        return ne > 0 ? new CommandAPDU(cla, command.getINS(), command.getP1(), command.getP2(), ne)
+                : new CommandAPDU(cla, command.getINS(), command.getP1(), command.getP2());
+    }
+
+    /**
+     * Encrypts and authenticates a response
+     *
+     * @param response the plain response (data followed by the status word)
+     * @return the protected response
+     * @throws GeneralSecurityException When encrypting fails
+     */
+    byte[] wrap(byte[] response) throws GeneralSecurityException {
+        ssc++;
+
+        int dataLength = response.length - 2;
+        byte sw1 = response[dataLength];
+        byte sw2 = response[dataLength + 1];
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (dataLength > 0) {
+            byte[] encrypted = crypt(Cipher.ENCRYPT_MODE, pad(Arrays.copyOf(response, dataLength)));
+            out.write(TAG_DATA_PADDED);
+            writeLength(out, encrypted.length + 1);
+            out.write(0x01);
+            write(out, encrypted);
+        }
+        out.write(TAG_STATUS);
+        out.write(0x02);
+        out.write(sw1);
+        out.write(sw2);
+
+        ByteArrayOutputStream macInput = new ByteArrayOutputStream();
+        write(macInput, sscBytes());
+        write(macInput, out.toByteArray());
+        byte[] mac = mac(ksMac, pad(macInput.toByteArray()));
+
+        out.write(TAG_MAC);
+        out.write(mac.length);
+        write(out, mac);
+        out.write(sw1);
+        out.write(sw2);
+        return out.toByteArray();
+    }
+
+    private byte[] sscBytes() {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (ssc >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    private byte[] crypt(int mode, byte[] data) throws GeneralSecurityException {
+        return crypt(mode, ksEnc, data);
+    }
+
+    /* ------------------------ PRIMITIVES --------------------- */
+
+    /**
+     * Derives a 3DES key from a key seed, see ICAO 9303
+     *
+     * @param keySeed the key seed
+     * @param mode    @ENC_MODE or @MAC_MODE
+     * @return the key (K1, K2, K1)
+     * @throws GeneralSecurityException When SHA-1 is not available
+     */
+    static byte[] deriveKey(byte[] keySeed, int mode) throws GeneralSecurityException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(keySeed);
+        sha1.update(new byte[]{0x00, 0x00, 0x00, (byte) mode});
+        byte[] hash = sha1.digest();
+        byte[] key = new byte[24];
+        System.arraycopy(hash, 0, key, 0, 16);
+        System.arraycopy(hash, 0, key, 16, 8);
+        return key;
+    }
+
+    /**
+     * 3DES in CBC mode with a zero IV, on padded data
+     */
+    static byte[] crypt(int mode, byte[] key, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "DESede"), new IvParameterSpec(new byte[8]));
+        return cipher.doFinal(data);
+    }
+
+    /**
+     * ISO 9797-1 MAC algorithm 3 (retail MAC) with DES, on padded data
+     */
+    static byte[] mac(byte[] key, byte[] data) throws GeneralSecurityException {
+        SecretKeySpec k1 = new SecretKeySpec(key, 0, 8, "DES");
+        SecretKeySpec k2 = new SecretKeySpec(key, 8, 8, "DES");
+
+        Cipher cbc = Cipher.getInstance("DES/CBC/NoPadding");
+        cbc.init(Cipher.ENCRYPT_MODE, k1, new IvParameterSpec(new byte[8]));
+        byte[] chained = cbc.doFinal(data);
+        byte[] block = Arrays.copyOfRange(chained, chained.length - 8, chained.length);
+
+        Cipher ecb = Cipher.getInstance("DES/ECB/NoPadding");
+        ecb.init(Cipher.DECRYPT_MODE, k2);
+        block = ecb.doFinal(block);
+        ecb.init(Cipher.ENCRYPT_MODE, k1);
+        return ecb.doFinal(block);
+    }
+
+    /**
+     * ISO 9797-1 padding method 2
+     */
+    static byte[] pad(byte[] data) {
+        byte[] padded = new byte[(data.length / 8 + 1) * 8];
+        System.arraycopy(data, 0, padded, 0, data.length);
+        padded[data.length] = (byte) 0x80;
+        return padded;
+    }
+
+    static byte[] unpad(byte[] data) throws GeneralSecurityException {
+        int index = data.length - 1;
+        while (index >= 0 && data[index] == 0x00) {
+            index--;
+        }
+        if (index < 0 || data[index] != (byte) 0x80) {
+            throw new GeneralSecurityException("Wrong padding");
+        }
+        return Arrays.copyOf(data, index);
+    }
+
+    /**
+     * Reads a BER length
+     *
+     * @return the length and the index following it
+     */
+    private static int[] readLength(byte[] data, int index) {
+        int length = data[index++] & 0xFF;
+        if (length == 0x81) {
+            length = data[index++] & 0xFF;
+        } else if (length == 0x82) {
+            length = ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+            index += 2;
+        }
+        return new int[]{length, index};
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        if (length > 0xFF) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        } else if (length > 0x7F) {
+            out.write(0x81);
+            out.write(length);
+        } else {
+            out.write(length);
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,206 @@
+package net.noinspiration.idreader.cardservice;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.noinspiration.idreader.helper.AppProperties;
+import net.noinspiration.idreader.helper.ImageCache;
+import net.noinspiration.idreader.helper.NfcReader;
+import net.noinspiration.idreader.helper.Person;
+import net.noinspiration.idreader.helper.ReadProfile;
+import net.noinspiration.idreader.helper.SessionCache;
+import net.noinspiration.idreader.interfaces.NfcInterface;
+
+import org.jmrtd.BACKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the whole @NfcReader pipeline against an @EmulatedCardService and measures how long a
+ * reading takes, to compare block sizes (@EmulatedCardService.setMaxResponseLength), link models,
+ * read profiles and document types.
+ * Every reading starts cold: chip profiles are disabled, and the @SessionCache and @ImageCache
+ * are cleared, otherwise a document read again would be served from them.
+ */
+public class EmulatorBenchmark implements NfcInterface {
+
+    // Debug tag
+    private final static String TAG = "EmulatorBenchmark";
+
+    private final Context context;
+
+    // Outcome of the current reading
+    private boolean success;
+
+    /**
+     * Constructor
+     *
+     * @param context the application context, used by the readers
+     */
+    public EmulatorBenchmark(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Reads an emulated passport/ID card several times
+     *
+     * @param name       the name of the configuration
+     * @param card       the emulated document
+     * @param bacKey     the BAC key of the document
+     * @param profile    what to read
+     * @param iterations the number of readings
+     * @return the measurements
+     */
+    public Result runPassport(String name, EmulatedCardService card, BACKey bacKey, ReadProfile profile, int iterations) {
+        Result result = new Result(name);
+        for (int i = 0; i < iterations; i++) {
+            NfcReader reader = new NfcReader(null, bacKey, this, context, AppProperties.ACTIVITY_PASSPORT_SCAN);
+            measure(reader, card, profile, result);
+        }
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Reads an emulated driving licence several times
+     *
+     * @param name       the name of the configuration
+     * @param card       the emulated document
+     * @param mrz        the one-line MRZ, as given to @DrivingLicenceHelper
+     * @param profile    what to read
+     * @param iterations the number of readings
+     * @return the measurements
+     */
+    public Result runDrivingLicence(String name, EmulatedCardService card, String mrz, ReadProfile profile, int iterations) {
+        Result result = new Result(name);
+        for (int i = 0; i < iterations; i++) {
+            NfcReader reader = new NfcReader(null, mrz, this, context, AppProperties.ACTIVITY_DL_SCAN);
+            measure(reader, card, profile, result);
+        }
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Runs one reading on the calling thread
+     */
+    private void measure(NfcReader reader, EmulatedCardService card, ReadProfile profile, Result result) {
+        // Every reading starts from a fresh session
+        card.close();
+        reader.setCardService(card);
+        reader.setReadProfile(profile);
+        // Readings are independent, nothing is learnt from the previous ones
+        reader.setChipProfilesEnabled(false);
+        SessionCache.clear();
+        ImageCache.clear(context);
+
+        success = false;
+        long start = System.nanoTime();
+        reader.run();
+        long duration = System.nanoTime() - start;
+
+        if (success) {
+            result.durations.add(duration / 1000);
+        } else {
+            result.errors++;
+        }
+    }
+
+    /* ------------------------ NFC CALLBACKS --------------------- */
+
+    @Override
+    public void onNfcResult(Person person) {
+        success = true;
+    }
+
+    @Override
+    public void onNfcError() {
+        success = false;
+    }
+
+    @Override
+    public void onTagLost() {
+        success = false;
+    }
+
+    @Override
+    public void onFalsifiedDocument() {
+
+    }
+
+    @Override
+    public void updateUI(int stage) {
+
+    }
+
+    @Override
+    public void updatePhotoProgress(int percentage) {
+
+    }
+
+    @Override
+    public void updateInformationProgress(int percentage) {
+
+    }
+
+    @Override
+    public void updateCertificateProgress(int percentage) {
+
+    }
+
+    @Override
+    public void updateOverallProgress(int percentage) {
+
+    }
+
+    /**
+     * Durations of the successful readings of a configuration
+     */
+    public static class Result {
+        private final String name;
+        private final List<Long> durations = new ArrayList<>();
+        private int errors;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the durations of the successful readings, in microseconds
+         */
+        public List<Long> getDurations() {
+            return Collections.unmodifiableList(durations);
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        /**
+         * @param percentile the percentile (0 to 100)
+         * @return the duration at the percentile in microseconds, -1 without successful reading
+         */
+        public long getPercentile(double percentile) {
+            if (durations.isEmpty()) {
+                return -1;
+            }
+            List<Long> sorted = new ArrayList<>(durations);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %d readings, %d errors, p50 %.1f ms, p95 %.1f ms",
+                    name, durations.size(), errors, getPercentile(50) / 1000.0, getPercentile(95) / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+import org.jmrtd.BACKey;
+import org.jmrtd.Util;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Card service serving a recorded @APDUTrace back, in order, without a phone or a document.
+ * Responses are delayed by the recorded latencies multiplied by a scale (0 to answer at once).
+ * Commands must match the trace: a reader behaving differently from the recorded one fails
+ * instead of silently receiving unrelated responses.
+ * Secure messaging depends on random bytes chosen by the reader during BAC. Given the
+ * encryption key of the document, these bytes are recovered from the recorded EXTERNAL
+ * AUTHENTICATE and replayed through @ReplayRandomProvider, so that BAC and everything after it
+ * match the trace.
+ */
+public class ReplayCardService extends CardService {
+
+    // EXTERNAL AUTHENTICATE instruction, sent by BAC
+    private final static byte INS_EXTERNAL_AUTHENTICATE = (byte) 0x82;
+    // Header of a short command APDU (CLA, INS, P1, P2, Lc)
+    private final static int HEADER_LENGTH = 5;
+    // Encrypted part of the EXTERNAL AUTHENTICATE data: RND.IFD || RND.ICC || K.IFD
+    private final static int CRYPTOGRAM_LENGTH = 32;
+
+    private final APDUTrace trace;
+    private final List<APDUTrace.Exchange> exchanges;
+    private final double latencyScale;
+    private final ReplayRandomProvider randomProvider;
+
+    // Next exchange to replay
+    private int index;
+    private boolean open;
+
+    /**
+     * Constructor for traces without authentication
+     *
+     * @param trace        the trace to replay
+     * @param latencyScale multiplies the recorded latencies, 0 to answer at once
+     */
+    public ReplayCardService(APDUTrace trace, double latencyScale) {
+        this.trace = trace;
+        this.exchanges = trace.getExchanges();
+        this.latencyScale = latencyScale;
+        this.randomProvider = null;
+    }
+
+    /**
+     * Constructor for traces with BAC, must be created before the @PassportService using it
+     *
+     * @param trace        the trace to replay
+     * @param latencyScale multiplies the recorded latencies, 0 to answer at once
+     * @param kEnc         the encryption key of the document, see @deriveEncryptionKey
+     * @throws GeneralSecurityException When the recorded authentication cannot be decrypted
+     */
+    public ReplayCardService(APDUTrace trace, double latencyScale, SecretKey kEnc) throws GeneralSecurityException {
+        this.trace = trace;
+        this.exchanges = trace.getExchanges();
+        this.latencyScale = latencyScale;
+
+        List<byte[]> randoms = recoverBACRandoms(exchanges, kEnc);
+        this.randomProvider = randoms.isEmpty() ? null : ReplayRandomProvider.install(randoms);
+    }
+
+    /**
+     * Computes the encryption key of a passport/ID card from its BAC key
+     *
+     * @param bacKey the BAC key
+     * @return the encryption key
+     * @throws GeneralSecurityException When computing the key fails
+     */
+    public static SecretKey deriveEncryptionKey(BACKey bacKey) throws GeneralSecurityException {
+        byte[] keySeed = Util.computeKeySeed(bacKey.getDocumentNumber(), bacKey.getDateOfBirth(),
+                bacKey.getDateOfExpiry(), "SHA-1", true);
+        return Util.deriveKey(keySeed, Util.ENC_MODE);
+    }
+
+    /**
+     * Decrypts every recorded EXTERNAL AUTHENTICATE to get the random bytes of the reader
+     *
+     * @param exchanges the recorded exchanges
+     * @param kEnc      the encryption key of the document
+     * @return RND.IFD || K.IFD for every BAC, in order
+     * @throws GeneralSecurityException When decrypting fails
+     */
+    private static List<byte[]> recoverBACRandoms(List<APDUTrace.Exchange> exchanges, SecretKey kEnc) throws GeneralSecurityException {
+        List<byte[]> randoms = new ArrayList<>();
+        Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+        for (APDUTrace.Exchange exchange : exchanges) {
+            byte[] command = exchange.getCommand();
+            // Plain (not secure messaging) EXTERNAL AUTHENTICATE, with the cryptogram and its MAC
+            if (command.length < HEADER_LENGTH + CRYPTOGRAM_LENGTH || command[1] != INS_EXTERNAL_AUTHENTICATE
+                    || (command[0] & 0x0C) != 0) {
+                continue;
+            }
+            cipher.init(Cipher.DECRYPT_MODE, kEnc, new IvParameterSpec(new byte[8]));
+            byte[] plain = cipher.doFinal(command, HEADER_LENGTH, CRYPTOGRAM_LENGTH);
+
+            // RND.IFD (8 bytes) then K.IFD (16 bytes), as drawn by the reader
+            byte[] random = new byte[24];
+            System.arraycopy(plain, 0, random, 0, 8);
+            System.arraycopy(plain, 16, random, 8, 16);
+            randoms.add(random);
+        }
+        return randoms;
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized ResponseAPDU transmit(CommandAPDU command) throws CardServiceException {
+        if (index >= exchanges.size()) {
+            throw new CardServiceException("End of trace reached after " + index + " APDUs");
+        }
+
+        APDUTrace.Exchange exchange = exchanges.get(index);
+        if (!Arrays.equals(exchange.getCommand(), command.getBytes())) {
+            throw new CardServiceException("Replay diverged from the trace at APDU " + index);
+        }
+        index++;
+
+        delay(exchange.getLatencyMicros());
+
+        if (exchange.getResponse() == null) {
+            // Most failures recorded in the field are documents leaving the field
+            throw new CardServiceException("Recorded failure at APDU " + (index - 1) + ": Tag was lost");
+        }
+        return new ResponseAPDU(exchange.getResponse());
+    }
+
+    /**
+     * Waits for the recorded latency, scaled
+     *
+     * @param latencyMicros the recorded latency
+     */
+    private void delay(long latencyMicros) {
+        long nanos = (long) (latencyMicros * 1000 * latencyScale);
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public byte[] getATR() {
+        return trace.getATR();
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        if (randomProvider != null) {
+            randomProvider.uninstall();
+        }
+    }
+
+    @Override
+    public boolean isExtendedAPDULengthSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionLost(Exception e) {
+        return false;
+    }
+
+    /**
+     * @return the number of exchanges replayed so far
+     */
+    public synchronized int getPosition() {
+        return index;
+    }
+
+    /**
+     * @return true if every exchange of the trace has been replayed
+     */
+    public synchronized boolean isFinished() {
+        return index == exchanges.size();
+    }
+}
@@ -0,0 +1,137 @@
+package net.noinspiration.idreader.cardservice;
+
+import net.sf.scuba.smartcards.CardService;
+
+import org.jmrtd.BACKey;
+import org.jmrtd.PassportService;
+import org.jmrtd.Util;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records a BAC session with an @EmulatedCardService and replays it with a @ReplayCardService
+ */
+public class ReplayCardServiceTest {
+
+    // ICAO 9303 specimen
+    private final static BACKey BAC_KEY = new BACKey("L898902C3", "740812", "120415");
+    private final static String MRZ = "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<"
+            + "L898902C36UTO7408122F1204159ZE184226B<<<<<10";
+
+    // Block size of the reads, DG11 takes several of them
+    private final static int BLOCK_SIZE = 0xDF;
+
+    @Test
+    public void replaysRecordedSession() throws Exception {
+        Map<Integer, byte[]> files = new HashMap<>();
+        files.put(1, getDG1());
+        files.put(11, getDG11());
+        byte[] keySeed = Util.computeKeySeed(BAC_KEY.getDocumentNumber(), BAC_KEY.getDateOfBirth(),
+                BAC_KEY.getDateOfExpiry(), "SHA-1", true);
+
+        APDUTrace trace = new APDUTrace();
+        RecordingCardService recording = new RecordingCardService(
+                new EmulatedCardService(EmulatedCardService.Application.ICAO, keySeed, files), trace);
+        Map<Short, byte[]> recorded = read(recording);
+
+        // Through a file, as traces are recorded on the phone
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.write(out);
+        APDUTrace loaded = APDUTrace.read(new ByteArrayInputStream(out.toByteArray()));
+
+        ReplayCardService replay = new ReplayCardService(loaded, 0, ReplayCardService.deriveEncryptionKey(BAC_KEY));
+        try {
+            Map<Short, byte[]> replayed = read(replay);
+            assertArrayEquals(files.get(1), replayed.get(PassportService.EF_DG1));
+            assertArrayEquals(files.get(11), replayed.get(PassportService.EF_DG11));
+            assertArrayEquals(recorded.get(PassportService.EF_DG11), replayed.get(PassportService.EF_DG11));
+            assertTrue(replay.isFinished());
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void divergingReaderFails() throws Exception {
+        APDUTrace trace = new APDUTrace();
+        trace.add(new byte[]{0x00, (byte) 0xA4, 0x04, 0x0C, 0x01, 0x00}, new byte[]{(byte) 0x90, 0x00}, 0);
+
+        ReplayCardService replay = new ReplayCardService(trace, 0);
+        PassportService service = new PassportService(replay, PassportService.NORMAL_MAX_TRANCEIVE_LENGTH,
+                BLOCK_SIZE, true, true);
+        service.open();
+        try {
+            service.sendSelectApplet(false);
+            fail("The select command differs from the trace");
+        } catch (Exception e) {
+            assertEquals(0, replay.getPosition());
+        } finally {
+            replay.close();
+        }
+    }
+
+    /**
+     * Authenticates and reads DG1 and DG11, as the application does
+     *
+     * @return the files read, by file identifier
+     */
+    private static Map<Short, byte[]> read(CardService cardService) throws Exception {
+        PassportService service = new PassportService(cardService, PassportService.NORMAL_MAX_TRANCEIVE_LENGTH,
+                BLOCK_SIZE, true, true);
+        service.open();
+        service.sendSelectApplet(false);
+        service.doBAC(BAC_KEY);
+
+        Map<Short, byte[]> files = new HashMap<>();
+        files.put(PassportService.EF_DG1, readAll(service.getInputStream(PassportService.EF_DG1)));
+        files.put(PassportService.EF_DG11, readAll(service.getInputStream(PassportService.EF_DG11)));
+        return files;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        for (int len = in.read(buffer); len != -1; len = in.read(buffer)) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a DG1 holding the specimen MRZ: tag 61, then tag 5F1F with the 88 characters
+     */
+    private static byte[] getDG1() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x61);
+        out.write(0x5B);
+        out.write(0x5F);
+        out.write(0x1F);
+        out.write(0x58);
+        byte[] mrz = MRZ.getBytes();
+        out.write(mrz, 0, mrz.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a DG11 of 600 bytes of content, longer than a block
+     */
+    private static byte[] getDG11() {
+        byte[] dg11 = new byte[4 + 600];
+        dg11[0] = 0x6B;
+        dg11[1] = (byte) 0x82;
+        dg11[2] = 0x02;
+        dg11[3] = 0x58;
+        for (int i = 4; i < dg11.length; i++) {
+            dg11[i] = (byte) i;
+        }
+        return dg11;
+    }
+}
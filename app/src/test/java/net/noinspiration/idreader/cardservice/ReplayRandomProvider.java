@@ -0,0 +1,120 @@
+package net.noinspiration.idreader.cardservice;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.security.Security;
+import java.util.List;
+
+/**
+ * Security provider whose default SecureRandom first returns the random bytes chosen by the
+ * reader during a recorded BAC (RND.IFD and K.IFD), so that a replayed session derives the same
+ * session keys and secure messaging matches the trace byte for byte.
+ * Once these bytes are consumed, the provider removes itself and the random falls back to the
+ * platform's default. It affects the whole process: only used by tests replaying traces, never
+ * shipped in the application.
+ */
+class ReplayRandomProvider extends Provider {
+
+    private final static String NAME = "IDReaderReplay";
+
+    // Recorded random bytes, in the order the reader asked for them
+    private final byte[] bytes;
+    private int index;
+
+    // Platform random, used once the recorded bytes are consumed
+    private final SecureRandom fallback = new SecureRandom();
+
+    private ReplayRandomProvider(byte[] bytes) {
+        super(NAME, 1.0, "Replays the random bytes of a recorded BAC");
+        this.bytes = bytes;
+
+        putService(new Service(this, "SecureRandom", "Replay", ReplaySecureRandomSpi.class.getName(), null, null) {
+            @Override
+            public Object newInstance(Object constructorParameter) {
+                return new ReplaySecureRandomSpi(ReplayRandomProvider.this);
+            }
+        });
+    }
+
+    /**
+     * Installs the provider with the highest priority
+     *
+     * @param randoms the random bytes of every recorded BAC, in order
+     * @return the installed provider
+     */
+    static synchronized ReplayRandomProvider install(List<byte[]> randoms) {
+        int length = 0;
+        for (byte[] random : randoms) {
+            length += random.length;
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (byte[] random : randoms) {
+            System.arraycopy(random, 0, bytes, offset, random.length);
+            offset += random.length;
+        }
+
+        Security.removeProvider(NAME);
+        ReplayRandomProvider provider = new ReplayRandomProvider(bytes);
+        Security.insertProviderAt(provider, 1);
+        return provider;
+    }
+
+    /**
+     * Removes the provider, instances already created fall back to the platform random
+     */
+    synchronized void uninstall() {
+        index = bytes.length;
+        Security.removeProvider(NAME);
+    }
+
+    /**
+     * Fills an array with the recorded bytes, then with platform random bytes
+     *
+     * @param output the array to fill
+     */
+    private synchronized void nextBytes(byte[] output) {
+        int recorded = Math.min(output.length, bytes.length - index);
+        System.arraycopy(bytes, index, output, 0, recorded);
+        index += recorded;
+
+        if (recorded < output.length) {
+            byte[] random = new byte[output.length - recorded];
+            fallback.nextBytes(random);
+            System.arraycopy(random, 0, output, recorded, random.length);
+        }
+
+        if (recorded > 0 && index == bytes.length) {
+            // Every recorded BAC has been replayed
+            Security.removeProvider(NAME);
+        }
+    }
+
+    /**
+     * SecureRandom implementation backed by the provider
+     */
+    private static class ReplaySecureRandomSpi extends SecureRandomSpi {
+
+        private final ReplayRandomProvider provider;
+
+        ReplaySecureRandomSpi(ReplayRandomProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            // The output is recorded, seeding has no effect
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            provider.nextBytes(bytes);
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            return provider.fallback.generateSeed(numBytes);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.noinspiration.idreader.helper;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Growth and fall back of the READ BINARY block size by @BlockSizeController
+ */
+public class BlockSizeControllerTest {
+
+    // 10 ms per exchange
+    private final static long EXCHANGE = 10000000;
+
+    @Test
+    public void startsFromAShortBlock() {
+        assertEquals(ChipCapabilities.NORMAL_MAX_BLOCK_SIZE, new BlockSizeController(0x0F00).getBlockSize());
+        assertEquals(150, new BlockSizeController(150).getBlockSize());
+        // Never below the minimum
+        BlockSizeController controller = new BlockSizeController(10);
+        assertEquals(BlockSizeController.MIN_BLOCK_SIZE, controller.getMaxBlockSize());
+        assertEquals(BlockSizeController.MIN_BLOCK_SIZE, controller.getBlockSize());
+        assertEquals(-1, controller.getWorkingBlockSize());
+    }
+
+    @Test
+    public void growsWhileFaster() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        controller.onSuccess(size, size, EXCHANGE);
+        assertEquals(size, controller.getBlockSize());
+        controller.onSuccess(size, size, EXCHANGE);
+        assertEquals(size * 2, controller.getBlockSize());
+        assertEquals(size, controller.getWorkingBlockSize());
+
+        // Twice the bytes in the same time
+        controller.onSuccess(size * 2, size * 2, EXCHANGE);
+        controller.onSuccess(size * 2, size * 2, EXCHANGE);
+        assertEquals(size * 4, controller.getBlockSize());
+        controller.onSuccess(size * 4, size * 4, EXCHANGE);
+        controller.onSuccess(size * 4, size * 4, EXCHANGE);
+        // Capped by the maximum
+        assertEquals(1000, controller.getBlockSize());
+    }
+
+    @Test
+    public void stopsGrowingWithoutGain() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        controller.onSuccess(size, size, EXCHANGE);
+        controller.onSuccess(size, size, EXCHANGE);
+
+        // Twice the bytes in twice the time
+        controller.onSuccess(size * 2, size * 2, EXCHANGE * 2);
+        controller.onSuccess(size * 2, size * 2, EXCHANGE * 2);
+        assertEquals(size, controller.getBlockSize());
+        assertEquals(size, controller.getCeiling());
+    }
+
+    @Test
+    public void ignoresShortReads() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        // End of a file
+        controller.onSuccess(size, 10, EXCHANGE);
+        controller.onSuccess(size, 10, EXCHANGE);
+        // Not the current size
+        controller.onSuccess(100, 100, EXCHANGE);
+        controller.onSuccess(100, 100, EXCHANGE);
+        assertEquals(size, controller.getBlockSize());
+        assertEquals(-1, controller.getWorkingBlockSize());
+    }
+
+    @Test
+    public void correctLengthDiscountsSecureMessaging() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        assertTrue(controller.onFailure(size, new CardServiceException("Wrong length", 0x6CE0)));
+        assertEquals(0xE0 - ChipCapabilities.SECURE_MESSAGING_OVERHEAD, controller.getBlockSize());
+        assertEquals(0xE0 - ChipCapabilities.SECURE_MESSAGING_OVERHEAD, controller.getCeiling());
+    }
+
+    @Test
+    public void correctLengthWithoutSecureMessaging() {
+        BlockSizeController controller = new BlockSizeController(1000, false);
+        int size = controller.getBlockSize();
+        assertTrue(controller.onFailure(size, new CardServiceException("Wrong length", 0x6C80)));
+        assertEquals(0x80, controller.getBlockSize());
+
+        // Larger than what was asked for, retrying does not help
+        controller = new BlockSizeController(1000, false);
+        assertFalse(controller.onFailure(size, new CardServiceException("Wrong length", 0x6CF0)));
+    }
+
+    @Test
+    public void correctLengthKeepsTheMinimum() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        controller.onFailure(controller.getBlockSize(), new CardServiceException("Wrong length", 0x6C30));
+        assertEquals(BlockSizeController.MIN_BLOCK_SIZE, controller.getBlockSize());
+
+        // 6C00 gives no length
+        controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        assertFalse(controller.onFailure(size, new CardServiceException("Wrong length", 0x6C00)));
+        assertEquals(size, controller.getBlockSize());
+    }
+
+    @Test
+    public void wrongLengthFallsBackToTheLastGoodSize() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        controller.onSuccess(size, size, EXCHANGE);
+        controller.onSuccess(size, size, EXCHANGE);
+        int grown = controller.getBlockSize();
+
+        assertTrue(controller.onFailure(grown, new CardServiceException("Wrong length", 0x6700)));
+        assertEquals(size, controller.getBlockSize());
+        assertEquals(grown - 1, controller.getCeiling());
+    }
+
+    @Test
+    public void timeoutFallsBack() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        controller.startFrom(400, 1000);
+        // Falls back to the size known to work
+        assertTrue(controller.onFailure(600, new CardServiceException("Transceive failed", -1)));
+        assertEquals(400, controller.getBlockSize());
+        assertEquals(599, controller.getCeiling());
+
+        controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        // No size confirmed yet: the minimum is the last good size
+        assertTrue(controller.onFailure(size, new CardServiceException("Transceive failed", 0)));
+        assertEquals(BlockSizeController.MIN_BLOCK_SIZE, controller.getBlockSize());
+    }
+
+    @Test
+    public void otherStatusWordsAreNotRetried() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        int size = controller.getBlockSize();
+        assertFalse(controller.onFailure(size, new CardServiceException("Security status not satisfied", 0x6982)));
+        assertEquals(size, controller.getBlockSize());
+        assertEquals(1000, controller.getCeiling());
+    }
+
+    @Test
+    public void startsFromAKnownSize() {
+        BlockSizeController controller = new BlockSizeController(1000);
+        controller.startFrom(800, 900);
+        assertEquals(800, controller.getBlockSize());
+        assertEquals(900, controller.getCeiling());
+
+        // Clamped to the maximum and the minimum
+        controller.startFrom(5000, 5000);
+        assertEquals(1000, controller.getBlockSize());
+        assertEquals(1000, controller.getCeiling());
+        controller.startFrom(10, 10);
+        assertEquals(BlockSizeController.MIN_BLOCK_SIZE, controller.getBlockSize());
+    }
+}
@@ -0,0 +1,111 @@
+package net.noinspiration.idreader.helper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of EF.ATR/INFO and negotiation of the block size by @ChipCapabilities
+ */
+public class ChipCapabilitiesTest {
+
+    @Test
+    public void parsesExtendedLengthInformation() {
+        // 7F66: maximum command length 0x0800, maximum response length 0x1000
+        byte[] data = {0x7F, 0x66, 0x08, 0x02, 0x02, 0x08, 0x00, 0x02, 0x02, 0x10, 0x00};
+        assertEquals(0x1000, ChipCapabilities.parseMaxResponseLength(data));
+    }
+
+    @Test
+    public void skipsOtherDataObjects() {
+        // Card capabilities (47) and a two-byte tag before the extended length information
+        byte[] data = {0x47, 0x03, (byte) 0xF8, 0x1F, (byte) 0x80, 0x5F, 0x52, 0x01, 0x00,
+                0x7F, 0x66, 0x08, 0x02, 0x02, 0x08, 0x00, 0x02, 0x02, 0x04, 0x00};
+        assertEquals(0x0400, ChipCapabilities.parseMaxResponseLength(data));
+    }
+
+    @Test
+    public void parsesLongFormLength() {
+        byte[] data = {0x7F, 0x66, (byte) 0x81, 0x08, 0x02, 0x02, 0x08, 0x00, 0x02, 0x02, 0x10, 0x00};
+        assertEquals(0x1000, ChipCapabilities.parseMaxResponseLength(data));
+    }
+
+    @Test
+    public void parsesThreeByteValue() {
+        byte[] data = {0x7F, 0x66, 0x09, 0x02, 0x02, 0x08, 0x00, 0x02, 0x03, 0x01, 0x00, 0x00};
+        assertEquals(0x10000, ChipCapabilities.parseMaxResponseLength(data));
+    }
+
+    @Test
+    public void missingInformationIsNotAnnounced() {
+        assertEquals(-1, ChipCapabilities.parseMaxResponseLength(new byte[0]));
+        assertEquals(-1, ChipCapabilities.parseMaxResponseLength(new byte[]{0x47, 0x03, (byte) 0xF8, 0x1F, (byte) 0x80}));
+        // Tag without length
+        assertEquals(-1, ChipCapabilities.parseMaxResponseLength(new byte[]{0x7F, 0x66}));
+        // Maximum command length only
+        assertEquals(-1, ChipCapabilities.parseMaxResponseLength(new byte[]{0x7F, 0x66, 0x04, 0x02, 0x02, 0x08, 0x00}));
+        // Maximum response length of 0
+        assertEquals(-1, ChipCapabilities.parseMaxResponseLength(
+                new byte[]{0x7F, 0x66, 0x08, 0x02, 0x02, 0x08, 0x00, 0x02, 0x02, 0x00, 0x00}));
+    }
+
+    @Test
+    public void truncatedInformationDoesNotOverflow() {
+        // Announces 8 bytes, holds 6
+        byte[] data = {0x7F, 0x66, 0x08, 0x02, 0x02, 0x08, 0x00, 0x02, 0x02};
+        assertEquals(-1, ChipCapabilities.parseMaxResponseLength(data));
+    }
+
+    @Test
+    public void shortLengthFollowsThePhone() {
+        ChipCapabilities capabilities = ChipCapabilities.negotiate(false, 253, 0x1000);
+        assertFalse(capabilities.isExtendedLengthSupported());
+        assertEquals(253, capabilities.getMaxTransceiveLength());
+        assertEquals(253 - ChipCapabilities.SECURE_MESSAGING_OVERHEAD, capabilities.getMaxBlockSize());
+
+        capabilities = ChipCapabilities.negotiate(false, 1000, 0x1000);
+        assertEquals(ChipCapabilities.NORMAL_MAX_TRANSCEIVE_LENGTH, capabilities.getMaxTransceiveLength());
+        assertEquals(ChipCapabilities.NORMAL_MAX_BLOCK_SIZE, capabilities.getMaxBlockSize());
+    }
+
+    @Test
+    public void shortLengthNeverExceedsASmallPhone() {
+        ChipCapabilities capabilities = ChipCapabilities.negotiate(false, 150, -1);
+        assertEquals(150, capabilities.getMaxTransceiveLength());
+        assertEquals(150 - ChipCapabilities.SECURE_MESSAGING_OVERHEAD, capabilities.getMaxBlockSize());
+
+        // Below the smallest block the controller uses
+        capabilities = ChipCapabilities.negotiate(false, 80, -1);
+        assertEquals(BlockSizeController.MIN_BLOCK_SIZE, capabilities.getMaxBlockSize());
+    }
+
+    @Test
+    public void extendedLengthUsesTheNegotiatedResponse() {
+        ChipCapabilities capabilities = ChipCapabilities.negotiate(true, 1000, 0x1000);
+        assertTrue(capabilities.isExtendedLengthSupported());
+        assertEquals(1000, capabilities.getMaxTransceiveLength());
+        assertEquals(1000 - ChipCapabilities.SECURE_MESSAGING_OVERHEAD, capabilities.getMaxBlockSize());
+        assertEquals(0x1000, capabilities.getChipMaxResponseLength());
+
+        capabilities = ChipCapabilities.negotiate(true, 65279, 0x1000);
+        assertEquals(0x1000, capabilities.getMaxTransceiveLength());
+        assertEquals(ChipCapabilities.MAX_EXTENDED_BLOCK_SIZE, capabilities.getMaxBlockSize());
+    }
+
+    @Test
+    public void extendedLengthNeedsTheChip() {
+        ChipCapabilities capabilities = ChipCapabilities.negotiate(true, 65279, -1);
+        assertFalse(capabilities.isExtendedLengthSupported());
+        assertEquals(ChipCapabilities.NORMAL_MAX_BLOCK_SIZE, capabilities.getMaxBlockSize());
+        assertEquals(-1, capabilities.getChipMaxResponseLength());
+
+        // Announced, but no larger than a short response
+        capabilities = ChipCapabilities.negotiate(true, 65279, 256);
+        assertFalse(capabilities.isExtendedLengthSupported());
+
+        // Extended, but the block would not be larger than a short one
+        capabilities = ChipCapabilities.negotiate(true, 250, 0x1000);
+        assertFalse(capabilities.isExtendedLengthSupported());
+        assertEquals(250 - ChipCapabilities.SECURE_MESSAGING_OVERHEAD, capabilities.getMaxBlockSize());
+    }
+}
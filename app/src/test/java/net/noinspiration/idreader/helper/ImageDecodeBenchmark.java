@@ -0,0 +1,264 @@
+package net.noinspiration.idreader.helper;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.jmrtd.lds.icao.DG2File;
+import org.jmrtd.lds.iso19794.FaceImageInfo;
+import org.jmrtd.lds.iso19794.FaceInfo;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Measures the decoding of photos by @ImageHelper over a corpus of specimen documents:
+ * time, bytes allocated by the decoding thread and peak heap, per format and per size.
+ * <p>
+ * The corpus is a directory of DG2 files (.dg2) or of the images they hold (.jp2, .j2k, .jpg,
+ * .wsq), given with -PbenchmarkCorpus=&lt;directory&gt;; without it the benchmark is skipped.
+ * JPEG2000 images need a libopenjpeg built for the host, its directory is given with
+ * -PbenchmarkLibraries=&lt;directory&gt;.
+ * <p>
+ * Android classes are stubs returning default values on the JVM: Bitmap.createBitmap does
+ * nothing, so the figures cover the decoding itself (temporary files, native decoder, PNM and
+ * WSQ conversion) but not the bitmap copy. BitmapFactory only exists on a device, JPEG images
+ * are decoded with ImageIO as a reference. Memory allocated by the native decoder is not counted.
+ */
+public class ImageDecodeBenchmark {
+
+    private final static String CORPUS = "idreader.benchmark.corpus";
+    private final static String ITERATIONS = "idreader.benchmark.iterations";
+
+    // Decodings of every image before measuring, for the JIT
+    private final static int WARMUP = 3;
+    // Upper bounds of the size classes, in KB
+    private final static int[] SIZE_CLASSES = {16, 32, 64};
+
+    private static File corpus;
+    private static boolean openJPEGAvailable;
+
+    @BeforeClass
+    public static void setUp() {
+        String directory = System.getProperty(CORPUS);
+        Assume.assumeTrue("No corpus, set -PbenchmarkCorpus", directory != null && !directory.isEmpty());
+        corpus = new File(directory);
+        Assume.assumeTrue("Corpus " + corpus + " is not a directory", corpus.isDirectory());
+        try {
+            org.openJpeg.LibraryInitializer.initializeLibrary();
+            openJPEGAvailable = true;
+        } catch (Throwable t) {
+            System.out.println("libopenjpeg not found, JPEG2000 images are skipped: " + t);
+        }
+    }
+
+    @Test
+    public void decodeCorpus() throws Exception {
+        List<Sample> samples = loadSamples();
+        Assume.assumeFalse("Empty corpus", samples.isEmpty());
+        int iterations = Integer.getInteger(ITERATIONS, 10);
+        Context context = new BenchmarkContext(Files.createTempDirectory("benchmark").toFile());
+
+        Map<String, Statistics> statistics = new TreeMap<>();
+        for (Sample sample : samples) {
+            if (isJPEG2000(sample.mimeType) && !openJPEGAvailable) {
+                continue;
+            }
+            for (int i = 0; i < WARMUP; i++) {
+                decode(context, sample);
+            }
+            String key = String.format(Locale.ROOT, "%-10s %s", getFormat(sample.mimeType), getSizeClass(sample.image.length));
+            Statistics entry = statistics.get(key);
+            if (entry == null) {
+                entry = new Statistics();
+                statistics.put(key, entry);
+            }
+            entry.images++;
+            for (int i = 0; i < iterations; i++) {
+                measure(context, sample, entry);
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-10s %-9s %6s %10s %12s %12s",
+                "format", "size", "images", "time (ms)", "alloc (KB)", "peak (KB)"));
+        for (Map.Entry<String, Statistics> entry : statistics.entrySet()) {
+            Statistics value = entry.getValue();
+            System.out.println(String.format(Locale.ROOT, "%-20s %6d %10.2f %12d %12d",
+                    entry.getKey(), value.images, value.time / 1e6 / value.count,
+                    value.allocated / 1024 / value.count, value.peak / 1024));
+        }
+    }
+
+    /**
+     * Decodes a sample once and adds its cost to the statistics
+     */
+    private static void measure(Context context, Sample sample, Statistics statistics) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+
+        long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0;
+        long start = System.nanoTime();
+        decode(context, sample);
+        long time = System.nanoTime() - start;
+        long allocated = allocations != null ? allocations.getThreadAllocatedBytes(thread) - allocatedBefore : 0;
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        statistics.add(time, allocated, peak);
+    }
+
+    private static void decode(Context context, Sample sample) throws IOException {
+        if (sample.mimeType.equals("image/jpeg")) {
+            ImageIO.read(new ByteArrayInputStream(sample.image));
+        } else {
+            ImageHelper.decodeImage(context, sample.mimeType, new ByteArrayInputStream(sample.image));
+        }
+    }
+
+    /**
+     * @return the images of the corpus, with their MIME type
+     */
+    private static List<Sample> loadSamples() throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        File[] files = corpus.listFiles();
+        if (files == null) {
+            return samples;
+        }
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            byte[] content = Files.readAllBytes(file.toPath());
+            if (name.endsWith(".dg2")) {
+                samples.addAll(readDG2(content));
+            } else if (name.endsWith(".jp2") || name.endsWith(".j2k")) {
+                samples.add(new Sample(AppProperties.IMAGE_JP2, content));
+            } else if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+                samples.add(new Sample("image/jpeg", content));
+            } else if (name.endsWith(".wsq")) {
+                samples.add(new Sample(AppProperties.IMAGE_WSQ, content));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return the face images of a DG2, as in @PassportHelper.readDG2
+     */
+    private static List<Sample> readDG2(byte[] content) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        DG2File dg2 = new DG2File(new ByteArrayInputStream(content));
+        for (FaceInfo faceInfo : dg2.getFaceInfos()) {
+            for (FaceImageInfo faceImageInfo : faceInfo.getFaceImageInfos()) {
+                byte[] image = new byte[faceImageInfo.getImageLength()];
+                new DataInputStream(faceImageInfo.getImageInputStream()).readFully(image);
+                samples.add(new Sample(faceImageInfo.getMimeType().toLowerCase(Locale.ROOT), image));
+            }
+        }
+        return samples;
+    }
+
+    private static boolean isJPEG2000(String mimeType) {
+        return mimeType.equals(AppProperties.IMAGE_JP2) || mimeType.equals(AppProperties.IMAGE_JPEG2000);
+    }
+
+    private static String getFormat(String mimeType) {
+        if (isJPEG2000(mimeType)) {
+            return "jpeg2000";
+        } else if (mimeType.equals(AppProperties.IMAGE_WSQ)) {
+            return "wsq";
+        }
+        return "jpeg";
+    }
+
+    private static String getSizeClass(int length) {
+        int previous = 0;
+        for (int bound : SIZE_CLASSES) {
+            if (length < bound * 1024) {
+                return previous + "-" + bound + " KB";
+            }
+            previous = bound;
+        }
+        return ">= " + previous + " KB";
+    }
+
+    /**
+     * An image of the corpus
+     */
+    private static class Sample {
+        private final String mimeType;
+        private final byte[] image;
+
+        Sample(String mimeType, byte[] image) {
+            this.mimeType = mimeType;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Costs of the decodings of a format and size class
+     */
+    private static class Statistics {
+        private int images;
+        private int count;
+        private long time;
+        private long allocated;
+        private long peak;
+
+        void add(long time, long allocated, long peak) {
+            this.count++;
+            this.time += time;
+            this.allocated += allocated;
+            this.peak = Math.max(this.peak, peak);
+        }
+    }
+
+    /**
+     * The only parts of a context @ImageHelper uses: the cache directory
+     */
+    private static class BenchmarkContext extends ContextWrapper {
+        private final File cacheDir;
+
+        BenchmarkContext(File cacheDir) {
+            super(null);
+            this.cacheDir = cacheDir;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return cacheDir;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.noinspiration.idreader.identitydocument;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of the EF.COM of driving licences by @DrivingLicenceHelper
+ */
+public class DrivingLicenceHelperTest {
+
+    @Test
+    public void parsesTheTagList() {
+        // Version (5F01), then the tags of DG1, DG5, DG6 and DG11
+        byte[] com = {0x60, 0x0D, 0x5F, 0x01, 0x04, 0x30, 0x31, 0x30, 0x30,
+                0x5C, 0x04, 0x61, 0x67, 0x75, 0x6D};
+        assertEquals(new TreeSet<>(Arrays.asList(1, 5, 6, 11)), DrivingLicenceHelper.parseCOM(com));
+    }
+
+    @Test
+    public void parsesLongFormLengths() {
+        byte[] com = {0x60, (byte) 0x81, 0x05, 0x5C, (byte) 0x81, 0x02, 0x61, 0x6B};
+        Set<Integer> present = DrivingLicenceHelper.parseCOM(com);
+        assertEquals(new TreeSet<>(Arrays.asList(1, 2)), present);
+    }
+
+    @Test
+    public void rejectsMalformedFiles() {
+        assertNull(DrivingLicenceHelper.parseCOM(new byte[0]));
+        // Not an EF.COM
+        assertNull(DrivingLicenceHelper.parseCOM(new byte[]{0x61, 0x03, 0x5C, 0x01, 0x61}));
+        // Longer than the file
+        assertNull(DrivingLicenceHelper.parseCOM(new byte[]{0x60, 0x05, 0x5C, 0x01, 0x61}));
+        // Tag list longer than the template
+        assertNull(DrivingLicenceHelper.parseCOM(new byte[]{0x60, 0x03, 0x5C, 0x05, 0x61}));
+        // No tag list
+        assertNull(DrivingLicenceHelper.parseCOM(new byte[]{0x60, 0x03, 0x5F, 0x01, 0x00}));
+    }
+
+    @Test
+    public void rejectsUnknownTags() {
+        // 0x75 is DG6, 0x6A is not a driving licence data group
+        assertNull(DrivingLicenceHelper.parseCOM(new byte[]{0x60, 0x04, 0x5C, 0x02, 0x75, 0x6A}));
+    }
+}
@@ -0,0 +1,165 @@
+package net.noinspiration.idreader.identitydocument;
+
+import net.noinspiration.idreader.helper.AppProperties;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Finding of the images of driving licence data groups by @FaceImageScanner
+ */
+public class FaceImageScannerTest {
+
+    // Data group and biometric template tags before the record
+    private final static byte[] PREFIX = {0x75, (byte) 0x82, 0x01, 0x00, 0x7F, 0x61};
+    private final static byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 1, 2, 3, 4, (byte) 0xFF, (byte) 0xD9};
+    private final static byte[] JP2 = {0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50, 0x20, 0x20, 0x0D, 0x0A, (byte) 0x87, 0x0A, 5, 6};
+    private final static byte[] J2K = {(byte) 0xFF, 0x4F, (byte) 0xFF, 0x51, 7, 8, 9};
+
+    @Test
+    public void readsTheFaceRecord() {
+        byte[] data = faceRecord(2, 0, JPEG, -1);
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertNotNull(image);
+        assertSame(data, image.getData());
+        assertEquals(data.length - JPEG.length, image.getOffset());
+        assertEquals(JPEG.length, image.getLength());
+        assertEquals(AppProperties.IMAGE_JPEG, image.getMimeType());
+    }
+
+    @Test
+    public void readsTheImageTypeOfTheRecord() {
+        // The record gives the type, the data does not need a signature
+        byte[] content = {1, 2, 3, 4, 5};
+        byte[] data = faceRecord(0, 1, content, -1);
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(AppProperties.IMAGE_JP2, image.getMimeType());
+        assertArrayEquals(content, Arrays.copyOfRange(data, image.getOffset(), image.getOffset() + image.getLength()));
+    }
+
+    @Test
+    public void imageEndsWithTheRecord() {
+        // Padding after the record is not part of the image
+        byte[] record = faceRecord(0, 0, JPEG, -1);
+        byte[] data = Arrays.copyOf(record, record.length + 8);
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(record.length - JPEG.length, image.getOffset());
+        assertEquals(JPEG.length, image.getLength());
+    }
+
+    @Test
+    public void inconsistentRecordFallsBackToScanning() {
+        // Block longer than the data group
+        byte[] data = faceRecord(1, 1, JPEG, 1000);
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(data.length - JPEG.length, image.getOffset());
+        assertEquals(JPEG.length, image.getLength());
+        assertEquals(AppProperties.IMAGE_JPEG, image.getMimeType());
+
+        // Block too short to hold an image
+        data = faceRecord(0, 0, J2K, 20);
+        image = FaceImageScanner.scan(data);
+        assertEquals(data.length - J2K.length, image.getOffset());
+        assertEquals(AppProperties.IMAGE_JP2, image.getMimeType());
+    }
+
+    @Test
+    public void truncatedRecordFallsBackToScanning() {
+        byte[] data = concat(PREFIX, JPEG, new byte[]{'F', 'A', 'C', 0, 0x30, 0x31});
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(PREFIX.length, image.getOffset());
+        assertEquals(data.length - PREFIX.length, image.getLength());
+    }
+
+    @Test
+    public void findsImagesWithoutRecord() {
+        // Signature image of DG7
+        byte[] data = concat(PREFIX, J2K);
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(PREFIX.length, image.getOffset());
+        assertEquals(J2K.length, image.getLength());
+        assertEquals(AppProperties.IMAGE_JP2, image.getMimeType());
+
+        data = concat(PREFIX, JP2);
+        image = FaceImageScanner.scan(data);
+        assertEquals(PREFIX.length, image.getOffset());
+        assertEquals(AppProperties.IMAGE_JP2, image.getMimeType());
+    }
+
+    @Test
+    public void earliestSignatureWins() {
+        // A JPEG2000 codestream holding bytes that look like a JPEG start
+        byte[] data = concat(PREFIX, J2K, JPEG);
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(PREFIX.length, image.getOffset());
+        assertEquals(AppProperties.IMAGE_JP2, image.getMimeType());
+
+        data = concat(PREFIX, JPEG, JP2);
+        image = FaceImageScanner.scan(data);
+        assertEquals(PREFIX.length, image.getOffset());
+        assertEquals(AppProperties.IMAGE_JPEG, image.getMimeType());
+    }
+
+    @Test
+    public void signatureAtTheEndOfTheData() {
+        byte[] data = concat(PREFIX, new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF});
+        FaceImageScanner.Image image = FaceImageScanner.scan(data);
+        assertEquals(PREFIX.length, image.getOffset());
+        assertEquals(3, image.getLength());
+    }
+
+    @Test
+    public void truncatedSignatureIsNotAnImage() {
+        assertNull(FaceImageScanner.scan(concat(PREFIX, new byte[]{(byte) 0xFF, (byte) 0xD8})));
+        assertNull(FaceImageScanner.scan(concat(PREFIX, new byte[]{0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50, 0x20})));
+        assertNull(FaceImageScanner.scan(PREFIX));
+        assertNull(FaceImageScanner.scan(new byte[0]));
+    }
+
+    /**
+     * Builds a data group holding an ISO 19794-5 record with one image
+     *
+     * @param featurePoints the number of feature points before the image information
+     * @param imageDataType 0 for JPEG, 1 for JPEG2000
+     * @param image         the image
+     * @param blockLength   the block length written in the record, -1 for the real one
+     */
+    private static byte[] faceRecord(int featurePoints, int imageDataType, byte[] image, int blockLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PREFIX, 0, PREFIX.length);
+        // Format identifier, version "010", record length, one image
+        byte[] header = {'F', 'A', 'C', 0, 0x30, 0x31, 0x30, 0, 0, 0, 0, 0, 0, 1};
+        out.write(header, 0, header.length);
+
+        if (blockLength < 0) {
+            blockLength = 20 + featurePoints * 8 + 12 + image.length;
+        }
+        byte[] facialInformation = new byte[20];
+        facialInformation[0] = (byte) (blockLength >> 24);
+        facialInformation[1] = (byte) (blockLength >> 16);
+        facialInformation[2] = (byte) (blockLength >> 8);
+        facialInformation[3] = (byte) blockLength;
+        facialInformation[5] = (byte) featurePoints;
+        out.write(facialInformation, 0, facialInformation.length);
+        out.write(new byte[featurePoints * 8], 0, featurePoints * 8);
+
+        byte[] imageInformation = new byte[12];
+        imageInformation[0] = 1;
+        imageInformation[1] = (byte) imageDataType;
+        out.write(imageInformation, 0, imageInformation.length);
+        out.write(image, 0, image.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
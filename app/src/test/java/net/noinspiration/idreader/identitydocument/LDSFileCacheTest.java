@@ -0,0 +1,72 @@
+package net.noinspiration.idreader.identitydocument;
+
+import org.jmrtd.PassportService;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Storage of the files of a session and of their digests by @LDSFileCache
+ */
+public class LDSFileCacheTest {
+
+    private final static byte[] DG1 = {0x61, 0x03, 0x5F, 0x1F, 0x00};
+
+    @Test
+    public void storesFiles() {
+        LDSFileCache cache = new LDSFileCache();
+        assertFalse(cache.contains(PassportService.EF_DG1));
+        assertNull(cache.get(PassportService.EF_DG1));
+
+        cache.put(PassportService.EF_DG1, DG1, null, null);
+        assertTrue(cache.contains(PassportService.EF_DG1));
+        assertSame(DG1, cache.get(PassportService.EF_DG1));
+        assertFalse(cache.contains(PassportService.EF_DG2));
+    }
+
+    @Test
+    public void keepsTheDigestComputedWhileReading() throws NoSuchAlgorithmException {
+        LDSFileCache cache = new LDSFileCache();
+        // Not the real digest, it must not be computed again
+        byte[] digest = new byte[32];
+        cache.put(PassportService.EF_DG1, DG1, "SHA-256", digest);
+        assertSame(digest, cache.getDigest(PassportService.EF_DG1, "SHA-256"));
+        // Any other algorithm is computed from the bytes
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(DG1),
+                cache.getDigest(PassportService.EF_DG1, "SHA-1"));
+    }
+
+    @Test
+    public void computesDigestsOnce() throws NoSuchAlgorithmException {
+        LDSFileCache cache = new LDSFileCache();
+        cache.put(PassportService.EF_DG1, DG1, "SHA-256", null);
+        byte[] digest = cache.getDigest(PassportService.EF_DG1, "SHA-256");
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(DG1), digest);
+        assertSame(digest, cache.getDigest(PassportService.EF_DG1, "SHA-256"));
+    }
+
+    @Test
+    public void replacingAFileDropsItsDigests() throws NoSuchAlgorithmException {
+        LDSFileCache cache = new LDSFileCache();
+        cache.put(PassportService.EF_DG1, DG1, "SHA-256", new byte[32]);
+        byte[] other = {0x61, 0x00};
+        cache.put(PassportService.EF_DG1, other, null, null);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(other),
+                cache.getDigest(PassportService.EF_DG1, "SHA-256"));
+    }
+
+    @Test
+    public void absentFilesHaveNoDigest() throws NoSuchAlgorithmException {
+        assertNull(new LDSFileCache().getDigest(PassportService.EF_DG1, "SHA-256"));
+    }
+
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void unknownAlgorithmsFail() throws NoSuchAlgorithmException {
+        LDSFileCache cache = new LDSFileCache();
+        cache.put(PassportService.EF_DG1, DG1, null, null);
+        cache.getDigest(PassportService.EF_DG1, "NO-SUCH-DIGEST");
+    }
+}
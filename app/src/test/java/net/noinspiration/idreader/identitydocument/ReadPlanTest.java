@@ -0,0 +1,109 @@
+package net.noinspiration.idreader.identitydocument;
+
+import net.noinspiration.idreader.interfaces.InputStreamListener;
+
+import org.jmrtd.PassportService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sizes and progress of a @ReadPlan
+ */
+public class ReadPlanTest {
+
+    private final static List<Short> FILES = Arrays.asList(PassportService.EF_COM, PassportService.EF_SOD,
+            PassportService.EF_DG1, PassportService.EF_DG2);
+
+    @Test
+    public void startsFromTypicalSizes() {
+        ReadPlan plan = new ReadPlan(FILES, null);
+        assertEquals(FILES, plan.getFiles());
+        assertEquals(30, plan.getSize(PassportService.EF_COM));
+        assertEquals(2000, plan.getSize(PassportService.EF_SOD));
+        assertEquals(100, plan.getSize(PassportService.EF_DG1));
+        assertEquals(16000, plan.getSize(PassportService.EF_DG2));
+        assertEquals(18130, plan.getTotalSize());
+        assertEquals(0, plan.getProgress());
+    }
+
+    @Test
+    public void typicalSizesOfDrivingLicences() {
+        // Short file identifiers of the eDL, 00xx
+        assertEquals(100, ReadPlan.getTypicalSize((short) 0x0001));
+        assertEquals(2000, ReadPlan.getTypicalSize((short) 0x001D));
+        assertEquals(30, ReadPlan.getTypicalSize((short) 0x001E));
+        // Unknown file
+        assertEquals(30, ReadPlan.getTypicalSize((short) 0x0120));
+    }
+
+    @Test
+    public void knownSizesReplaceTypicalOnes() {
+        ReadPlan plan = new ReadPlan(FILES, null);
+        plan.setSize(PassportService.EF_DG2, 12000);
+        assertEquals(12000, plan.getSize(PassportService.EF_DG2));
+        // Not selectable
+        plan.setSize(PassportService.EF_SOD, 0);
+        assertEquals(12130, plan.getTotalSize());
+    }
+
+    @Test
+    public void filesOutsideThePlanAreIgnored() {
+        ReadPlan plan = new ReadPlan(FILES, null);
+        assertFalse(plan.contains(PassportService.EF_DG11));
+        plan.setSize(PassportService.EF_DG11, 500);
+        plan.setReceived(PassportService.EF_DG11, 500);
+        assertEquals(0, plan.getSize(PassportService.EF_DG11));
+        assertEquals(18130, plan.getTotalSize());
+        assertEquals(0, plan.getProgress());
+    }
+
+    @Test
+    public void progressIsTheShareOfBytesReceived() {
+        ReadPlan plan = new ReadPlan(FILES, null);
+        plan.setSize(PassportService.EF_DG2, 7870);
+        plan.setReceived(PassportService.EF_COM, 30);
+        plan.setReceived(PassportService.EF_SOD, 2000);
+        assertEquals(20, plan.getProgress());
+        plan.setReceived(PassportService.EF_DG1, 100);
+        plan.setReceived(PassportService.EF_DG2, 7870);
+        assertEquals(100, plan.getProgress());
+    }
+
+    @Test
+    public void progressNeverExceedsTheSize() {
+        ReadPlan plan = new ReadPlan(Collections.singletonList(PassportService.EF_DG1), null);
+        // Longer than the typical size, before the real length is known
+        plan.setReceived(PassportService.EF_DG1, 500);
+        assertEquals(100, plan.getProgress());
+        plan.setSize(PassportService.EF_DG1, 1000);
+        assertEquals(50, plan.getProgress());
+    }
+
+    @Test
+    public void emptyPlanIsDone() {
+        ReadPlan plan = new ReadPlan(new ArrayList<Short>(), null);
+        assertEquals(0, plan.getTotalSize());
+        assertEquals(100, plan.getProgress());
+    }
+
+    @Test
+    public void listenerIsNotifiedOfChanges() {
+        final List<Integer> notified = new ArrayList<>();
+        ReadPlan plan = new ReadPlan(Collections.singletonList(PassportService.EF_DG1), new InputStreamListener() {
+            @Override
+            public void process(int percent) {
+                notified.add(percent);
+            }
+        });
+        plan.setReceived(PassportService.EF_DG1, 50);
+        plan.setReceived(PassportService.EF_DG1, 50);
+        plan.setReceived(PassportService.EF_DG1, 100);
+        assertEquals(Arrays.asList(50, 100), notified);
+    }
+}
@@ -0,0 +1,101 @@
+package org.openJpeg;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of a YCbCr 4:2:0 JPEG2000 image (the chroma of ICAO photos) by @OpenJPEGJavaDecoder,
+ * at full and at reduced resolution
+ */
+@RunWith(AndroidJUnit4.class)
+public class SubsampledDecodeTest {
+
+    private final static int SIZE = 128;
+    // Red: Cr well above neutral, Cb below
+    private final static int CB = 90;
+    private final static int CR = 220;
+
+    @Test
+    public void decodesInColour() throws IOException {
+        byte[] jp2 = encode();
+        OpenJPEGJavaDecoder decoder = new OpenJPEGJavaDecoder();
+        decoder.setWorkDirectory(InstrumentationRegistry.getTargetContext().getCacheDir());
+
+        J2KImage image = decoder.decode(jp2, 0, jp2.length, null);
+        assertEquals(SIZE, image.getWidth());
+        assertRed(image);
+    }
+
+    @Test
+    public void decodesReducedInColour() throws IOException {
+        byte[] jp2 = encode();
+        OpenJPEGJavaDecoder decoder = new OpenJPEGJavaDecoder();
+        decoder.setWorkDirectory(InstrumentationRegistry.getTargetContext().getCacheDir());
+
+        J2KImage image = decoder.decode(jp2, 0, jp2.length, new DecodeParameters().setReduce(1), null);
+        assertEquals(SIZE / 2, image.getWidth());
+        assertEquals(SIZE / 2, image.getHeight());
+        assertRed(image);
+    }
+
+    private static void assertRed(J2KImage image) {
+        int pixel = image.getPixels()[image.getWidth() * image.getHeight() / 2];
+        int red = (pixel >> 16) & 0xFF;
+        int green = (pixel >> 8) & 0xFF;
+        assertTrue("Decoded in grayscale: " + Integer.toHexString(pixel), red > green + 64);
+    }
+
+    /**
+     * Encodes a raw YCbCr image with subsampled chroma, as the photos of documents are
+     *
+     * @return the JP2 file
+     */
+    private static byte[] encode() throws IOException {
+        File directory = InstrumentationRegistry.getTargetContext().getCacheDir();
+        File raw = File.createTempFile("ycbcr", ".raw", directory);
+        File jp2 = File.createTempFile("ycbcr", ".jp2", directory);
+        try {
+            try (OutputStream out = new FileOutputStream(raw)) {
+                // Planar components: luminance, then both chroma at half the width and height
+                byte[] luminance = new byte[SIZE * SIZE];
+                for (int i = 0; i < luminance.length; i++) {
+                    luminance[i] = (byte) (96 + (i % SIZE) / 4);
+                }
+                out.write(luminance);
+                byte[] chroma = new byte[SIZE * SIZE / 4];
+                Arrays.fill(chroma, (byte) CB);
+                out.write(chroma);
+                Arrays.fill(chroma, (byte) CR);
+                out.write(chroma);
+            }
+            new OpenJPEGJavaEncoder().encodeImageToJ2K(new String[]{"-i", raw.getPath(), "-o", jp2.getPath(),
+                    "-F", SIZE + "," + SIZE + ",3,8,u@1x1:2x2:2x2"});
+            assertTrue("Encoding failed", jp2.length() > 0);
+
+            byte[] data = new byte[(int) jp2.length()];
+            try (InputStream in = new FileInputStream(jp2)) {
+                int read = 0;
+                while (read < data.length) {
+                    read += in.read(data, read, data.length - read);
+                }
+            }
+            return data;
+        } finally {
+            raw.delete();
+            jp2.delete();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.openJpeg;
+
+/**
+ * Merges the components the native decoder writes one per file (luminance and subsampled
+ * chroma, at a reduced resolution @OpenJPEGJavaDecoder cannot upsample) into one ARGB image:
+ * the chroma is upsampled to the size of the luminance (nearest neighbour) and converted
+ * from YCbCr to RGB (ITU-R BT.601, full range, as the native decoder does).
+ */
+class ComponentMerger {
+
+    private ComponentMerger() {
+    }
+
+    /**
+     * Merges YCbCr components into an RGB image
+     *
+     * @param y      the luminance, at the size of the image
+     * @param cb     the blue difference chroma, at most as large as the luminance
+     * @param cr     the red difference chroma, at most as large as the luminance
+     * @param pixels the array to fill, used if large enough (can be null)
+     * @return the image
+     */
+    static J2KImage mergeYCbCr(J2KImage y, J2KImage cb, J2KImage cr, int[] pixels) {
+        int width = y.getWidth();
+        int height = y.getHeight();
+        int count = width * height;
+        if (pixels == null || pixels.length < count) {
+            pixels = new int[count];
+        }
+        // Greyscale ARGB pixels, any colour channel holds the sample
+        int[] luma = y.getPixels();
+        int[] blue = cb.getPixels();
+        int[] red = cr.getPixels();
+        for (int row = 0; row < height; row++) {
+            int cbRow = Math.min(row * cb.getHeight() / height, cb.getHeight() - 1) * cb.getWidth();
+            int crRow = Math.min(row * cr.getHeight() / height, cr.getHeight() - 1) * cr.getWidth();
+            for (int column = 0; column < width; column++) {
+                int i = row * width + column;
+                int l = luma[i] & 0xFF;
+                int u = (blue[cbRow + Math.min(column * cb.getWidth() / width, cb.getWidth() - 1)] & 0xFF) - 128;
+                int v = (red[crRow + Math.min(column * cr.getWidth() / width, cr.getWidth() - 1)] & 0xFF) - 128;
+                int r = clamp(l + (int) (1.402f * v));
+                int g = clamp(l - (int) (0.344f * u + 0.714f * v));
+                int b = clamp(l + (int) (1.772f * u));
+                pixels[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return new J2KImage(width, height, pixels);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 0xFF ? 0xFF : value;
+    }
+}
@@ -0,0 +1,80 @@
+package org.openJpeg;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the big cores of the device, the ones worth giving a decoding thread.
+ * On big.LITTLE processors the little cores are much slower: a decoding split over them waits
+ * for its slowest part, so only the cores faster than the slowest cluster are counted.
+ * The maximum frequency of each core is read from cpufreq.
+ */
+class CpuCores {
+
+    private final static String CPU_DIRECTORY = "/sys/devices/system/cpu";
+
+    private static int bigCores;
+
+    private CpuCores() {
+    }
+
+    /**
+     * @return the number of big cores, every core if they are all alike or cpufreq cannot be read
+     */
+    static synchronized int getBigCoreCount() {
+        if (bigCores == 0) {
+            bigCores = countBigCores();
+        }
+        return bigCores;
+    }
+
+    private static int countBigCores() {
+        int available = Runtime.getRuntime().availableProcessors();
+        List<Long> frequencies = new ArrayList<>();
+        for (int cpu = 0; ; cpu++) {
+            File file = new File(CPU_DIRECTORY + "/cpu" + cpu + "/cpufreq/cpuinfo_max_freq");
+            if (!file.exists()) {
+                break;
+            }
+            long frequency = readFrequency(file);
+            if (frequency > 0) {
+                frequencies.add(frequency);
+            }
+        }
+        if (frequencies.isEmpty()) {
+            return available;
+        }
+
+        long slowest = Long.MAX_VALUE;
+        for (long frequency : frequencies) {
+            slowest = Math.min(slowest, frequency);
+        }
+        int count = 0;
+        for (long frequency : frequencies) {
+            if (frequency > slowest) {
+                count++;
+            }
+        }
+        // A single cluster: every core is a big core
+        if (count == 0) {
+            count = frequencies.size();
+        }
+        return Math.max(1, Math.min(count, available));
+    }
+
+    /**
+     * @return the frequency in the file, 0 if it cannot be read
+     */
+    private static long readFrequency(File file) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line == null ? 0 : Long.parseLong(line.trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+}
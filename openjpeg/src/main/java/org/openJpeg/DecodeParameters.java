@@ -0,0 +1,94 @@
+package org.openJpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of a decoding by @OpenJPEGJavaDecoder, passed to the native decoder.
+ * JPEG2000 images are multi-resolution and layered: a preview only needs the lowest resolution
+ * levels and the first quality layers of the codestream, which decodes much faster.
+ * Code-blocks are decoded on several threads, one per big core of the device by default.
+ */
+public class DecodeParameters {
+
+    // Resolution levels discarded, the image is 2^reduce times smaller (0 = full resolution)
+    private int reduce;
+    // Quality layers decoded (0 = all)
+    private int layers;
+    // Threads decoding the code-blocks
+    private int threads = CpuCores.getBigCoreCount();
+
+    /**
+     * Discards the highest resolution levels
+     *
+     * @param reduce the number of levels discarded, every level halves the width and height
+     * @return these parameters
+     */
+    public DecodeParameters setReduce(int reduce) {
+        if (reduce < 0) {
+            throw new IllegalArgumentException("reduce " + reduce);
+        }
+        this.reduce = reduce;
+        return this;
+    }
+
+    /**
+     * Decodes the first quality layers only
+     *
+     * @param layers the number of layers decoded, 0 for all
+     * @return these parameters
+     */
+    public DecodeParameters setLayers(int layers) {
+        if (layers < 0) {
+            throw new IllegalArgumentException("layers " + layers);
+        }
+        this.layers = layers;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads decoding the image
+     *
+     * @param threads the number of threads, 1 to decode on the calling thread only
+     * @return these parameters
+     */
+    public DecodeParameters setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public int getReduce() {
+        return reduce;
+    }
+
+    public int getLayers() {
+        return layers;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the options in the syntax of the native decoder
+     */
+    List<String> toArguments() {
+        List<String> arguments = new ArrayList<>();
+        if (reduce > 0) {
+            arguments.add("-r");
+            arguments.add(Integer.toString(reduce));
+        }
+        if (layers > 0) {
+            arguments.add("-l");
+            arguments.add(Integer.toString(layers));
+        }
+        if (threads > 1) {
+            arguments.add("-threads");
+            arguments.add(Integer.toString(threads));
+        }
+        return arguments;
+    }
+}
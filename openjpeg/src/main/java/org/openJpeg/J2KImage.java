@@ -0,0 +1,33 @@
+package org.openJpeg;
+
+/**
+ * An image decoded by @OpenJPEGJavaDecoder: its size and its pixels, packed as ARGB (one int per
+ * pixel, row after row), ready for Bitmap.setPixels or Bitmap.createBitmap.
+ */
+public class J2KImage {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    J2KImage(int width, int height, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the pixels, the array can be larger than width * height when it was supplied by the caller
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+}
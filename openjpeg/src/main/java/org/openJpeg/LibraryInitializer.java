@@ -7,6 +7,10 @@ package org.openJpeg;
 public class LibraryInitializer {
     private static boolean isInitialized = false;
 
+    // The native encoder and decoder parse their options with the global state of opj_getopt,
+    // only one of them can run at a time
+    static final Object NATIVE_LOCK = new Object();
+
     public static void initializeLibrary() {
         if (!isInitialized) {
             try {
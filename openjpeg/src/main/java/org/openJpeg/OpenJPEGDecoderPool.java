@@ -0,0 +1,99 @@
+package org.openJpeg;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded set of @OpenJPEGJavaDecoder shared by the threads decoding images.
+ * Every decoding borrows a decoder of its own, with its own buffers and temporary files, so
+ * that concurrent decodings (a preview and a full photo, several documents in kiosk mode) never
+ * share state. Threads wait for a decoder when all of them are in use.
+ * <p>
+ * This is not a pool of parallel native decoders: the native library parses its options with
+ * the global state of opj_getopt and cannot be re-entered, so only one image is decoded natively
+ * at a time (see @LibraryInitializer.NATIVE_LOCK). A second decoder only overlaps the Java side
+ * of a decoding (temporary files, PNM parsing, bitmap creation) with the native decoding of
+ * another image; each native decoding is spread over the cores by @DecodeParameters.setThreads.
+ */
+public class OpenJPEGDecoderPool {
+
+    private final File workDirectory;
+    private final BlockingQueue<OpenJPEGJavaDecoder> idle;
+    private final int size;
+    // Decoders created so far, at most size
+    private int created;
+
+    /**
+     * @param workDirectory where the decoders hand images over to the native library,
+     *                      a directory private to the application
+     * @param size          the maximum number of decoders
+     */
+    public OpenJPEGDecoderPool(File workDirectory, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size " + size);
+        }
+        this.workDirectory = workDirectory;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Borrows a decoder, to give back with @release
+     *
+     * @return a decoder used by no other thread
+     * @throws InterruptedException When the thread is interrupted while waiting for a decoder
+     */
+    public OpenJPEGJavaDecoder acquire() throws InterruptedException {
+        OpenJPEGJavaDecoder decoder = idle.poll();
+        if (decoder != null) {
+            return decoder;
+        }
+        synchronized (this) {
+            if (created < size) {
+                created++;
+                decoder = new OpenJPEGJavaDecoder();
+                decoder.setWorkDirectory(workDirectory);
+                return decoder;
+            }
+        }
+        return idle.take();
+    }
+
+    /**
+     * Gives back a decoder borrowed with @acquire
+     *
+     * @param decoder the decoder, not used by the caller anymore
+     */
+    public void release(OpenJPEGJavaDecoder decoder) {
+        idle.offer(decoder);
+    }
+
+    /**
+     * Decodes a JPEG2000 image with a decoder of the pool, see @OpenJPEGJavaDecoder.decodeToBitmap
+     *
+     * @param codestream the encoded image
+     * @param offset     the offset of the image in codestream
+     * @param length     the length of the image
+     * @param parameters the resolution and quality to decode, null for the full image
+     * @return the decoded image
+     * @throws IOException When the image cannot be decoded or the thread is interrupted
+     */
+    public Bitmap decodeToBitmap(byte[] codestream, int offset, int length, DecodeParameters parameters) throws IOException {
+        OpenJPEGJavaDecoder decoder;
+        try {
+            decoder = acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a decoder");
+        }
+        try {
+            return decoder.decodeToBitmap(codestream, offset, length, parameters, null);
+        } finally {
+            release(decoder);
+        }
+    }
+}
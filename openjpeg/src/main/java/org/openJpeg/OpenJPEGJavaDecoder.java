@@ -27,26 +27,233 @@
  */
 package org.openJpeg;
 
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This class decodes one J2K codestream into an image (width + height + depth + pixels[],
  * using the OpenJPEG.org library.
  * To be able to log messages, the called must register a IJavaJ2KDecoderLogger object.
+ * <p>
+ * The native library only reads and writes files: @decode hands the codestream over through a
+ * private temporary file and reads back a PNM image (no BMP encoding, no BitmapFactory), which
+ * is deleted right away.
+ * <p>
+ * A decoder keeps buffers between decodings and must be used by one thread at a time, see
+ * @OpenJPEGDecoderPool to decode from several threads. The native call itself is serialised
+ * across all decoders: the library parses its options with the global state of opj_getopt and
+ * cannot be re-entered, a decoding uses several cores through its own threads instead.
  */
 public class OpenJPEGJavaDecoder {
 
+    // Debug tag
+    private final static String TAG = "OpenJPEGJavaDecoder";
+
+    // Start of a raw J2K codestream, anything else is taken as a JP2 file
+    private final static byte[] J2K_SIGNATURE = {(byte) 0xFF, 0x4F, (byte) 0xFF, 0x51};
 
     static {
         LibraryInitializer.initializeLibrary();
     }
 
+    // Directory of the temporary files, private to the application
+    private File workDirectory = new File(System.getProperty("java.io.tmpdir"));
+    // Pixels of the last image converted to a bitmap, reused by the next one
+    private int[] pixels;
+
     /**
      * Decode the j2k stream given in the codestream byte[] and fills the image8, image16 or image24 array, according to the bit depth.
      */
     private native int internalDecodeJ2KtoImage(String[] parameters);
 
     public int decodeJ2KtoImage(String[] parameters) {
-        return internalDecodeJ2KtoImage(parameters);
+        synchronized (LibraryInitializer.NATIVE_LOCK) {
+            return internalDecodeJ2KtoImage(parameters);
+        }
     }
 
+    /**
+     * Sets where the codestream and the image are handed over to the native library
+     *
+     * @param workDirectory a directory private to the application, e.g. its cache directory
+     */
+    public void setWorkDirectory(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
 
+    /**
+     * Decodes a JPEG2000 image, JP2 file or J2K codestream
+     *
+     * @param codestream the encoded image
+     * @param offset     the offset of the image in codestream
+     * @param length     the length of the image
+     * @param pixels     the array to fill with ARGB pixels, used if large enough (can be null)
+     * @return the decoded image
+     * @throws IOException When the image cannot be decoded
+     */
+    public J2KImage decode(byte[] codestream, int offset, int length, int[] pixels) throws IOException {
+        return decode(codestream, offset, length, null, pixels);
+    }
+
+    /**
+     * Decodes a JPEG2000 image, JP2 file or J2K codestream
+     *
+     * @param codestream the encoded image
+     * @param offset     the offset of the image in codestream
+     * @param length     the length of the image
+     * @param parameters the resolution and quality to decode, null for the full image
+     * @param pixels     the array to fill with ARGB pixels, used if large enough (can be null)
+     * @return the decoded image
+     * @throws IOException When the image cannot be decoded
+     */
+    public J2KImage decode(byte[] codestream, int offset, int length, DecodeParameters parameters, int[] pixels) throws IOException {
+        if (parameters == null) {
+            parameters = new DecodeParameters();
+        }
+        File input = File.createTempFile("j2k", getExtension(codestream, offset, length), workDirectory);
+        File output = File.createTempFile("j2k", ".pnm", workDirectory);
+        try {
+            try (OutputStream out = new FileOutputStream(input)) {
+                out.write(codestream, offset, length);
+            }
+
+            List<String> arguments = new ArrayList<>();
+            arguments.add("-i");
+            arguments.add(input.getPath());
+            arguments.add("-o");
+            arguments.add(output.getPath());
+            // Subsampled components (chroma of YCbCr images) are brought to the size of the image,
+            // otherwise they cannot be written to a single PNM file. The native decoder refuses
+            // to upsample a reduced image, the components are then merged by @ComponentMerger
+            if (parameters.getReduce() == 0) {
+                arguments.add("-upsample");
+            }
+            arguments.addAll(parameters.toArguments());
+            decodeJ2KtoImage(arguments.toArray(new String[0]));
+            if (output.length() > 0) {
+                return PNMReader.read(readFile(output), pixels);
+            }
+            // Components of different sizes are written one per file: luminance and chroma
+            File first = getComponentFile(output, 0);
+            if (first.length() > 0) {
+                J2KImage luminance = PNMReader.read(readFile(first), null);
+                File cb = getComponentFile(output, 1);
+                File cr = getComponentFile(output, 2);
+                if (cb.length() > 0 && cr.length() > 0 && !getComponentFile(output, 3).exists()) {
+                    return ComponentMerger.mergeYCbCr(luminance, PNMReader.read(readFile(cb), null),
+                            PNMReader.read(readFile(cr), null), pixels);
+                }
+                Log.w(TAG, "Components of different sizes, decoding the luminance only (grayscale)");
+                return luminance;
+            }
+            throw new IOException("OpenJPEG could not decode the image");
+        } finally {
+            delete(input);
+            delete(output);
+            for (int component = 0; getComponentFile(output, component).exists(); component++) {
+                delete(getComponentFile(output, component));
+            }
+        }
+    }
+
+    /**
+     * Decodes a JPEG2000 image, JP2 file or J2K codestream
+     *
+     * @param codestream the encoded image, from its position to its limit (direct or not)
+     * @param parameters the resolution and quality to decode, null for the full image
+     * @param pixels     the array to fill with ARGB pixels, used if large enough (can be null)
+     * @return the decoded image
+     * @throws IOException When the image cannot be decoded
+     */
+    public J2KImage decode(ByteBuffer codestream, DecodeParameters parameters, int[] pixels) throws IOException {
+        if (codestream.hasArray()) {
+            return decode(codestream.array(), codestream.arrayOffset() + codestream.position(),
+                    codestream.remaining(), parameters, pixels);
+        }
+        byte[] bytes = new byte[codestream.remaining()];
+        codestream.duplicate().get(bytes);
+        return decode(bytes, 0, bytes.length, parameters, pixels);
+    }
+
+    /**
+     * Decodes a JPEG2000 image into a bitmap
+     *
+     * @param codestream the encoded image
+     * @param offset     the offset of the image in codestream
+     * @param length     the length of the image
+     * @param parameters the resolution and quality to decode, null for the full image
+     * @param reuse      a mutable ARGB_8888 bitmap to fill if it has the size of the image (can be null)
+     * @return the decoded image, reuse if it was filled
+     * @throws IOException When the image cannot be decoded
+     */
+    public Bitmap decodeToBitmap(byte[] codestream, int offset, int length, DecodeParameters parameters, Bitmap reuse) throws IOException {
+        // Bitmap.createBitmap and setPixels copy the pixels, the array can be kept for the next image
+        J2KImage image = decode(codestream, offset, length, parameters, pixels);
+        pixels = image.getPixels();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (reuse != null && reuse.isMutable() && reuse.getConfig() == Bitmap.Config.ARGB_8888
+                && reuse.getWidth() == width && reuse.getHeight() == height) {
+            reuse.setPixels(image.getPixels(), 0, width, 0, 0, width, height);
+            return reuse;
+        }
+        return Bitmap.createBitmap(image.getPixels(), 0, width, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @return the file the native decoder writes a component to, when it splits the image
+     */
+    private static File getComponentFile(File output, int component) {
+        return new File(output.getPath() + "_" + component + ".pgm");
+    }
+
+    /**
+     * @return the extension the native decoder expects for the image: .jp2 or .j2k
+     */
+    private static String getExtension(byte[] codestream, int offset, int length) {
+        return startsWith(codestream, offset, length, J2K_SIGNATURE) ? ".j2k" : ".jp2";
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated image " + file);
+                }
+                read += count;
+            }
+        }
+        return data;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
 }
@@ -41,7 +41,9 @@ public class OpenJPEGJavaEncoder {
     }
 
     public long encodeImageToJ2K(String[] parameters) {
-        return internalEncodeImageToJ2K(parameters);
+        synchronized (LibraryInitializer.NATIVE_LOCK) {
+            return internalEncodeImageToJ2K(parameters);
+        }
     }
 
     /**
@@ -0,0 +1,131 @@
+package org.openJpeg;
+
+import java.io.IOException;
+
+/**
+ * Reads the PNM images written by the native decoder into ARGB pixels:
+ * P5 (grey), P6 (RGB) and P7 (grey or RGB with alpha), 8 or 16 bits per sample.
+ */
+class PNMReader {
+
+    private final byte[] data;
+    private int position;
+
+    private PNMReader(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Reads an image
+     *
+     * @param data   the content of the PNM file
+     * @param pixels the array to fill, used if large enough (can be null)
+     * @return the image
+     * @throws IOException When the file is not a supported PNM image
+     */
+    static J2KImage read(byte[] data, int[] pixels) throws IOException {
+        return new PNMReader(data).read(pixels);
+    }
+
+    private J2KImage read(int[] pixels) throws IOException {
+        String magic = token();
+        int width;
+        int height;
+        int depth;
+        int maxValue;
+        if (magic.equals("P5") || magic.equals("P6")) {
+            width = Integer.parseInt(token());
+            height = Integer.parseInt(token());
+            maxValue = Integer.parseInt(token());
+            depth = magic.equals("P5") ? 1 : 3;
+        } else if (magic.equals("P7")) {
+            width = height = depth = maxValue = -1;
+            String key;
+            while (!(key = token()).equals("ENDHDR")) {
+                switch (key) {
+                    case "WIDTH":
+                        width = Integer.parseInt(token());
+                        break;
+                    case "HEIGHT":
+                        height = Integer.parseInt(token());
+                        break;
+                    case "DEPTH":
+                        depth = Integer.parseInt(token());
+                        break;
+                    case "MAXVAL":
+                        maxValue = Integer.parseInt(token());
+                        break;
+                    case "TUPLTYPE":
+                        token();
+                        break;
+                    default:
+                        throw new IOException("Unknown PAM header " + key);
+                }
+            }
+        } else {
+            throw new IOException("Not a PNM image: " + magic);
+        }
+        if (width <= 0 || height <= 0 || depth < 1 || depth > 4 || maxValue <= 0 || maxValue > 0xFFFF) {
+            throw new IOException("Unsupported PNM image " + width + "x" + height + "x" + depth);
+        }
+        // A single whitespace separates the header from the samples
+        position++;
+
+        int bytesPerSample = maxValue > 0xFF ? 2 : 1;
+        int count = width * height;
+        if (data.length - position < (long) count * depth * bytesPerSample) {
+            throw new IOException("Truncated PNM image");
+        }
+        if (pixels == null || pixels.length < count) {
+            pixels = new int[count];
+        }
+
+        boolean colour = depth >= 3;
+        boolean alpha = depth == 2 || depth == 4;
+        for (int i = 0; i < count; i++) {
+            int r = sample(bytesPerSample, maxValue);
+            int g = colour ? sample(bytesPerSample, maxValue) : r;
+            int b = colour ? sample(bytesPerSample, maxValue) : r;
+            int a = alpha ? sample(bytesPerSample, maxValue) : 0xFF;
+            pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+        return new J2KImage(width, height, pixels);
+    }
+
+    /**
+     * @return the next sample, scaled to 8 bits
+     */
+    private int sample(int bytesPerSample, int maxValue) {
+        int value = data[position++] & 0xFF;
+        if (bytesPerSample == 2) {
+            value = (value << 8) | (data[position++] & 0xFF);
+        }
+        return maxValue == 0xFF ? value : value * 0xFF / maxValue;
+    }
+
+    /**
+     * @return the next header token, skipping whitespace and comments
+     */
+    private String token() throws IOException {
+        while (position < data.length) {
+            byte c = data[position];
+            if (c == '#') {
+                while (position < data.length && data[position] != '\n') {
+                    position++;
+                }
+            } else if (Character.isWhitespace(c)) {
+                position++;
+            } else {
+                break;
+            }
+        }
+        int start = position;
+        while (position < data.length && !Character.isWhitespace(data[position])) {
+            position++;
+        }
+        if (start == position) {
+            throw new IOException("Truncated PNM header");
+        }
+        return new String(data, start, position - start, "US-ASCII");
+    }
+}
@@ -0,0 +1,79 @@
+package org.openJpeg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging of YCbCr components of different sizes by @ComponentMerger
+ */
+public class ComponentMergerTest {
+
+    @Test
+    public void upsamplesTheChroma() {
+        // 4x2 luminance, 2x1 chroma (4:2:0)
+        J2KImage y = grey(4, 2, 100, 100, 100, 100, 100, 100, 100, 100);
+        J2KImage cb = grey(2, 1, 128, 128);
+        J2KImage cr = grey(2, 1, 128, 228);
+        int[] pixels = ComponentMerger.mergeYCbCr(y, cb, cr, null).getPixels();
+        assertEquals(8, pixels.length);
+        // Neutral chroma on the left half
+        assertEquals(0xFF646464, pixels[0]);
+        assertEquals(0xFF646464, pixels[5]);
+        // Red on the right half, on both rows
+        assertEquals(pixels[2], pixels[7]);
+        assertTrue(red(pixels[3]) > green(pixels[3]));
+        assertEquals(0xFF, pixels[3] >>> 24);
+    }
+
+    @Test
+    public void clampsToTheRgbRange() {
+        J2KImage y = grey(1, 1, 250);
+        int[] pixels = ComponentMerger.mergeYCbCr(y, grey(1, 1, 255), grey(1, 1, 255), null).getPixels();
+        assertEquals(0xFF, red(pixels[0]));
+        assertEquals(0xFF, pixels[0] & 0xFF);
+        y = grey(1, 1, 5);
+        pixels = ComponentMerger.mergeYCbCr(y, grey(1, 1, 0), grey(1, 1, 0), null).getPixels();
+        assertEquals(0, red(pixels[0]));
+        assertEquals(0, pixels[0] & 0xFF);
+    }
+
+    @Test
+    public void oddSizesUseTheLastChromaSample() {
+        // 3x3 luminance, 2x2 chroma: the last row and column share the second sample
+        J2KImage y = grey(3, 3, 50, 50, 50, 50, 50, 50, 50, 50, 50);
+        J2KImage chroma = grey(2, 2, 128, 128, 128, 200);
+        J2KImage image = ComponentMerger.mergeYCbCr(y, chroma, chroma, null);
+        assertEquals(3, image.getWidth());
+        assertEquals(3, image.getHeight());
+        assertEquals(0xFF323232, image.getPixels()[0]);
+        assertNotEquals(0xFF323232, image.getPixels()[8]);
+    }
+
+    @Test
+    public void reusesLargeEnoughPixels() {
+        int[] pixels = new int[4];
+        J2KImage image = ComponentMerger.mergeYCbCr(grey(2, 2, 1, 2, 3, 4), grey(1, 1, 128), grey(1, 1, 128), pixels);
+        assertSame(pixels, image.getPixels());
+        assertEquals(0xFF040404, pixels[3]);
+    }
+
+    /**
+     * @return a component as read by @PNMReader from a PGM file
+     */
+    private static J2KImage grey(int width, int height, int... samples) {
+        int[] pixels = new int[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            pixels[i] = 0xFF000000 | (samples[i] << 16) | (samples[i] << 8) | samples[i];
+        }
+        return new J2KImage(width, height, pixels);
+    }
+
+    private static int red(int pixel) {
+        return (pixel >> 16) & 0xFF;
+    }
+
+    private static int green(int pixel) {
+        return (pixel >> 8) & 0xFF;
+    }
+}
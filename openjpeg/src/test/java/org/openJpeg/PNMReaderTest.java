@@ -0,0 +1,118 @@
+package org.openJpeg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reading of the PNM images written by the native decoder by @PNMReader
+ */
+public class PNMReaderTest {
+
+    @Test
+    public void readsGreyImages() throws IOException {
+        J2KImage image = PNMReader.read(pnm("P5\n2 1\n255\n", 0x00, 0x80), null);
+        assertEquals(2, image.getWidth());
+        assertEquals(1, image.getHeight());
+        assertArrayEquals(new int[]{0xFF000000, 0xFF808080}, image.getPixels());
+    }
+
+    @Test
+    public void readsColourImages() throws IOException {
+        J2KImage image = PNMReader.read(pnm("P6\n1 2\n255\n", 0x10, 0x20, 0x30, 0xFF, 0x00, 0x7F), null);
+        assertEquals(1, image.getWidth());
+        assertEquals(2, image.getHeight());
+        assertArrayEquals(new int[]{0xFF102030, 0xFFFF007F}, image.getPixels());
+    }
+
+    @Test
+    public void readsImagesWithAlpha() throws IOException {
+        J2KImage image = PNMReader.read(pnm("P7\nWIDTH 1\nHEIGHT 1\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n",
+                0x10, 0x20, 0x30, 0x40), null);
+        assertArrayEquals(new int[]{0x40102030}, image.getPixels());
+
+        image = PNMReader.read(pnm("P7\nWIDTH 1\nHEIGHT 1\nDEPTH 2\nMAXVAL 255\nTUPLTYPE GRAYSCALE_ALPHA\nENDHDR\n",
+                0x55, 0x00), null);
+        assertArrayEquals(new int[]{0x00555555}, image.getPixels());
+    }
+
+    @Test
+    public void skipsComments() throws IOException {
+        J2KImage image = PNMReader.read(pnm("P5\n# written by opj_decompress\n1 1 # size\n255\n", 0x23), null);
+        assertArrayEquals(new int[]{0xFF232323}, image.getPixels());
+    }
+
+    @Test
+    public void scalesSamples() throws IOException {
+        // 16 bits per sample, big endian
+        J2KImage image = PNMReader.read(pnm("P5\n2 1\n65535\n", 0xFF, 0xFF, 0x80, 0x00), null);
+        assertArrayEquals(new int[]{0xFFFFFFFF, 0xFF7F7F7F}, image.getPixels());
+
+        // 4 bits per sample
+        image = PNMReader.read(pnm("P5\n1 1\n15\n", 0x0F), null);
+        assertArrayEquals(new int[]{0xFFFFFFFF}, image.getPixels());
+    }
+
+    @Test
+    public void firstSampleMayLookLikeWhitespace() throws IOException {
+        // Only one whitespace byte separates the header from the samples
+        J2KImage image = PNMReader.read(pnm("P5\n1 1\n255\n", '\n'), null);
+        assertArrayEquals(new int[]{0xFF0A0A0A}, image.getPixels());
+    }
+
+    @Test
+    public void reusesLargeEnoughPixels() throws IOException {
+        int[] pixels = new int[4];
+        J2KImage image = PNMReader.read(pnm("P5\n2 1\n255\n", 0x01, 0x02), pixels);
+        assertSame(pixels, image.getPixels());
+
+        int[] small = new int[1];
+        image = PNMReader.read(pnm("P5\n2 1\n255\n", 0x01, 0x02), small);
+        assertNotSame(small, image.getPixels());
+        assertEquals(2, image.getPixels().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownFormats() throws IOException {
+        // Plain (ASCII) grey map
+        PNMReader.read(pnm("P2\n1 1\n255\n0\n"), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedSamples() throws IOException {
+        PNMReader.read(pnm("P6\n2 2\n255\n", 1, 2, 3, 4, 5, 6), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedHeaders() throws IOException {
+        PNMReader.read(pnm("P6\n2 2"), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyImages() throws IOException {
+        PNMReader.read(pnm("P5\n0 1\n255\n"), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownPamHeaders() throws IOException {
+        PNMReader.read(pnm("P7\nWIDTH 1\nHEIGHT 1\nDEPTH 1\nMAXVAL 255\nCOLOUR 1\nENDHDR\n", 0), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsPamWithoutSize() throws IOException {
+        PNMReader.read(pnm("P7\nDEPTH 1\nMAXVAL 255\nENDHDR\n", 0), null);
+    }
+
+    private static byte[] pnm(String header, int... samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] bytes = header.getBytes();
+        out.write(bytes, 0, bytes.length);
+        for (int sample : samples) {
+            out.write(sample);
+        }
+        return out.toByteArray();
+    }
+}